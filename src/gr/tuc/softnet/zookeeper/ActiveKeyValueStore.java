@@ -1,15 +1,32 @@
 package gr.tuc.softnet.zookeeper;
 
+import gr.tuc.softnet.zookeeper.znode.WatchEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
 /**
@@ -19,9 +36,13 @@ import org.apache.zookeeper.data.Stat;
  * The active key-value store is represented by a znode under which child znodes shall be created to represent the keys of the store.
  * <p>
  * In particular, each key is represented by a znode under the znode representing the active key-value store, and the value
- * associated with the key is stored as data in the znode (this places a limit on the number of bytes the value can consist of).
+ * associated with the key is stored as data in the znode (this places a limit on the number of bytes the value can consist of,
+ * unless large values are enabled with {@link Builder#setChunkSize(int)}). The values may also be stored compressed
+ * (see {@link Builder#setValueCodec(ValueCodec)}).
  * For example, if <em>/store</em> is the znode representing the active key-value store then the znode <em>/store/key</em> storing
- * as data <em>value</em>, represents the <em>(key,value)</em> pair.
+ * as data <em>value</em>, represents the <em>(key,value)</em> pair. For large stores the keys may instead be spread over
+ * a number of bucket znodes under the znode representing the store (see {@link Builder#setBuckets(int)}), and keys with slashes
+ * may be represented by nested znodes so that the keys with a prefix are listed cheaply (see {@link Builder#setHierarchicalKeys(boolean)}).
  * 
  * This class is thread-safe.
  * 
@@ -37,7 +58,698 @@ public class ActiveKeyValueStore {
 	// for the keys. We store the path to this special znode in activeKeyValueStoreZNodePath.
 	private String activeKeyValueStoreZNodePath = null;
 	
+	// Maps the keys to the paths of their znodes
+	private KeyLayout layout = null;
+
+	// Used by the bulk operations to keep many requests in flight. Its bound on the outstanding
+	// requests is the in-flight window of the bulk operations.
+	private AsyncActiveKeyValueStore pipeline = null;
+	
+	// The in-flight window of the bulk operations
+	private int pipelineWindow = 0;
+	
+	// The local read cache in front of value() and keyExists(). null if not enabled.
+	private NearCache nearCache = null;
+	
+	// The local mirror of the whole store serving the reads: a single view for the flat layout and
+	// a view per bucket for the bucketed layout. null if not enabled.
+	private MaterializedView [] materializedViews = null;
+	
+	// The local file of the snapshots of the materialized view. null if not enabled.
+	private File snapshotFile = null;
+	
+	// Stores the large values as chunks. null if large values are not enabled.
+	private ChunkedValues chunkedValues = null;
+	
+	// Encodes the values before they are stored. null if not enabled.
+	private ValueCodec valueCodec = null;
+	
+	// Buffers the replacements of values. null if write-behind is not enabled.
+	private WriteBehindBuffer writeBehind = null;
+
+	// Answers that a key is definitely absent without going to the ZooKeeper server. null if not enabled.
+	private KeyIndex keyIndex = null;
+	
+	// Records the changed keys for the readers catching up. null if not enabled.
+	private ChangeLog changeLog = null;
+	
+	// Sends a second copy of the slow reads through another session of the pool. null if not enabled.
+	private HedgedReads hedgedReads = null;
+	
+	// The number of writes made through this store, and the number of them the read sessions of a pool have been synced with
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong syncedWrites = new AtomicLong();
+	
+	// Admits the write requests. null if not enabled.
+	private WriteLimiter writeLimiter = null;
+	
+	// Coalesces the concurrent reads of the same key going to the ZooKeeper server. The readers other than
+	// the one issuing the read get a copy of the data.
+	private SingleFlight<byte []> keyReads = new SingleFlight<byte []>(){
+		@Override
+		byte [] share(byte [] data) {
+			return data == null ? null : data.clone();
+		}
+	};
+	
+	// Coalesces the concurrent checks of the same key going to the ZooKeeper server
+	private SingleFlight<Stat> keyChecks = new SingleFlight<Stat>();
+	
+	// Delivers the changes of the keys to the listeners
+	private KeySubscriptions keySubscriptions = null;
+
+	// Jitters the backoff of compute()
+	private Random backoffJitter = new Random();
+
+	/**
+	 * The default number of requests a bulk operation (such as {@link #getAll(Collection)}) keeps in flight.
+	 */
+	public static final int DEFAULT_PIPELINE_WINDOW = 256;
+	
+	// The first and the largest backoff (in milliseconds) of compute() after losing a race with another update
+	private static final int MIN_BACKOFF_MILLIS = 1;
+	private static final int MAX_BACKOFF_MILLIS = 128;
+
+	/**
+	 * Construct a new {@link ActiveKeyValueStore} over the znode with the given path. The bulk operations keep
+	 * at most {@link #DEFAULT_PIPELINE_WINDOW} requests in flight.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 */
+	public ActiveKeyValueStore(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath){
+		this(handle, activeKeyValueStoreZNodePath, DEFAULT_PIPELINE_WINDOW);
+	}
+
+	/**
+	 * Construct a new {@link ActiveKeyValueStore} over the znode with the given path.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 * @param pipelineWindow
+	 * 			The maximum number of requests the bulk operations keep in flight (must be positive).
+	 * @throws IllegalArgumentException
+	 * 			If pipelineWindow is not positive.
+	 */
+	public ActiveKeyValueStore(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath, int pipelineWindow) throws IllegalArgumentException{
+		this(newBuilder().setHandle(handle).setPath(activeKeyValueStoreZNodePath).setPipelineWindow(pipelineWindow));
+	}
+	
+	/**
+	 * Construct a new {@link ActiveKeyValueStore} from the components of the given builder.
+	 * 
+	 * @param builder
+	 * 			The builder.
+	 */
+	private ActiveKeyValueStore(ActiveKeyValueStore.Builder builder){
+		this.handle = builder.handle;
+		this.activeKeyValueStoreZNodePath = builder.activeKeyValueStoreZNodePath;
+		this.layout = new KeyLayout(activeKeyValueStoreZNodePath, builder.buckets, builder.hierarchicalKeys);
+		this.pipelineWindow = builder.pipelineWindow;
+		this.valueCodec = builder.valueCodec;
+		this.writeLimiter = builder.writeLimiter;
+		this.pipeline = new AsyncActiveKeyValueStore(handle, layout, pipelineWindow, writeLimiter);
+		this.keySubscriptions = new KeySubscriptions(handle, layout, valueCodec);
+		
+		if (builder.nearCacheMaxEntries > 0){
+			this.nearCache = new NearCache(handle, builder.nearCacheMaxEntries, builder.nearCacheMaxAbsentEntries);
+		}
+		
+		if (builder.chunkSize > 0){
+			this.chunkedValues = new ChunkedValues(handle, builder.chunkSize, pipelineWindow);
+		}
+		
+		if (builder.flushIntervalMillis > 0){
+			this.writeBehind = new WriteBehindBuffer(builder.flushIntervalMillis){
+				@Override
+				Map<String, Exception> write(Map<String, byte []> values) throws KeeperException, InterruptedException {
+					return replaceAll(values);
+				}
+			};
+		}
+		
+		if (builder.hedgedReadsPercentile > 0){
+			this.hedgedReads = new HedgedReads((ZooKeeperHandlePool)handle, builder.hedgedReadsPercentile);
+		}
+		
+		if (builder.changeLogRetainedRecords > 0){
+			this.changeLog = new ChangeLog(handle, activeKeyValueStoreZNodePath, builder.changeLogRetainedRecords, pipelineWindow);
+		}
+		
+		if (builder.keyFilterExpectedKeys > 0){
+			this.keyIndex = new KeyIndex(handle, layout, builder.keyFilterExpectedKeys, builder.keyFilterFalsePositiveRate);
+			this.keyIndex.start();
+		}
+		
+		if (builder.materializedView){
+			if (layout.isBucketed()){
+				this.materializedViews = new MaterializedView[layout.buckets()];
+				
+				for (int bucket = 0; bucket < layout.buckets(); ++bucket){
+					this.materializedViews[bucket] = new MaterializedView(handle, layout.bucketPath(bucket));
+				}
+			}
+			else{
+				this.materializedViews = new MaterializedView[]{ new MaterializedView(handle, activeKeyValueStoreZNodePath) };
+			}
+			
+			Map<String, VersionedValue> warmEntries = null;
+			
+			if (builder.snapshotFile != null){
+				this.snapshotFile = builder.snapshotFile;
+				
+				try{
+					warmEntries = SnapshotFile.read(snapshotFile, activeKeyValueStoreZNodePath);
+				}
+				catch(IOException e){
+					// no usable snapshot (as is the case on the first run); the views are loaded from the ZooKeeper server
+				}
+			}
+			
+			for (MaterializedView view : materializedViews){
+				if (warmEntries != null){
+					view.start(warmEntries);
+				}
+				else{
+					view.start();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * {@link Builder} is used to build {@link ActiveKeyValueStore} objects with optional features enabled.
+	 * 
+	 * <p>
+	 * The handle and the path components are mandatory. For example (without error checking and such):
+	 * 	<pre>
+	 * 		ActiveKeyValueStore store = ActiveKeyValueStore.newBuilder()
+	 * 									.setHandle(handle)
+	 * 									.setPath("/store")
+	 * 									.setNearCache(10000)
+	 * 									.build();
+	 * 	</pre>
+	 * </p>
+	 * 
+	 * This class is not thread-safe.
+	 * 
+	 * @author Tassos Souris
+	 *
+	 */
+	public static class Builder{
+		// the handle of the session
+		private ZooKeeperHandle handle = null;
+		// the path of the znode representing the store
+		private String activeKeyValueStoreZNodePath = null;
+		// the in-flight window of the bulk operations
+		private int pipelineWindow = DEFAULT_PIPELINE_WINDOW;
+		// the maximum number of entries of the near cache, zero if disabled
+		private int nearCacheMaxEntries = 0;
+		// the maximum number of absent keys remembered by the near cache, zero if disabled
+		private int nearCacheMaxAbsentEntries = 0;
+		// whether the store is mirrored locally
+		private boolean materializedView = false;
+		// the maximum number of bytes stored in a single znode, zero if large values are not enabled
+		private int chunkSize = 0;
+		// the codec of the values, null if not enabled
+		private ValueCodec valueCodec = null;
+		// the number of buckets, zero for the flat layout
+		private int buckets = 0;
+		// the flush interval of write-behind, zero if not enabled
+		private long flushIntervalMillis = 0;
+		// the expected number of keys of the key filter, zero if not enabled
+		private int keyFilterExpectedKeys = 0;
+		// the false positive rate of the key filter
+		private double keyFilterFalsePositiveRate = 0;
+		// whether the keys are split over directories
+		private boolean hierarchicalKeys = false;
+		// the local file of the snapshots of the materialized view, null if not enabled
+		private File snapshotFile = null;
+		// the number of records kept in the change log, zero if not enabled
+		private int changeLogRetainedRecords = 0;
+		// the percentile of the read latencies after which a read is hedged, zero if not enabled
+		private double hedgedReadsPercentile = 0;
+		// the limiter of the write requests, null if not enabled
+		private WriteLimiter writeLimiter = null;
+		
+		/**
+		 * Construct a Builder object.
+		 */
+		public Builder(){
+		}
+		
+		/**
+		 * Constructs a {@link ActiveKeyValueStore} from the components of this builder.
+		 * 
+		 * @return The active key-value store.
+		 * @throws IllegalStateException
+		 * 			If the handle or the path component has not been set, if hierarchical keys are enabled together with
+		 * 			buckets, the materialized view or the key filter, if a snapshot file is set without the materialized view, or if
+		 * 			hedged reads are enabled and the handle is not a {@link ZooKeeperHandlePool} of at least two sessions.
+		 */
+		public ActiveKeyValueStore build() throws IllegalStateException{
+			if (handle == null || activeKeyValueStoreZNodePath == null){
+				throw new IllegalStateException();
+			}
+			if (hierarchicalKeys && (buckets > 0 || materializedView || keyFilterExpectedKeys > 0)){
+				throw new IllegalStateException();
+			}
+			if (snapshotFile != null && !materializedView){
+				throw new IllegalStateException();
+			}
+			if (hedgedReadsPercentile > 0 && !(handle instanceof ZooKeeperHandlePool && ((ZooKeeperHandlePool)handle).size() > 1)){
+				throw new IllegalStateException();
+			}
+			return new ActiveKeyValueStore(this);
+		}
+		
+		/**
+		 * Sets the handle of the session to use.
+		 * 
+		 * @param handle
+		 * 			The handle of the session.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if handle is null
+		 */
+		public ActiveKeyValueStore.Builder setHandle(ZooKeeperHandle handle) throws NullPointerException{
+			if (handle == null){
+				throw new NullPointerException();
+			}
+			this.handle = handle;
+			return this;
+		}
+		
+		/**
+		 * Sets the path of the znode representing the active key-value store.
+		 * 
+		 * @param activeKeyValueStoreZNodePath
+		 * 			The path of the znode.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if activeKeyValueStoreZNodePath is null
+		 */
+		public ActiveKeyValueStore.Builder setPath(String activeKeyValueStoreZNodePath) throws NullPointerException{
+			if (activeKeyValueStoreZNodePath == null){
+				throw new NullPointerException();
+			}
+			this.activeKeyValueStoreZNodePath = activeKeyValueStoreZNodePath;
+			return this;
+		}
+		
+		/**
+		 * Sets the maximum number of requests the bulk operations keep in flight. Defaults to {@link ActiveKeyValueStore#DEFAULT_PIPELINE_WINDOW}.
+		 * 
+		 * @param pipelineWindow
+		 * 			The in-flight window.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if pipelineWindow is not positive
+		 */
+		public ActiveKeyValueStore.Builder setPipelineWindow(int pipelineWindow) throws IllegalArgumentException{
+			if (pipelineWindow <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.pipelineWindow = pipelineWindow;
+			return this;
+		}
+		
+		/**
+		 * Enables a local read cache in front of {@link ActiveKeyValueStore#get(String)} and {@link ActiveKeyValueStore#containsKey(String)}.
+		 * 
+		 * <p>
+		 * Each cached key has a watch left on its znode, and the entry is dropped when the watch fires, so a read after a change
+		 * is seen goes to the ZooKeeper server again. Reads of keys that rarely change are served locally. When the cache is full
+		 * the least recently used entry is evicted.
+		 * </p>
+		 * 
+		 * @param maxEntries
+		 * 			The maximum number of keys held in the cache.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if maxEntries is not positive
+		 */
+		public ActiveKeyValueStore.Builder setNearCache(int maxEntries) throws IllegalArgumentException{
+			if (maxEntries <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.nearCacheMaxEntries = maxEntries;
+			this.nearCacheMaxAbsentEntries = 0;
+			return this;
+		}
+		
+		/**
+		 * Enables a local read cache (see {@link #setNearCache(int)}) that also remembers the keys that are not in the store.
+		 * 
+		 * <p>
+		 * A read of a missing key leaves an exists watch on its znode and the key is remembered as absent until the watch fires,
+		 * so repeated {@link ActiveKeyValueStore#get(String)} and {@link ActiveKeyValueStore#containsKey(String)} calls for a key
+		 * that does not exist (yet) are answered without going to the ZooKeeper server. The absent keys are held separately from
+		 * the present ones, evicting the least recently used when full, so that a burst of misses does not evict the cached values.
+		 * </p>
+		 * 
+		 * @param maxEntries
+		 * 			The maximum number of keys held in the cache.
+		 * @param maxAbsentEntries
+		 * 			The maximum number of absent keys remembered by the cache.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if maxEntries or maxAbsentEntries is not positive
+		 */
+		public ActiveKeyValueStore.Builder setNearCache(int maxEntries, int maxAbsentEntries) throws IllegalArgumentException{
+			if (maxEntries <= 0 || maxAbsentEntries <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.nearCacheMaxEntries = maxEntries;
+			this.nearCacheMaxAbsentEntries = maxAbsentEntries;
+			return this;
+		}
+		
+		/**
+		 * Enables a complete local mirror of the store serving {@link ActiveKeyValueStore#get(String)}, {@link ActiveKeyValueStore#containsKey(String)},
+		 * {@link ActiveKeyValueStore#size()}, {@link ActiveKeyValueStore#isEmpty()} and {@link ActiveKeyValueStore#entrySet()} without going to the ZooKeeper server.
+		 * 
+		 * <p>
+		 * The mirror is loaded in the background when the store is built and is kept up to date through watches on the store znode
+		 * and on every key znode. Until it is loaded (and if the session expires) the reads go to the ZooKeeper server. Note that the
+		 * changes, including those made through this store, become visible once the corresponding watch fires.
+		 * This mode is meant for small, read-mostly stores since the whole store is held in memory.
+		 * </p>
+		 * 
+		 * @param enabled
+		 * 			Whether the mirror is enabled.
+		 * @return this builder
+		 */
+		public ActiveKeyValueStore.Builder setMaterializedView(boolean enabled){
+			this.materializedView = enabled;
+			return this;
+		}
+		
+		/**
+		 * Enables values larger than the ZooKeeper znode data limit (<em>jute.maxbuffer</em>, about 1 MB by default).
+		 * 
+		 * <p>
+		 * A value larger than chunkSize bytes is split in chunks of at most chunkSize bytes stored as child znodes of the key znode,
+		 * and the key znode stores a small manifest referring to them. The chunks are written and read concurrently. The manifest is
+		 * written last and serves as the commit point, so readers never see a partially written value. Smaller values are stored
+		 * as data of the key znode as usual, except for the few that would be mistaken for a manifest, which are chunked too.
+		 * Note that the replacement of a value takes an additional round trip when this is enabled.
+		 * </p>
+		 * 
+		 * @param chunkSize
+		 * 			The maximum number of bytes stored in a single znode (must be positive and below the znode data limit).
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if chunkSize is not positive
+		 */
+		public ActiveKeyValueStore.Builder setChunkSize(int chunkSize) throws IllegalArgumentException{
+			if (chunkSize <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.chunkSize = chunkSize;
+			return this;
+		}
+		
+		/**
+		 * Enables the encoding of the values with the given codec, typically to compress them (see {@link ValueCodecs#LZ} and
+		 * {@link ValueCodecs#DEFLATE}).
+		 * 
+		 * <p>
+		 * Each value is stored prefixed with a header identifying the codec (see {@link ValueCodecs}), and a value that does not get smaller
+		 * is stored as is after the header. Values written with any built-in codec or without a codec are read correctly, so the codec of an existing store can be
+		 * changed or enabled at any time. Smaller values mean less data in the ZooKeeper database, in the snapshots and on the wire.
+		 * The values are encoded before they are split in chunks (see {@link #setChunkSize(int)}).
+		 * </p>
+		 * 
+		 * @param codec
+		 * 			The codec.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if codec is null
+		 */
+		public ActiveKeyValueStore.Builder setValueCodec(ValueCodec codec) throws NullPointerException{
+			if (codec == null){
+				throw new NullPointerException();
+			}
+			this.valueCodec = codec;
+			return this;
+		}
+		
+		/**
+		 * Enables the bucketed layout: the keys are spread by their hash over the given number of bucket znodes under the znode representing
+		 * the store, that is the key <em>key</em> is represented by the znode <em>/store/bucket-0007/key</em> if its hash falls in the eighth bucket.
+		 * 
+		 * <p>
+		 * In the flat layout listing the keys (as {@link ActiveKeyValueStore#size()} and {@link ActiveKeyValueStore#entrySet()} do) takes a single
+		 * response holding all the keys, which the server serializes on each call and which may exceed the buffer of the client for large stores.
+		 * In the bucketed layout each bucket is listed separately, and the buckets are listed concurrently. The operations on a single key go straight
+		 * to the bucket of the key. A bucket znode is created along with its first key.
+		 * </p>
+		 * 
+		 * <p>
+		 * All the clients of a store must use the same layout and the same number of buckets. Existing stores are not converted.
+		 * </p>
+		 * 
+		 * @param buckets
+		 * 			The number of buckets.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if buckets is not positive
+		 */
+		public ActiveKeyValueStore.Builder setBuckets(int buckets) throws IllegalArgumentException{
+			if (buckets <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.buckets = buckets;
+			return this;
+		}
+		
+		/**
+		 * Enables write-behind for {@link ActiveKeyValueStore#replace(String, byte[])}: the replacements are buffered and written in the background
+		 * every flush interval, and a key replaced many times within an interval is written once with its latest value.
+		 * 
+		 * <p>
+		 * The buffered values are written pipelined. {@link ActiveKeyValueStore#get(String)} sees the buffered values of this store, while the other
+		 * reads and the other clients see them once they are written. A value that cannot be written (for example on a connection loss) stays
+		 * buffered and is written again with the next flush, unless a newer value of the key was buffered since. The value of a key that does not
+		 * exist is dropped, and the {@link IllegalArgumentException} is thrown by the next {@link ActiveKeyValueStore#flush()}.
+		 * The other operations on a single key first write its buffered value (or, for {@link ActiveKeyValueStore#remove(String)}, drop it).
+		 * The buffered values are lost if the process exits before they are written; call {@link ActiveKeyValueStore#close()} when done with the store.
+		 * </p>
+		 * 
+		 * @param flushIntervalMillis
+		 * 			The time between two background writes in milliseconds.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if flushIntervalMillis is not positive
+		 */
+		public ActiveKeyValueStore.Builder setWriteBehind(long flushIntervalMillis) throws IllegalArgumentException{
+			if (flushIntervalMillis <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.flushIntervalMillis = flushIntervalMillis;
+			return this;
+		}
+		
+		/**
+		 * Enables a local Bloom filter over the keys of the store, so that {@link ActiveKeyValueStore#get(String)} and
+		 * {@link ActiveKeyValueStore#containsKey(String)} answer for most of the missing keys without going to the ZooKeeper server.
+		 * 
+		 * <p>
+		 * Unlike the near cache (see {@link #setNearCache(int, int)}) the filter takes a fixed, small amount of memory whatever the keys
+		 * looked up (about 1.2 bytes per key for a 1% false positive rate, see {@link ActiveKeyValueStore#keyFilterSizeInBytes()}), so it suits
+		 * very large stores. The filter is built in the background by listing the keys when the store is built, and is kept up to date through
+		 * child watches (the bucketed layout, see {@link #setBuckets(int)}, keeps each re-listing small). The keys created by other clients are seen
+		 * once the corresponding watch fires; the keys inserted through this store are seen at once, except through {@link ActiveKeyValueStore#async()}.
+		 * Until the filter is built (and if the session expires) all the reads go to the ZooKeeper server. The filter is rebuilt with a larger
+		 * capacity when the store outgrows it.
+		 * </p>
+		 * 
+		 * @param expectedKeys
+		 * 			The expected number of keys of the store.
+		 * @param falsePositiveRate
+		 * 			The rate of the missing keys that the filter cannot tell missing, for the expected number of keys.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if expectedKeys is not positive or falsePositiveRate is not between 0 and 1 (exclusive)
+		 */
+		public ActiveKeyValueStore.Builder setKeyFilter(int expectedKeys, double falsePositiveRate) throws IllegalArgumentException{
+			if (expectedKeys <= 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1)){
+				throw new IllegalArgumentException();
+			}
+			this.keyFilterExpectedKeys = expectedKeys;
+			this.keyFilterFalsePositiveRate = falsePositiveRate;
+			return this;
+		}
+		
+		/**
+		 * Enables the hierarchical layout: a key with slashes, such as <em>tenant42/users/7</em>, is represented by nested znodes, that is
+		 * <em>/store/tenant42~/users~/7</em>, where <em>tenant42~</em> and <em>users~</em> are directory znodes created along with their first key.
+		 * 
+		 * <p>
+		 * The keys under a prefix are then found by walking the subtree of the prefix only (see {@link ActiveKeyValueStore#scanPrefix(String)}),
+		 * so a prefix query costs work proportional to the size of its result rather than the size of the store. The keys without slashes are
+		 * stored as in the flat layout, so an existing flat store can be opened with this layout as long as no key ends with <em>~</em>. A part
+		 * of a key (between slashes) must not be empty or end with <em>~</em>; such keys are rejected with an {@link IllegalArgumentException}.
+		 * The directory left empty by {@link ActiveKeyValueStore#remove(String)} is removed along with the key.
+		 * </p>
+		 * 
+		 * <p>
+		 * Listing the whole store (as {@link ActiveKeyValueStore#size()} and {@link ActiveKeyValueStore#entrySet()} do) walks all the directories.
+		 * {@link ActiveKeyValueStore#metadata()} reflects the keys and the directories directly under the store znode only.
+		 * The hierarchical layout cannot be combined with buckets, the materialized view, the key filter or prefix listeners.
+		 * </p>
+		 * 
+		 * @param enabled
+		 * 			Whether the keys are split over directories.
+		 * @return this builder
+		 */
+		public ActiveKeyValueStore.Builder setHierarchicalKeys(boolean enabled){
+			this.hierarchicalKeys = enabled;
+			return this;
+		}
+		
+		/**
+		 * Enables the warm start of the materialized view (see {@link #setMaterializedView(boolean)}) from a snapshot kept in a local file.
+		 * 
+		 * <p>
+		 * {@link ActiveKeyValueStore#saveSnapshot()} writes the mirror to the file in a compact binary form, along with the version and
+		 * the zxid of the last change of each key znode. When the store is built the file is read through a memory mapping and, instead of
+		 * fetching every value, the view checks each listed key against the snapshot with an <em>exists</em> request and only fetches the values
+		 * changed since. The requests are pipelined, so a large store whose keys rarely change is loaded for a fraction of the bytes.
+		 * A missing, corrupt or foreign file (of another store) is ignored and the view is loaded from the ZooKeeper server as usual.
+		 * </p>
+		 * 
+		 * @param file
+		 * 			The snapshot file.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if file is null
+		 */
+		public ActiveKeyValueStore.Builder setSnapshotFile(File file) throws NullPointerException{
+			if (file == null){
+				throw new NullPointerException();
+			}
+			this.snapshotFile = file;
+			return this;
+		}
+		
+		/**
+		 * Enables the change log: every change made through the store also appends a record of the changed keys to a log of sequential znodes,
+		 * so that a reader holding a copy of the store catches up with {@link ActiveKeyValueStore#changesSince(long)} after a disconnect or a
+		 * restart, at a cost that depends on the number of changes it missed rather than on the size of the store.
+		 * 
+		 * <p>
+		 * The log is kept in the znode whose path is the path of the store followed by <em>~log</em>. A record lists the changed keys, not their
+		 * values, and the changes of a bulk operation share records. The log is trimmed in the background to about the given number of most
+		 * recent records; a reader that missed trimmed records is told to reload the whole store. The record of a change is appended once the
+		 * change is made, and an error appending it is thrown by the operation although the change was made. The changes made by clients
+		 * without the change log enabled are not recorded, and {@link ActiveKeyValueStore#async()} is not available with the change log.
+		 * </p>
+		 * 
+		 * @param retainedRecords
+		 * 			The number of most recent records kept by the trimming.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if retainedRecords is not positive
+		 */
+		public ActiveKeyValueStore.Builder setChangeLog(int retainedRecords) throws IllegalArgumentException{
+			if (retainedRecords <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.changeLogRetainedRecords = retainedRecords;
+			return this;
+		}
+		
+		/**
+		 * Enables hedged reads over a pool of sessions (see {@link ZooKeeperHandles.HandleFactory#newHandlePool(String, int, int)}), to cut
+		 * the tail latency of the reads when a server stalls.
+		 * 
+		 * <p>
+		 * A read of a single key by {@link ActiveKeyValueStore#get(String)}, {@link ActiveKeyValueStore#getWithVersion(String)} or
+		 * {@link ActiveKeyValueStore#containsKey(String)} that has not been answered within the given percentile of the latencies of the recent
+		 * reads is sent again through another session of the pool, normally connected to another server, and the first answer is taken.
+		 * For example with the 95th percentile about one read in twenty goes out twice. The reads served by the near cache or the materialized
+		 * view are not hedged.
+		 * </p>
+		 * 
+		 * @param percentile
+		 * 			The percentile of the read latencies after which a read is hedged.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if percentile is not between 0 and 100 (exclusive)
+		 */
+		public ActiveKeyValueStore.Builder setHedgedReads(double percentile) throws IllegalArgumentException{
+			if (!(percentile > 0 && percentile < 100)){
+				throw new IllegalArgumentException();
+			}
+			this.hedgedReadsPercentile = percentile;
+			return this;
+		}
+		
+		/**
+		 * Admit the write requests of the store with the given limiter.
+		 * 
+		 * <p>
+		 * Every create, setData and delete request for a key is admitted by the limiter before it is sent, including each request of
+		 * {@link ActiveKeyValueStore#putAll(Map)} and {@link ActiveKeyValueStore#clear()}, so a bulk load cannot flood the ensemble. A large
+		 * value (see {@link #setChunkSize(int)}) is admitted as a single write. The limiter may queue the excess writes or reject them, in which
+		 * case the write operations throw a {@link WriteRejectedException} and the write is not made; {@link ActiveKeyValueStore#putAll(Map)}
+		 * reports the pairs it could not send instead (see {@link PutAllReport.Outcome#REJECTED}). The number of queued writes is returned
+		 * by {@link ActiveKeyValueStore#writeQueueDepth()}. See {@link WriteLimiters} for the built-in limiters.
+		 * </p>
+		 * 
+		 * @param writeLimiter
+		 * 			The limiter.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if writeLimiter is null
+		 */
+		public ActiveKeyValueStore.Builder setWriteLimiter(WriteLimiter writeLimiter) throws NullPointerException{
+			if (writeLimiter == null){
+				throw new NullPointerException();
+			}
+			this.writeLimiter = writeLimiter;
+			return this;
+		}
+	}
 	
+	/**
+	 * Construct a new Builder object with no components set.
+	 * 
+	 * @return a new builder
+	 */
+	public static ActiveKeyValueStore.Builder newBuilder(){
+		return new Builder();
+	}
+
+	/**
+	 * Return an {@link AsyncActiveKeyValueStore} over the same znode and session as this store. The writes through the returned store
+	 * drop the near cache entries and the shared reads of their keys in this store before their futures are completed.
+	 *
+	 * @return A new {@link AsyncActiveKeyValueStore} object.
+	 * @throws IllegalStateException
+	 * 			If this store has a value codec, chunked values or the change log enabled: the asynchronous store writes the
+	 * 			values as they are given and does not record its writes in the change log.
+	 */
+	public AsyncActiveKeyValueStore async() throws IllegalStateException{
+		if (valueCodec != null || chunkedValues != null || changeLog != null){
+			throw new IllegalStateException();
+		}
+		
+		return new AsyncActiveKeyValueStore(handle, layout, AsyncActiveKeyValueStore.DEFAULT_MAX_OUTSTANDING_REQUESTS, writeLimiter)
+			.notifyWrites(new AsyncActiveKeyValueStore.WriteListener() {
+				@Override
+				public void written(String keyZnodePath) {
+					invalidateCachedKey(keyZnodePath);
+				}
+			});
+	}
+
 	/**
 	 * Put the <em>(key,value)</em> pair given as parameters in the active key value store if and only if 
 	 * there isn't currently a mapping for the given key stored.
@@ -65,34 +777,199 @@ public class ActiveKeyValueStore {
 	/**
 	 * Put all the <em>(key,value)</em> pairs stored in the {@link Map} object passed as parameter in the active key-value store. 
 	 * The semantics for each of the <em>(key,value)</em> pair follow those of the {@link ActiveKeyValueStore#putIfAbsent(String, byte[])} method.
+	 * The pairs are inserted keeping the in-flight window of the store (see {@link Builder#setPipelineWindow(int)}).
 	 * 
 	 * @param entries
 	 * 			The entries to be stored in the active key-value store (must not be null). Note also that for each <em>(key,value)</em>
 	 * 			pair the key must also be not null.
+	 * @return A report of the outcome for each key.
 	 * @throws KeeperException
-	 * 			If the ZooKeeper server signaled an error.
+	 * 			If the session expired or the authentication failed, in which case none of the remaining pairs can be inserted.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 * @see #putAll(Map, int)
+	 */
+	public PutAllReport putAll(Map<String,byte []> entries) throws KeeperException, InterruptedException{
+		return putAll(entries, pipelineWindow);
+	}
+	
+	/**
+	 * Put all the <em>(key,value)</em> pairs stored in the {@link Map} object passed as parameter in the active key-value store. 
+	 * The semantics for each of the <em>(key,value)</em> pair follow those of the {@link ActiveKeyValueStore#putIfAbsent(String, byte[])} method.
+	 * 
+	 * <p>
+	 * The pairs are inserted concurrently: the create requests are pipelined over the session keeping at most window of them in flight.
+	 * The operation does not stop at the first key that already exists or fails; the outcome of each key is recorded in the returned report.
+	 * If the write limiter of the store rejects a create request (see {@link Builder#setWriteLimiter(WriteLimiter)}), that pair and the
+	 * pairs not sent yet are recorded as {@link PutAllReport.Outcome#REJECTED}, so that they can be inserted again later.
+	 * </p>
+	 * 
+	 * @param entries
+	 * 			The entries to be stored in the active key-value store (must not be null). Note also that for each <em>(key,value)</em>
+	 * 			pair the key must also be not null.
+	 * @param window
+	 * 			The maximum number of create requests kept in flight (must be positive).
+	 * @return A report of the outcome for each key.
+	 * @throws KeeperException
+	 * 			If the session expired or the authentication failed, in which case none of the remaining pairs can be inserted.
 	 * @throws IllegalArgumentException
-	 * 			If there exists an entry for the given key in one of the entries.
+	 * 			If window is not positive.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public void putAll(Map<String,byte []> entries) throws KeeperException, IllegalArgumentException, InterruptedException{
+	public PutAllReport putAll(Map<String,byte []> entries, int window) throws KeeperException, IllegalArgumentException, InterruptedException{
 		assert entries != null;
 		
-		Set<Map.Entry<String, byte []>> entrySet = entries.entrySet();
+		AsyncActiveKeyValueStore windowedPipeline = new AsyncActiveKeyValueStore(handle, layout, window, writeLimiter);
+		
+		Map<String, OperationFuture<Void>> futures = new LinkedHashMap<String, OperationFuture<Void>>();
+		Map<String, byte []> largeEntries = new LinkedHashMap<String, byte[]>();
+		PutAllReport report = new PutAllReport();
+		boolean rejected = false;
 		
-		// For each (key,value) pair
-		for (Map.Entry<String, byte []> entry : entrySet){
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (Map.Entry<String, byte []> entry : entries.entrySet()){
 			String key = entry.getKey();
 			assert key != null;
-			byte [] value = entry.getValue();
 			
+			if (rejected){
+				// once the write limiter rejects a request we stop sending, and the requests issued are gathered below
+				report.rejected(key);
+				continue;
+			}
+			
+			if (keyIndex != null){
+				// before the key is created, so that it is never seen absent after
+				keyIndex.add(key);
+			}
+			
+			byte [] value = encodeValue(entry.getValue());
+			
+			if (chunkedValues != null && chunkedValues.isLarge(value)){
+				// large values take several requests; they are inserted one by one (each pipelines its chunks)
+				largeEntries.put(key, value);
+				continue;
+			}
 			
-			// Insert the pair in the active key-value store.
-			makePair(key, value);
+			try{
+				futures.put(key, windowedPipeline.putIfAbsent(key, value));
+			}
+			catch(WriteRejectedException e){
+				rejected = true;
+				report.rejected(key);
+			}
 		}
 		
-		return ;
+		KeeperException fatal = null;
+		
+		for (Map.Entry<String, byte []> entry : largeEntries.entrySet()){
+			String key = entry.getKey();
+			
+			if (rejected){
+				report.rejected(key);
+				continue;
+			}
+			
+			try{
+				// already encoded
+				createPair(key, entry.getValue());
+				report.created(key);
+			}
+			catch(IllegalArgumentException exists){
+				report.alreadyExisted(key);
+			}
+			catch(WriteRejectedException e){
+				rejected = true;
+				report.rejected(key);
+			}
+			catch(KeeperException e){
+				report.failed(key, e);
+				
+				if (e instanceof KeeperException.SessionExpiredException || e instanceof KeeperException.AuthFailedException){
+					fatal = e;
+					break;
+				}
+			}
+		}
+		
+		List<String> created = new ArrayList<String>();
+		
+		// Gather the results
+		for (Map.Entry<String, OperationFuture<Void>> future : futures.entrySet()){
+			String key = future.getKey();
+			
+			try{
+				future.getValue().result();
+				report.created(key);
+				created.add(key);
+			}
+			catch(IllegalArgumentException exists){
+				if (chunkedValues != null && createOverPending(key, entries.get(key), report)){
+					continue;
+				}
+				report.alreadyExisted(key);
+			}
+			catch(KeeperException e){
+				report.failed(key, e);
+				
+				if (e instanceof KeeperException.SessionExpiredException || e instanceof KeeperException.AuthFailedException){
+					fatal = e;
+				}
+			}
+			finally{
+				invalidateCachedKey(layout.keyPath(key));
+			}
+		}
+		
+		if (fatal != null){
+			throw fatal;
+		}
+		
+		if (changeLog != null){
+			// the large values were logged as they were created
+			changeLog.append(created);
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * Retry the insertion of a pair of {@link #putAll(Map, int)} that found the key znode existing, in case it is a pending key
+	 * (which reads as absent and is created over). The outcome is recorded in the report unless the key exists.
+	 * 
+	 * @param key
+	 * 			The key.
+	 * @param value
+	 * 			The value, not encoded.
+	 * @param report
+	 * 			The report of the insertion.
+	 * @return True if the outcome was recorded and false if the key exists.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private boolean createOverPending(String key, byte [] value, PutAllReport report) throws InterruptedException{
+		try{
+			Stat stat = handle.getZooKeeper().exists(layout.keyPath(key), false);
+			
+			if (stat == null || !ChunkedValues.mayBeManifest(stat)){
+				// removed in the meantime (it was there when we tried), or it holds a value
+				return false;
+			}
+			
+			createPair(key, encodeValue(value));
+			report.created(key);
+		}
+		catch(IllegalArgumentException exists){
+			return false;
+		}
+		catch(WriteRejectedException e){
+			report.rejected(key);
+		}
+		catch(KeeperException e){
+			report.failed(key, e);
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -111,313 +988,2011 @@ public class ActiveKeyValueStore {
 	public void replace(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
 		assert key != null;
 		
+		if (writeBehind != null){
+			// written later, see Builder.setWriteBehind()
+			writeBehind.put(key, value);
+			return ;
+		}
+		
 		replacePair(key, value);
 	}
 	
 	/**
-	 * Retrieve the value associated with the given key (if any).
+	 * Write the replacements buffered by write-behind (see {@link Builder#setWriteBehind(long)}) and wait for them to complete. Does nothing
+	 * if write-behind is not enabled. The replacements that cannot be written stay buffered and the first error is thrown, except for the
+	 * keys that do not exist, whose replacements are dropped.
 	 * 
-	 * @param key
-	 * 			The key for which we want to retrieve the associated value (must not be null).
-	 * @return The value associated with the given key if there is a mapping for the given key; otherwise null is returned.
 	 * @throws KeeperException
-	 * 			If the ZooKeeper server signaled an error.
+	 * 			If the ZooKeeper server signaled an error for some key, now or in a background write since the last flush.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for some replaced key.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public byte [] get(String key) throws KeeperException, InterruptedException {
-		assert key != null;
-		
-		return value(key);
+	public void flush() throws KeeperException, IllegalArgumentException, InterruptedException{
+		if (writeBehind != null){
+			writeBehind.flush();
+		}
 	}
 	
 	/**
+	 * Release the resources of the store: the buffered replacements are written and the background writes of write-behind and the
+	 * trimming of the change log are stopped. The session is not closed. The store must not be used afterwards.
 	 * 
-	 * @param key
-	 * 			The key for which we want to test if there is currently a mapping stored in the active key-value store (must not be null).
-	 * @return True if there is a mapping for the given key and false otherwise.
 	 * @throws KeeperException
-	 * 			If the ZooKeeper server signaled an error.
+	 * 			If the ZooKeeper server signaled an error for some buffered key.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for some buffered key.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public boolean containsKey(String key) throws KeeperException, InterruptedException {
-		assert key != null;
-		
-		return keyExists(key);
+	public void close() throws KeeperException, IllegalArgumentException, InterruptedException{
+		if (changeLog != null){
+			changeLog.close();
+		}
+		if (writeBehind != null){
+			writeBehind.close();
+		}
 	}
 	
 	/**
-	 * Remove from the active key-value store the entry that has the given key.
+	 * Replace the value associated with the given key if and only if the value has not been changed since it was read
+	 * with {@link #getWithVersion(String)}.
+	 * 
+	 * <p>
+	 * This is a single conditional write: concurrent updaters do not overwrite each other, and no lock is needed.
+	 * </p>
 	 * 
 	 * @param key
-	 * 			The key for which we want to remove the (key,value) pair (must not be null).
+	 * 			The key for which we want to replace the associated value (must not be null).
+	 * @param expectedVersion
+	 * 			The version of the value as returned by {@link VersionedValue#version()} (must not be negative).
+	 * @param value
+	 * 			The new value for the key.
+	 * @return True if the value was replaced and false if the version of the value is not the expected version.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
 	 * @throws IllegalArgumentException
-	 * 			If there isn't a mapping for the given key in the active key-value store.
+	 * 			If there isn't an entry for the given key or expectedVersion is negative.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public void remove(String key) throws KeeperException, IllegalArgumentException, InterruptedException {
+	public boolean compareAndSet(String key, int expectedVersion, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
 		assert key != null;
 		
-		deletePair(key);
+		if (expectedVersion < 0){
+			// -1 would be taken by ZooKeeper as any version
+			throw new IllegalArgumentException();
+		}
+		
+		if (writeBehind != null){
+			writeBehind.flush(key);
+		}
+		
+		String keyZnodePath = layout.keyPath(key);
+		
+		value = encodeValue(value);
+		
+		boolean replaced = false;
+		
+		long admittedAt = admitWrite();
+		
+		try{
+			if (chunkedValues != null){
+				replaced = chunkedValues.compareAndSet(keyZnodePath, expectedVersion, value);
+			}
+			else{
+				handle.getZooKeeper().setData(keyZnodePath, value, expectedVersion);
+				replaced = true;
+			}
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			// somebody else changed the value
+			return false;
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// the key is not there
+			throw new IllegalArgumentException(noNode);
+		}
+		finally{
+			completeWrite(admittedAt);
+			invalidateCachedKey(keyZnodePath);
+		}
+		
+		if (replaced){
+			logChange(key);
+		}
+		
+		return replaced;
 	}
 	
 	/**
-	 * Retrieve all the <em>(key,value)</em> pairs currently stored in the active key-value store.
+	 * Atomically update the value associated with the given key with the value computed by the given function from the current one.
 	 * 
-	 * @return A {@link Set} object with all the entries in the active key-value store.
+	 * <p>
+	 * The current value is read with {@link #getWithVersion(String)} and the new value is written with {@link #compareAndSet(String, int, byte[])}
+	 * (or inserted, or the entry removed, as the function asks). If another update got in between, the function is applied again to the new value
+	 * after a short randomized backoff, which doubles on each retry. An uncontended update thus takes a read and a write.
+	 * A key whose large value is still pending (see {@link Builder#setChunkSize(int)}) reads as absent and the new value is inserted over it,
+	 * so an update does not wait for a pending value that may never be committed.
+	 * </p>
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param function
+	 * 			The function computing the new value from the current value, or from null if there isn't an entry for the key. If the function
+	 * 			returns null the entry for the key is removed (must not be null).
+	 * @return The new value associated with the key, or null if there is no entry for the key.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public Set<Map.Entry<String, byte []>> entrySet() throws KeeperException, InterruptedException{
-		Set<Map.Entry<String, byte []>> entries = new HashSet<Map.Entry<String,byte[]>>();
+	public byte [] compute(String key, ValueFunction function) throws KeeperException, InterruptedException{
+		assert key != null;
+		assert function != null;
 		
-		// Get all the keys currently in the active key-value store
-		List<String> keys = keys();
+		int backoff = MIN_BACKOFF_MILLIS;
 		
-		// For each key
-		for (String key : keys){
-			// Fetch the value associated with the key
-			byte [] value = value(key);
+		while (true){
+			VersionedValue current = getWithVersion(key);
+			byte [] value = function.apply(key, current == null ? null : current.value());
 			
-			// we get a null from value() if no mapping was found for that key.
-			// this can happen if the key is removed in between the call to the keys() method we made earlier
-			// and the point above that we asked for the value. We make no entry in this case.
-			if (value == null){
-				continue;
+			if (tryUpdate(key, current, value)){
+				return value;
 			}
 			
-			// Create the (key,value) entry.
-			Map.Entry<String, byte []> entry = new AbstractMap.SimpleEntry<String, byte []>(key,value);
-							
-			// add the entry to the set
-			entries.add(entry);
+			// we lost the race to another update. back off before trying again
+			Thread.sleep(1 + backoffJitter.nextInt(backoff));
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
 		}
+	}
+	
+	/**
+	 * Retrieve the value associated with the given key (if any).
+	 * 
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return The value associated with the given key if there is a mapping for the given key; otherwise null is returned.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public byte [] get(String key) throws KeeperException, InterruptedException {
+		assert key != null;
 		
-		return entries;
+		return value(key, true);
 	}
 	
 	/**
-	 * Check whether the active key-value store is empty or not.
+	 * Retrieve a read-only view of the value associated with the given key (if any).
 	 * 
-	 * @return True if the active key-value store is empty and false otherwise.
+	 * <p>
+	 * Unlike {@link #get(String)} the value is not copied when it is served from the near cache or the materialized view,
+	 * so a hit does not allocate a copy of the value.
+	 * </p>
+	 * 
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return A read-only {@link ByteBuffer} over the value associated with the given key if there is a mapping for the given key; otherwise null is returned.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public boolean isEmpty() throws KeeperException, InterruptedException {
-		return keys().isEmpty();
+	public ByteBuffer getBuffer(String key) throws KeeperException, InterruptedException {
+		assert key != null;
+		
+		byte [] value = value(key, false);
+		
+		return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
 	}
 	
 	/**
-	 * Return the number of <em>(key,value)</em> entries stored in the active key-value store.
+	 * Retrieve the value associated with the given key together with its version, for a later {@link #compareAndSet(String, int, byte[])}.
 	 * 
-	 * @return The number of <em>(key,value)</em> entries stored in the active key-value store.
+	 * <p>
+	 * The value is always read from the ZooKeeper server, even if a near cache or a materialized view is enabled. It is read through the
+	 * primary session of a {@link ZooKeeperHandlePool}, the session the writes go through, so a write based on it does not start from
+	 * a value older than the writes of this client.
+	 * </p>
+	 * 
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return The value associated with the given key and its version if there is a mapping for the given key; otherwise null is returned.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public int size() throws KeeperException, InterruptedException {
-		return keys().size();
+	public VersionedValue getWithVersion(String key) throws KeeperException, InterruptedException {
+		assert key != null;
+		
+		if (writeBehind != null){
+			writeBehind.flush(key);
+		}
+		
+		Stat stat = new Stat();
+		byte [] data = null;
+		
+		try{
+			data = handle.getZooKeeper().getData(layout.keyPath(key), false, stat);
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// the znode was not found so there isn't a mapping for the given key. no error here
+			return null;
+		}
+		
+		byte [] value = resolveValue(key, data);
+		
+		if (value == null && ChunkedValues.isManifest(data)){
+			// the key is still being created or has been removed in the meantime
+			return null;
+		}
+		
+		return new VersionedValue(value, stat);
 	}
 	
 	/**
-	 * This operation is currently not implemented.
+	 * Retrieve the values associated with the given keys.
 	 * 
-	 * @throws OperationNotSupportedException
-	 * 			Always.
+	 * <p>
+	 * The values are fetched concurrently: the requests are pipelined over the session keeping a bounded number of them in flight
+	 * (see {@link #ActiveKeyValueStore(ZooKeeperHandle, String, int)}), so the time taken is bounded by the throughput of the ZooKeeper
+	 * server and not by the round trip time multiplied by the number of keys.
+	 * </p>
+	 * 
+	 * @param keys
+	 * 			The keys for which we want to retrieve the associated values (must not be null and must not contain null).
+	 * @return A {@link Map} object with an entry for each of the given keys that has a mapping in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	public void clear() throws OperationNotSupportedException{
-		throw new OperationNotSupportedException();
+	public Map<String, byte []> getAll(Collection<String> keys) throws KeeperException, InterruptedException {
+		assert keys != null;
+		
+		Map<String, OperationFuture<byte []>> futures = new LinkedHashMap<String, OperationFuture<byte []>>();
+		
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (String key : keys){
+			assert key != null;
+			
+			futures.put(key, pipeline.get(key));
+		}
+		
+		Map<String, byte []> values = new HashMap<String, byte[]>();
+		
+		// Gather the results
+		for (Map.Entry<String, OperationFuture<byte []>> future : futures.entrySet()){
+			byte [] value = resolveValue(future.getKey(), future.getValue().result());
+			
+			// we get a null if no mapping was found for that key. We make no entry in this case.
+			if (value != null){
+				values.put(future.getKey(), value);
+			}
+		}
+		
+		return values;
 	}
 	
+	/**
+	 * 
+	 * @param key
+	 * 			The key for which we want to test if there is currently a mapping stored in the active key-value store (must not be null).
+	 * @return True if there is a mapping for the given key and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean containsKey(String key) throws KeeperException, InterruptedException {
+		assert key != null;
+		
+		return keyExists(key);
+	}
 	
 	/**
-	 * Retrieve a list of all the keys in the active key-value store.
+	 * Remove from the active key-value store the entry that has the given key.
 	 * 
-	 * @return A {@link List} object with all the keys stored in the active key-value store.
+	 * @param key
+	 * 			The key for which we want to remove the (key,value) pair (must not be null).
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't a mapping for the given key in the active key-value store.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private List<String> keys() throws KeeperException, InterruptedException{
-		List<String> children = handle.getZooKeeper().getChildren(activeKeyValueStoreZNodePath, false);
-		List<String> keysList = new LinkedList<String>();
+	public void remove(String key) throws KeeperException, IllegalArgumentException, InterruptedException {
+		assert key != null;
 		
-		// For each child znode
-		for (String child : children){
-			// extract the key part of the znode path
-			// it is after activeKeyValueStoreZNodePath.getPath() + "/"
-			keysList.add(new String(child.substring(activeKeyValueStoreZNodePath.length() + 1)));
+		if (writeBehind != null){
+			// no point in writing a value that is removed
+			writeBehind.discard(key);
 		}
 		
-		return keysList;
+		deletePair(key);
 	}
 	
 	/**
-	 * Retrieve the value associated with the given key.
+	 * Retrieve all the <em>(key,value)</em> pairs currently stored in the active key-value store.
 	 * 
-	 * @param key 
-	 * 			The key for which we want to retrieve the value (must not be null).
-	 * @return The value associated with the given key or null if there is no mapping for the key.
+	 * @return A {@link Set} object with all the entries in the active key-value store.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private byte [] value(String key) throws KeeperException, InterruptedException{
-		assert key != null;
+	public Set<Map.Entry<String, byte []>> entrySet() throws KeeperException, InterruptedException{
+		Set<Map.Entry<String, byte []>> entries = new HashSet<Map.Entry<String,byte[]>>();
 		
-		// Fetch the value associated with the key
-		byte [] data = null;
+		List<Map<String, VersionedValue>> snapshots = viewSnapshots();
 		
-		try{
-			// The key is represented in the active key-value store as a child of the
-			// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
-			// and we create the path to the child representing the key.
-			String keyZnodePath = activeKeyValueStoreZNodePath + "/" + key;
-						
-			data = handle.getZooKeeper().getData(keyZnodePath, false, null);
+		if (snapshots != null){
+			// serve the entries from the materialized view
+			for (Map<String, VersionedValue> snapshot : snapshots){
+				for (Map.Entry<String, VersionedValue> value : snapshot.entrySet()){
+					byte [] resolved = resolveValue(value.getKey(), value.getValue().value());
+					
+					// a chunked value may be pending or gone by now
+					if (resolved != null){
+						entries.add(new AbstractMap.SimpleEntry<String, byte []>(value.getKey(),resolved));
+					}
+				}
+			}
+			
+			return entries;
 		}
-		catch(KeeperException.NoNodeException noNode){
-			// the znode was not found so there isn't a mapping for the given key. no error here
+		
+		// Get all the keys currently in the active key-value store and fetch their values.
+		// A key that is removed in between the call to the keys() method and the point we ask for its value
+		// is not included in the result of getAll(). We make no entry in this case.
+		Map<String, byte []> values = getAll(keys());
+		
+		for (Map.Entry<String, byte []> value : values.entrySet()){
+			// Create the (key,value) entry.
+			Map.Entry<String, byte []> entry = new AbstractMap.SimpleEntry<String, byte []>(value.getKey(),value.getValue());
+							
+			// add the entry to the set
+			entries.add(entry);
 		}
 		
-		return data;
+		return entries;
 	}
 	
 	/**
-	 * Check whether there is an entry with the given key or not.
+	 * Retrieve the entries whose keys start with the given prefix, such as all the keys starting with <em>tenant42/</em>.
 	 * 
-	 * @param key
-	 * 			The key for which we want to find whether there is an entry with it or not (must not be null).
-	 * @return True if there is an entry with the given key and false otherwise.
+	 * <p>
+	 * With the hierarchical layout (see {@link Builder#setHierarchicalKeys(boolean)}) only the subtree of the prefix is listed,
+	 * so the cost is proportional to the number of matching keys. Otherwise all the keys are listed and filtered locally.
+	 * In both cases the values of the matching keys are fetched pipelined, as {@link #getAll(Collection)} does.
+	 * </p>
+	 * 
+	 * @param prefix
+	 * 			The prefix of the keys (must not be null). The empty prefix selects all the keys.
+	 * @return A {@link SortedMap} object with the matching entries in the order of their keys. A key removed while scanning is not included.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
+	 * @throws NullPointerException
+	 * 			If prefix is null.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private boolean keyExists(String key) throws KeeperException, InterruptedException{
-		assert key != null;
+	public SortedMap<String, byte []> scanPrefix(String prefix) throws KeeperException, NullPointerException, InterruptedException{
+		if (prefix == null){
+			throw new NullPointerException();
+		}
 		
-		// The key is represented in the active key-value store as a child of the
-		// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
-		// and we create the path to the child representing the key.
-		String keyZnodePath = activeKeyValueStoreZNodePath + "/" + key;
-					
-		// Check if the active key-value store contains a mapping for the given key
-		Stat keyZnodeStat = handle.getZooKeeper().exists(keyZnodePath, false);
-		boolean keyZnodeExists = keyZnodeStat != null;
+		List<String> matchingKeys = null;
 		
-		return keyZnodeExists;
+		if (layout.isHierarchical()){
+			matchingKeys = hierarchicalKeys(prefix);
+		}
+		else{
+			matchingKeys = new ArrayList<String>();
+			
+			for (String key : keys()){
+				if (key.startsWith(prefix)){
+					matchingKeys.add(key);
+				}
+			}
+		}
+		
+		return new TreeMap<String, byte []>(getAll(matchingKeys));
 	}
 	
+	/**
+	 * Iterate over the keys currently stored in the active key-value store.
+	 * 
+	 * <p>
+	 * Unlike {@link #entrySet()} the keys are not gathered up front. With the bucketed layout (see {@link Builder#setBuckets(int)})
+	 * the keys are listed a bucket at a time, with the listing of the next bucket in flight while the current one is consumed, so only
+	 * a bucket worth of keys is held at any time. With the flat layout the keys are listed at once, since ZooKeeper has no paged listing.
+	 * </p>
+	 * 
+	 * @return A {@link StoreIterator} over the keys.
+	 */
+	public StoreIterator<String> keyIterator(){
+		return new KeyIterator();
+	}
 	
 	/**
-	 * Replace the value associated with the given key.
+	 * Iterate over the <em>(key,value)</em> pairs currently stored in the active key-value store, keeping the values of the
+	 * next keys in flight up to the in-flight window of the store (see {@link Builder#setPipelineWindow(int)}).
 	 * 
-	 * @param key
-	 * 			The key for which we want to change the associated value (must not be null).
-	 * @param value
-	 * 			The new value for the key.
+	 * @return A {@link StoreIterator} over the entries.
+	 * @see #entryIterator(int)
+	 */
+	public StoreIterator<Map.Entry<String, byte []>> entryIterator(){
+		return entryIterator(pipelineWindow);
+	}
+	
+	/**
+	 * Iterate over the <em>(key,value)</em> pairs currently stored in the active key-value store.
+	 * 
+	 * <p>
+	 * The keys are listed as in {@link #keyIterator()} and the values are fetched ahead of the iteration, keeping at most
+	 * prefetch of them in flight or fetched but not yet returned. Memory is thus bounded by the size of a listing and the
+	 * prefetched values, instead of the size of the whole store as with {@link #entrySet()}. A key removed between its listing
+	 * and the fetch of its value is skipped.
+	 * </p>
+	 * 
+	 * @param prefetch
+	 * 			The maximum number of values fetched ahead (must be positive).
+	 * @return A {@link StoreIterator} over the entries.
+	 * @throws IllegalArgumentException
+	 * 			If prefetch is not positive.
+	 */
+	public StoreIterator<Map.Entry<String, byte []>> entryIterator(int prefetch) throws IllegalArgumentException{
+		if (prefetch <= 0){
+			throw new IllegalArgumentException();
+		}
+		return new EntryIterator(prefetch);
+	}
+	
+	/**
+	 * Check whether the active key-value store is empty or not.
+	 * 
+	 * @return True if the active key-value store is empty and false otherwise.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
-	 * @throws IllegalArgumentException
-	 * 			If there isn't an entry for the given key.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private void replacePair(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
-		assert key != null;
-		
-		// The key is represented in the active key-value store as a child of the
-		// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
-		// and we create the path to the child representing the key.
-		String keyZnodePath = activeKeyValueStoreZNodePath + "/" + key;
+	public boolean isEmpty() throws KeeperException, InterruptedException {
+		List<Map<String, VersionedValue>> snapshots = viewSnapshots();
 		
-		try{
-			// change the data in the znode for the key
-			handle.getZooKeeper().setData(keyZnodePath, value, -1);
+		if (snapshots != null){
+			for (Map<String, VersionedValue> snapshot : snapshots){
+				if (!snapshot.isEmpty()){
+					return false;
+				}
+			}
+			return true;
 		}
-		catch(KeeperException.NoNodeException noNode){
-			// we get a NoNode exception from setData() if no znode was found with the given path.
-			// in this case the key is not there and we throw a IllegalArgumentException
-			throw new IllegalArgumentException(noNode);
+		
+		if (layout.isHierarchical()){
+			// the store znode may only hold empty directories
+			return keys().isEmpty();
 		}
 		
-		return ;
+		return metadata().isEmpty();
 	}
 	
 	/**
-	 * Insert the pair <em>(key,value)</em> in the active key-value store.
+	 * Return the number of <em>(key,value)</em> entries stored in the active key-value store.
 	 * 
-	 * @param key
-	 * 			The key (must not be null).
-	 * @param value
-	 * 			The value associated with the key.
+	 * @return The number of <em>(key,value)</em> entries stored in the active key-value store.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
-	 * @throws IllegalArgumentException
-	 * 			If there exists an entry for the given key.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private void makePair(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
-		assert key != null;
+	public int size() throws KeeperException, InterruptedException {
+		List<Map<String, VersionedValue>> snapshots = viewSnapshots();
 		
-		try{
-			// to insert the pair means to create a znode with the name activeKeyValueStoreZNodePath.getPath() + "/" + key
-			// and storing the value as data for the znode
-			String keyZnodePath = activeKeyValueStoreZNodePath + "/" + key;
+		if (snapshots != null){
+			int size = 0;
 			
-			handle.getZooKeeper().create(keyZnodePath, value, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			for (Map<String, VersionedValue> snapshot : snapshots){
+				size += snapshot.size();
+			}
+			return size;
 		}
-		catch(KeeperException.NodeExistsException nodeExists){
-			// we already have a entry for the key so we throw a IllegalArgumentException
-			throw new IllegalArgumentException(nodeExists);
+		
+		if (layout.isHierarchical()){
+			return keys().size();
 		}
 		
-		return ;
+		return metadata().size();
 	}
 	
 	/**
-	 * Remove from the active key-value store the entry for the given key.
+	 * Return the zxid of the last addition or removal of a key (see {@link StoreMetadata#lastModifiedZxid()}).
 	 * 
-	 * @param key
-	 * 			The key for which we want to remove the entry (must not be null).
+	 * @return The zxid.
 	 * @throws KeeperException
 	 * 			If the ZooKeeper server signaled an error.
-	 * @throws IllegalArgumentException
-	 * 			If there isn't an entry for the given key.
 	 * @throws InterruptedException
 	 * 			If the transaction with ZooKeeper was interrupted.
 	 */
-	private void deletePair(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
-		assert key != null;
-		
-		try{
-			// The key is represented in the active key-value store as a child of the
-			// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
-			// and we create the path to the child representing the key.
-			String keyZnodePath = activeKeyValueStoreZNodePath + "/" + key;
+	public long lastModifiedZxid() throws KeeperException, InterruptedException {
+		return metadata().lastModifiedZxid();
+	}
+	
+	/**
+	 * Return the version of the set of keys (see {@link StoreMetadata#childrenVersion()}).
+	 * 
+	 * @return The version.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int childrenVersion() throws KeeperException, InterruptedException {
+		return metadata().childrenVersion();
+	}
+	
+	/**
+	 * Read the number of keys, the zxid of the last addition or removal of a key and the version of the set of keys
+	 * of the active key-value store at once.
+	 * 
+	 * <p>
+	 * The metadata is read from the {@link Stat} of the znode representing the store (or of each bucket, concurrently, for the bucketed layout),
+	 * so the replies have a fixed size whatever the number of keys. This is the cheap way to poll a store for changes in its set of keys.
+	 * </p>
+	 * 
+	 * @return The metadata of the store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public StoreMetadata metadata() throws KeeperException, InterruptedException {
+		if (!layout.isBucketed()){
+			Stat stat = readZooKeeper().exists(activeKeyValueStoreZNodePath, false);
+			
+			if (stat == null){
+				throw KeeperException.create(KeeperException.Code.NONODE, activeKeyValueStoreZNodePath);
+			}
 			
-			// delete the (key,value) pair by deleting the znode
-			handle.getZooKeeper().delete(keyZnodePath, -1);
+			return new StoreMetadata(stat.getNumChildren(), stat.getPzxid(), stat.getCversion());
 		}
-		catch(KeeperException.NoNodeException noNode){
-			// We get a NoNodeException from delete() if the znode does not exist.
-			// This means that the (key,value) pair is not stored so we throw a IllegalArgumentException.
-			throw new IllegalArgumentException(noNode);
+		
+		List<OperationFuture<Stat>> futures = new ArrayList<OperationFuture<Stat>>(layout.buckets());
+		
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (int bucket = 0; bucket < layout.buckets(); ++bucket){
+			futures.add(pipeline.bucketStat(bucket));
 		}
 		
-		return ;
+		int size = 0;
+		long lastModifiedZxid = 0;
+		int childrenVersion = 0;
+		
+		// Gather the results. The version of each bucket only increases so their sum does too.
+		for (OperationFuture<Stat> future : futures){
+			Stat stat = future.result();
+			
+			// we get a null for a bucket not created yet
+			if (stat != null){
+				size += stat.getNumChildren();
+				lastModifiedZxid = Math.max(lastModifiedZxid, stat.getPzxid());
+				childrenVersion += stat.getCversion();
+			}
+		}
+		
+		return new StoreMetadata(size, lastModifiedZxid, childrenVersion);
+	}
+	
+	/**
+	 * Remove all the entries of the active key-value store.
+	 * 
+	 * @return The number of entries removed.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 * @see #clear(ProgressListener)
+	 */
+	public int clear() throws KeeperException, InterruptedException{
+		return clear(null);
+	}
+	
+	/**
+	 * Remove all the entries of the active key-value store, reporting the progress to the given listener.
+	 * 
+	 * <p>
+	 * The key znodes are deleted pipelined, keeping the in-flight window of the store (see {@link Builder#setPipelineWindow(int)}), and
+	 * the chunks of the large values and the bucket znodes are deleted along with them. The keys are listed and deleted repeatedly until
+	 * a listing finds no keys, so keys inserted concurrently are removed too and the znode representing the store is left without children.
+	 * The replacements buffered by write-behind are dropped.
+	 * </p>
+	 * 
+	 * @param listener
+	 * 			Notified with the number of entries removed so far, every in-flight window worth of entries and at the end (may be null).
+	 * @return The number of entries removed.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int clear(ProgressListener listener) throws KeeperException, InterruptedException{
+		if (writeBehind != null){
+			writeBehind.discardAll();
+		}
+		
+		int removed = 0;
+		
+		try{
+			if (!layout.isBucketed()){
+				removed = deleteChildren(activeKeyValueStoreZNodePath, listener, 0);
+			}
+			else{
+				while (true){
+					List<String> buckets = handle.getZooKeeper().getChildren(activeKeyValueStoreZNodePath, false);
+					
+					if (buckets.isEmpty()){
+						break;
+					}
+					
+					for (String bucket : buckets){
+						String bucketPath = activeKeyValueStoreZNodePath + "/" + bucket;
+						
+						removed = deleteChildren(bucketPath, listener, removed);
+						
+						try{
+							handle.getZooKeeper().delete(bucketPath, -1);
+						}
+						catch(KeeperException.NotEmptyException notEmpty){
+							// a key was inserted in the meantime. we get to it in the next round
+						}
+						catch(KeeperException.NoNodeException noNode){
+							// somebody else deleted the bucket. no error here
+						}
+					}
+				}
+			}
+		}
+		finally{
+			if (nearCache != null){
+				nearCache.invalidateAll();
+			}
+			
+			keyReads.forgetAll();
+			keyChecks.forgetAll();
+			writes.incrementAndGet();
+		}
+		
+		if (changeLog != null){
+			changeLog.appendClear();
+		}
+		
+		if (listener != null){
+			listener.progress(removed);
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Return the memory taken by the key filter (see {@link Builder#setKeyFilter(int, double)}), including a filter being rebuilt.
+	 * 
+	 * @return The number of bytes, or zero if the key filter is not enabled.
+	 */
+	public long keyFilterSizeInBytes(){
+		return keyIndex == null ? 0 : keyIndex.sizeInBytes();
+	}
+	
+	/**
+	 * Write the current mirror of the materialized view to the snapshot file (see {@link Builder#setSnapshotFile(File)}), replacing
+	 * the previous snapshot. Call it before closing the store, or periodically, so that the next start is warm.
+	 * 
+	 * @return True if the snapshot was written and false if the materialized view is not usable at the moment
+	 * 			(it is still loading or the session has expired).
+	 * @throws IOException
+	 * 			If the file cannot be written.
+	 * @throws IllegalStateException
+	 * 			If the snapshot file is not enabled.
+	 */
+	public boolean saveSnapshot() throws IOException, IllegalStateException{
+		if (snapshotFile == null){
+			throw new IllegalStateException();
+		}
+		
+		List<Map<String, VersionedValue>> snapshots = viewSnapshots();
+		
+		if (snapshots == null){
+			return false;
+		}
+		
+		Map<String, VersionedValue> entries = new HashMap<String, VersionedValue>();
+		
+		for (Map<String, VersionedValue> snapshot : snapshots){
+			entries.putAll(snapshot);
+		}
+		
+		SnapshotFile.write(snapshotFile, activeKeyValueStoreZNodePath, entries);
+		
+		return true;
+	}
+	
+	/**
+	 * Read the changes recorded in the change log (see {@link Builder#setChangeLog(int)}) after the given sequence number.
+	 * 
+	 * <p>
+	 * A reader takes {@link #changeLogSequence()} before loading its copy of the store and then catches up from it with this method,
+	 * keeping {@link StoreChanges#lastSequence()} for the next time.
+	 * </p>
+	 * 
+	 * @param sequence
+	 * 			The last sequence number seen by the reader, or -1 to read the whole log.
+	 * @return The changes.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalStateException
+	 * 			If the change log is not enabled.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public StoreChanges changesSince(long sequence) throws KeeperException, IllegalStateException, InterruptedException{
+		if (changeLog == null){
+			throw new IllegalStateException();
+		}
+		
+		return changeLog.read(sequence);
+	}
+	
+	/**
+	 * Return the sequence number of the last change recorded in the change log (see {@link Builder#setChangeLog(int)}). The keys are not read.
+	 * 
+	 * @return The sequence number, or -1 if no change was recorded yet.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalStateException
+	 * 			If the change log is not enabled.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public long changeLogSequence() throws KeeperException, IllegalStateException, InterruptedException{
+		if (changeLog == null){
+			throw new IllegalStateException();
+		}
+		
+		return changeLog.lastSequence();
+	}
+	
+	/**
+	 * Return the number of writes currently queued by the write limiter (see {@link Builder#setWriteLimiter(WriteLimiter)}).
+	 * 
+	 * @return The number of queued writes.
+	 * @throws IllegalStateException
+	 * 			If the write limiter is not enabled.
+	 */
+	public int writeQueueDepth() throws IllegalStateException{
+		if (writeLimiter == null){
+			throw new IllegalStateException();
+		}
+		
+		return writeLimiter.queueDepth();
+	}
+	
+	/**
+	 * Register a listener for the changes of the given key. Same as {@link #addListener(String, KeyListener, WatchEvent.Modifier)}
+	 * with {@link WatchEvent.Modifier#PERSISTENT}.
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param listener
+	 * 			The listener (must not be null).
+	 * @throws NullPointerException
+	 * 			If key or listener is null.
+	 */
+	public void addListener(String key, KeyListener listener) throws NullPointerException{
+		addListener(key, listener, WatchEvent.Modifier.PERSISTENT);
+	}
+	
+	/**
+	 * Register a listener for the changes of the given key: its creation, the replacement of its value and its removal.
+	 * 
+	 * <p>
+	 * The changes are detected through ZooKeeper watches which are re-armed automatically, re-reading the key so that no change is
+	 * missed; changes made in quick succession may be reported as one event with the latest value (see {@link KeyEvent}). Changes made
+	 * through the write-behind buffer (see {@link Builder#setWriteBehind(long)}) are reported once flushed. The listener is called from
+	 * the event thread of the {@link org.apache.zookeeper.ZooKeeper} client object and no more events are delivered once the session expires.
+	 * </p>
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param listener
+	 * 			The listener (must not be null).
+	 * @param modifier
+	 * 			{@link WatchEvent.Modifier#PERSISTENT} to be notified of all the changes until the listener is removed,
+	 * 			or {@link WatchEvent.Modifier#ONE_SHOT} to be notified of the next change only (must not be null).
+	 * @throws NullPointerException
+	 * 			If any of the arguments is null.
+	 */
+	public void addListener(String key, KeyListener listener, WatchEvent.Modifier modifier) throws NullPointerException{
+		if (key == null || listener == null || modifier == null){
+			throw new NullPointerException();
+		}
+		
+		keySubscriptions.addKeyListener(key, listener, modifier);
+	}
+	
+	/**
+	 * Register a listener for the changes of the keys starting with the given prefix. Same as
+	 * {@link #addPrefixListener(String, KeyListener, WatchEvent.Modifier)} with {@link WatchEvent.Modifier#PERSISTENT}.
+	 * 
+	 * @param prefix
+	 * 			The prefix of the keys (must not be null).
+	 * @param listener
+	 * 			The listener (must not be null).
+	 * @throws NullPointerException
+	 * 			If prefix or listener is null.
+	 * @throws IllegalStateException
+	 * 			If the store has the hierarchical layout.
+	 */
+	public void addPrefixListener(String prefix, KeyListener listener) throws NullPointerException, IllegalStateException{
+		addPrefixListener(prefix, listener, WatchEvent.Modifier.PERSISTENT);
+	}
+	
+	/**
+	 * Register a listener for the changes of the keys starting with the given prefix, including the keys created later.
+	 * See {@link #addListener(String, KeyListener, WatchEvent.Modifier)} for the delivery of the events; a
+	 * {@link WatchEvent.Modifier#ONE_SHOT} listener is notified of the next change of any of the keys.
+	 * 
+	 * <p>
+	 * A watch is left on each existing key with the prefix, so the prefix should be selective for large stores.
+	 * </p>
+	 * 
+	 * @param prefix
+	 * 			The prefix of the keys (must not be null). The empty prefix matches all the keys.
+	 * @param listener
+	 * 			The listener (must not be null).
+	 * @param modifier
+	 * 			The modifier of the registration (must not be null).
+	 * @throws NullPointerException
+	 * 			If any of the arguments is null.
+	 * @throws IllegalStateException
+	 * 			If the store has the hierarchical layout (see {@link Builder#setHierarchicalKeys(boolean)}).
+	 */
+	public void addPrefixListener(String prefix, KeyListener listener, WatchEvent.Modifier modifier) throws NullPointerException, IllegalStateException{
+		if (prefix == null || listener == null || modifier == null){
+			throw new NullPointerException();
+		}
+		else if (layout.isHierarchical()){
+			throw new IllegalStateException();
+		}
+		
+		keySubscriptions.addPrefixListener(prefix, listener, modifier);
+	}
+	
+	/**
+	 * Unregister all the registrations of the given listener. Events already being delivered may still reach it.
+	 * 
+	 * @param listener
+	 * 			The listener (must not be null).
+	 * @throws NullPointerException
+	 * 			If listener is null.
+	 */
+	public void removeListener(KeyListener listener) throws NullPointerException{
+		if (listener == null){
+			throw new NullPointerException();
+		}
+		
+		keySubscriptions.removeListener(listener);
+	}
+	
+	
+	/**
+	 * Retrieve a list of all the keys in the active key-value store.
+	 * 
+	 * @return A {@link List} object with all the keys stored in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private List<String> keys() throws KeeperException, InterruptedException{
+		if (layout.isBucketed()){
+			return bucketedKeys();
+		}
+		else if (layout.isHierarchical()){
+			return hierarchicalKeys("");
+		}
+		
+		List<String> children = readZooKeeper().getChildren(activeKeyValueStoreZNodePath, false);
+		List<String> keysList = new LinkedList<String>();
+		
+		// For each child znode
+		for (String child : children){
+			// getChildren() returns the names of the child znodes (relative to activeKeyValueStoreZNodePath)
+			// which are the keys themselves
+			keysList.add(child);
+		}
+		
+		return keysList;
+	}
+	
+	/**
+	 * Retrieve a list of all the keys in the active key-value store with the bucketed layout. The buckets are listed concurrently.
+	 * 
+	 * @return A {@link List} object with all the keys stored in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private List<String> bucketedKeys() throws KeeperException, InterruptedException{
+		List<OperationFuture<List<String>>> futures = new ArrayList<OperationFuture<List<String>>>(layout.buckets());
+		
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (int bucket = 0; bucket < layout.buckets(); ++bucket){
+			futures.add(pipeline.bucketKeys(bucket));
+		}
+		
+		List<String> keysList = new LinkedList<String>();
+		
+		// Gather the results
+		for (OperationFuture<List<String>> future : futures){
+			keysList.addAll(future.result());
+		}
+		
+		return keysList;
+	}
+	
+	/**
+	 * Retrieve a list of the keys starting with the given prefix in the active key-value store with the hierarchical layout.
+	 * Only the subtree of the directory of the prefix is walked, a level at a time with the directories of each level listed concurrently.
+	 * 
+	 * @param prefix
+	 * 			The prefix of the keys (must not be null). The empty prefix selects all the keys.
+	 * @return A {@link List} object with the keys starting with the prefix.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private List<String> hierarchicalKeys(String prefix) throws KeeperException, InterruptedException{
+		// the keys with the prefix are under the directory of the part of the prefix up to the last slash,
+		// and their next part starts with the rest of the prefix
+		int slash = prefix.lastIndexOf('/');
+		String partPrefix = prefix.substring(slash + 1);
+		String startPath = slash < 0 ? activeKeyValueStoreZNodePath : layout.directoryPath(prefix.substring(0, slash));
+		
+		// the directories to list in the current level, mapped to the leading parts of the keys under them
+		Map<String, String> level = Collections.singletonMap(startPath, prefix.substring(0, slash + 1));
+		List<String> keysList = new ArrayList<String>();
+		boolean first = true;
+		
+		while (!level.isEmpty()){
+			Map<String, OperationFuture<List<String>>> futures = new LinkedHashMap<String, OperationFuture<List<String>>>();
+			
+			// Issue all the requests. The pipeline blocks us here whenever the window is full.
+			for (String directoryPath : level.keySet()){
+				futures.put(directoryPath, pipeline.children(directoryPath));
+			}
+			
+			Map<String, String> nextLevel = new LinkedHashMap<String, String>();
+			
+			// Gather the results
+			for (Map.Entry<String, OperationFuture<List<String>>> future : futures.entrySet()){
+				String leadingParts = level.get(future.getKey());
+				
+				for (String name : future.getValue().result()){
+					boolean directory = layout.isDirectory(name);
+					String part = directory ? name.substring(0, name.length() - KeyLayout.DIRECTORY_SUFFIX.length()) : name;
+					
+					if (first && !part.startsWith(partPrefix)){
+						continue;
+					}
+					
+					if (directory){
+						nextLevel.put(future.getKey() + "/" + name, leadingParts + part + "/");
+					}
+					else{
+						keysList.add(leadingParts + part);
+					}
+				}
+			}
+			
+			level = nextLevel;
+			first = false;
+		}
+		
+		return keysList;
+	}
+	
+	/**
+	 * Retrieve the value associated with the given key.
+	 * 
+	 * @param key 
+	 * 			The key for which we want to retrieve the value (must not be null).
+	 * @param copy
+	 * 			Whether a value held locally is copied. If false the caller must not change the returned array.
+	 * @return The value associated with the given key or null if there is no mapping for the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private byte [] value(String key, boolean copy) throws KeeperException, InterruptedException{
+		assert key != null;
+		
+		// Fetch the value associated with the key
+		byte [] data = null;
+		
+		try{
+			// The key is represented in the active key-value store as a child of the
+			// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
+			// and we create the path to the child representing the key.
+			final String keyZnodePath = layout.keyPath(key);
+			
+			Map<String, VersionedValue> snapshot = viewSnapshot(key);
+			Map.Entry<String, byte []> buffered = writeBehind == null ? null : writeBehind.get(key);
+			
+			if (buffered != null){
+				// the latest value is not written yet
+				return buffered.getValue();
+			}
+			else if (snapshot != null){
+				VersionedValue value = snapshot.get(key);
+				
+				data = value == null ? null : copy ? value.value() : value.sharedValue();
+			}
+			else if (keyIndex != null && keyIndex.isAbsent(key)){
+				return null;
+			}
+			else if (nearCache != null){
+				// the near cache returns null if there is no znode for the key
+				data = nearCache.getData(keyZnodePath, copy);
+			}
+			else{
+				// concurrent readers of the key share the request
+				data = keyReads.execute(keyZnodePath, new SingleFlight.Request<byte []>() {
+					@Override
+					public byte [] execute() throws KeeperException, InterruptedException {
+						return readData(keyZnodePath, null);
+					}
+				});
+			}
+			
+			data = resolveValue(key, data);
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// the znode was not found so there isn't a mapping for the given key. no error here
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Check whether there is an entry with the given key or not.
+	 * 
+	 * @param key
+	 * 			The key for which we want to find whether there is an entry with it or not (must not be null).
+	 * @return True if there is an entry with the given key and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private boolean keyExists(String key) throws KeeperException, InterruptedException{
+		assert key != null;
+		
+		// The key is represented in the active key-value store as a child of the
+		// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
+		// and we create the path to the child representing the key.
+		final String keyZnodePath = layout.keyPath(key);
+		
+		Map<String, VersionedValue> snapshot = viewSnapshot(key);
+		
+		if (snapshot != null){
+			VersionedValue value = snapshot.get(key);
+			
+			// a pending key reads as absent
+			return value != null && (chunkedValues == null || !ChunkedValues.isPending(value.sharedValue()));
+		}
+		
+		if (keyIndex != null && keyIndex.isAbsent(key)){
+			return false;
+		}
+		
+		if (nearCache != null){
+			if (!nearCache.exists(keyZnodePath)){
+				return false;
+			}
+			
+			return chunkedValues == null || !ChunkedValues.isPending(nearCache.getData(keyZnodePath, false));
+		}
+					
+		// Check if the active key-value store contains a mapping for the given key
+		Stat keyZnodeStat = keyChecks.execute(keyZnodePath, new SingleFlight.Request<Stat>() {
+			@Override
+			public Stat execute() throws KeeperException, InterruptedException {
+				return readStat(keyZnodePath);
+			}
+		});
+		boolean keyZnodeExists = keyZnodeStat != null;
+		
+		if (keyZnodeExists && chunkedValues != null && ChunkedValues.mayBeManifest(keyZnodeStat)){
+			// a pending key reads as absent, so the data has to be looked at
+			try{
+				return !ChunkedValues.isPending(readData(keyZnodePath, null));
+			}
+			catch(KeeperException.NoNodeException noNode){
+				// removed in the meantime
+				return false;
+			}
+		}
+		
+		return keyZnodeExists;
+	}
+	
+	
+	/**
+	 * Replace the value associated with the given key.
+	 * 
+	 * @param key
+	 * 			The key for which we want to change the associated value (must not be null).
+	 * @param value
+	 * 			The new value for the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void replacePair(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		assert key != null;
+		
+		// The key is represented in the active key-value store as a child of the
+		// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
+		// and we create the path to the child representing the key.
+		String keyZnodePath = layout.keyPath(key);
+		
+		value = encodeValue(value);
+		
+		long admittedAt = admitWrite();
+		
+		try{
+			if (chunkedValues != null){
+				// the previous value may be chunked, or the new value may have to be
+				chunkedValues.replace(keyZnodePath, value);
+			}
+			else{
+				// change the data in the znode for the key
+				handle.getZooKeeper().setData(keyZnodePath, value, -1);
+			}
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// we get a NoNode exception from setData() if no znode was found with the given path.
+			// in this case the key is not there and we throw a IllegalArgumentException
+			throw new IllegalArgumentException(noNode);
+		}
+		finally{
+			completeWrite(admittedAt);
+			// do not wait for the watch to fire so that the change is visible to our next read
+			invalidateCachedKey(keyZnodePath);
+		}
+		
+		logChange(key);
+		
+		return ;
+	}
+	
+	/**
+	 * Insert the pair <em>(key,value)</em> in the active key-value store.
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param value
+	 * 			The value associated with the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there exists an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void makePair(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		assert key != null;
+		
+		createPair(key, encodeValue(value));
+	}
+	
+	/**
+	 * Insert the pair <em>(key,value)</em> in the active key-value store, where the value is already encoded.
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param value
+	 * 			The encoded value associated with the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there exists an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void createPair(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		assert key != null;
+		
+		// to insert the pair means to create a znode with the name activeKeyValueStoreZNodePath.getPath() + "/" + key
+		// and storing the value as data for the znode
+		String keyZnodePath = layout.keyPath(key);
+		
+		if (keyIndex != null){
+			// before the key is created, so that it is never seen absent after
+			keyIndex.add(key);
+		}
+		
+		long admittedAt = admitWrite();
+		
+		try{
+			while (true){
+				try{
+					createKeyZnode(keyZnodePath, value);
+					break;
+				}
+				catch(KeeperException.NodeExistsException nodeExists){
+					if (chunkedValues == null){
+						throw nodeExists;
+					}
+					
+					try{
+						// a pending key reads as absent so it is created over
+						if (chunkedValues.replacePending(keyZnodePath, value)){
+							break;
+						}
+					}
+					catch(KeeperException.NoNodeException noNode){
+						// removed in the meantime. create it again
+						continue;
+					}
+					throw nodeExists;
+				}
+				catch(KeeperException.NoNodeException noNode){
+					List<String> ancestorPaths = layout.ancestorPaths(key);
+					
+					if (ancestorPaths.isEmpty()){
+						throw noNode;
+					}
+					
+					// the bucket (or the directories) of the key is created along with its first key. an empty
+					// directory may be removed again before we get to create the key, in which case we start over
+					for (String ancestorPath : ancestorPaths){
+						createAncestor(ancestorPath);
+					}
+				}
+			}
+		}
+		catch(KeeperException.NodeExistsException nodeExists){
+			// we already have a entry for the key so we throw a IllegalArgumentException
+			throw new IllegalArgumentException(nodeExists);
+		}
+		finally{
+			completeWrite(admittedAt);
+			invalidateCachedKey(keyZnodePath);
+		}
+		
+		logChange(key);
+		
+		return ;
+	}
+	
+	/**
+	 * Create the znode representing a key (and its chunks if the value is large).
+	 * 
+	 * @param keyZnodePath
+	 * 			The path of the znode representing the key.
+	 * @param value
+	 * 			The encoded value associated with the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void createKeyZnode(String keyZnodePath, byte [] value) throws KeeperException, InterruptedException{
+		if (chunkedValues != null && chunkedValues.isLarge(value)){
+			chunkedValues.create(keyZnodePath, value);
+		}
+		else{
+			handle.getZooKeeper().create(keyZnodePath, value, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
+	}
+	
+	/**
+	 * Create the znode of a bucket or a directory unless it already exists.
+	 * 
+	 * @param ancestorPath
+	 * 			The path of the znode of the bucket or the directory.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void createAncestor(String ancestorPath) throws KeeperException, InterruptedException{
+		try{
+			handle.getZooKeeper().create(ancestorPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
+		catch(KeeperException.NodeExistsException nodeExists){
+			// someone else created the znode in the meantime. no error here
+		}
+	}
+	
+	/**
+	 * Remove the directories of the given key that are left empty, innermost first. Only for the hierarchical layout.
+	 * 
+	 * @param key
+	 * 			The key just removed.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void removeEmptyDirectories(String key) throws InterruptedException{
+		List<String> ancestorPaths = layout.ancestorPaths(key);
+		
+		for (int i = ancestorPaths.size() - 1; i >= 0; --i){
+			try{
+				// the directories hold no data and are never keys, so only an empty directory is removed here
+				handle.getZooKeeper().delete(ancestorPaths.get(i), -1);
+			}
+			catch(KeeperException e){
+				// not empty, or removed by someone else. a directory left behind is harmless so we stop here
+				return ;
+			}
+		}
+	}
+	
+	/**
+	 * Remove from the active key-value store the entry for the given key.
+	 * 
+	 * @param key
+	 * 			The key for which we want to remove the entry (must not be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void deletePair(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
+		assert key != null;
+		
+		// The key is represented in the active key-value store as a child of the
+		// znode path representing the store. We store the path in activeKeyValueStoreZNodePath
+		// and we create the path to the child representing the key.
+		String keyZnodePath = layout.keyPath(key);
+		
+		long admittedAt = admitWrite();
+		
+		try{
+			if (chunkedValues != null){
+				// delete the chunks too
+				chunkedValues.delete(keyZnodePath);
+			}
+			else{
+				// delete the (key,value) pair by deleting the znode
+				handle.getZooKeeper().delete(keyZnodePath, -1);
+			}
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// We get a NoNodeException from delete() if the znode does not exist.
+			// This means that the (key,value) pair is not stored so we throw a IllegalArgumentException.
+			throw new IllegalArgumentException(noNode);
+		}
+		finally{
+			completeWrite(admittedAt);
+			invalidateCachedKey(keyZnodePath);
+		}
+		
+		if (layout.isHierarchical()){
+			removeEmptyDirectories(key);
+		}
+		
+		logChange(key);
+		
+		return ;
+	}
+	
+	/**
+	 * Read the data of the znode with the given path without a watch, hedged if enabled.
+	 * 
+	 * @param path
+	 * 			The path of the znode.
+	 * @param stat
+	 * 			The stat of the znode is written here (may be null).
+	 * @return The data of the znode.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private byte [] readData(String path, Stat stat) throws KeeperException, InterruptedException{
+		if (!syncReadSessions()){
+			return handle.getZooKeeper().getData(path, false, stat);
+		}
+		
+		if (hedgedReads != null){
+			return hedgedReads.getData(path, stat);
+		}
+		
+		return handle.getReadZooKeeper().getData(path, false, stat);
+	}
+	
+	/**
+	 * Read the stat of the znode with the given path without a watch, hedged if enabled.
+	 * 
+	 * @param path
+	 * 			The path of the znode.
+	 * @return The stat of the znode, or null if there is no such znode.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private Stat readStat(String path) throws KeeperException, InterruptedException{
+		if (!syncReadSessions()){
+			return handle.getZooKeeper().exists(path, false);
+		}
+		
+		if (hedgedReads != null){
+			return hedgedReads.exists(path);
+		}
+		
+		return handle.getReadZooKeeper().exists(path, false);
+	}
+	
+	/**
+	 * Return the client object a read without a watch goes through: a session of the pool if the read sessions are synced with the writes
+	 * of this store (see {@link #syncReadSessions()}), otherwise the primary session.
+	 * 
+	 * @throws InterruptedException
+	 * 			If the thread was interrupted while waiting for the sync.
+	 */
+	private ZooKeeper readZooKeeper() throws InterruptedException{
+		return syncReadSessions() ? handle.getReadZooKeeper() : handle.getZooKeeper();
+	}
+	
+	/**
+	 * Sync the read sessions of a {@link ZooKeeperHandlePool} with the primary session if writes were made through this store since they
+	 * were last synced. A read through another session of the pool may not see a write of the primary session yet, so without the sync
+	 * a {@link #get(String)} following a {@link #replace(String, byte[])} could return the old value.
+	 * 
+	 * @return True if the reads may go through any session, false if a session could not be synced and the read has to go through the
+	 * 			primary session.
+	 * @throws InterruptedException
+	 * 			If the thread was interrupted while waiting for the sync.
+	 */
+	private boolean syncReadSessions() throws InterruptedException{
+		if (!(handle instanceof ZooKeeperHandlePool)){
+			return true;
+		}
+		
+		long written = writes.get();
+		
+		if (syncedWrites.get() >= written){
+			return true;
+		}
+		
+		if (!((ZooKeeperHandlePool)handle).syncReadSessions()){
+			return false;
+		}
+		
+		// a concurrent sync may have got further already
+		long synced = syncedWrites.get();
+		
+		while (synced < written && !syncedWrites.compareAndSet(synced, written)){
+			synced = syncedWrites.get();
+		}
+		return true;
+	}
+	
+	/**
+	 * Record the change of the given key in the change log, if enabled.
+	 * 
+	 * @param key
+	 * 			The changed key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private void logChange(String key) throws KeeperException, InterruptedException{
+		if (changeLog != null){
+			changeLog.append(Collections.singleton(key));
+		}
+	}
+	
+	/**
+	 * Admit a write with the write limiter, if enabled. Must be followed by {@link #completeWrite(long)} once the write is made or failed.
+	 * 
+	 * @return The time of the admission as given by {@link System#nanoTime()}.
+	 * @throws WriteRejectedException
+	 * 			If the write is rejected by the write limiter.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while the write was queued.
+	 */
+	private long admitWrite() throws WriteRejectedException, InterruptedException{
+		if (writeLimiter != null){
+			writeLimiter.acquire();
+		}
+		
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Tell the write limiter (if enabled) that a write admitted with {@link #admitWrite()} is made or failed.
+	 * 
+	 * @param admittedAt
+	 * 			The time of the admission.
+	 */
+	private void completeWrite(long admittedAt){
+		if (writeLimiter != null){
+			writeLimiter.release(System.nanoTime() - admittedAt);
+		}
+	}
+	
+	/**
+	 * Delete all the children of the znode with the given path, along with their own children, until the znode is found without children.
+	 * The children are deleted pipelined.
+	 * 
+	 * @param path
+	 * 			The path of the znode.
+	 * @param listener
+	 * 			Notified with the number of children deleted so far every in-flight window worth of children (may be null).
+	 * @param deleted
+	 * 			The number of children deleted so far, the count starts from. The directories of the hierarchical layout are
+	 * 			deleted along with their keys, which are counted instead.
+	 * @return The number of children deleted so far, including those deleted by this call.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private int deleteChildren(String path, ProgressListener listener, int deleted) throws KeeperException, InterruptedException{
+		AsyncActiveKeyValueStore children = new AsyncActiveKeyValueStore(handle, new KeyLayout(path, 0), pipelineWindow, writeLimiter);
+		
+		while (true){
+			List<String> names = null;
+			
+			try{
+				names = handle.getZooKeeper().getChildren(path, false);
+			}
+			catch(KeeperException.NoNodeException noNode){
+				// somebody else deleted the znode
+				return deleted;
+			}
+			
+			if (names.isEmpty()){
+				return deleted;
+			}
+			
+			Map<String, OperationFuture<Void>> futures = new LinkedHashMap<String, OperationFuture<Void>>();
+			
+			// Issue all the requests. The pipeline blocks us here whenever the window is full.
+			for (String name : names){
+				futures.put(name, children.remove(name));
+			}
+			
+			// Gather the results
+			for (Map.Entry<String, OperationFuture<Void>> future : futures.entrySet()){
+				try{
+					future.getValue().result();
+				}
+				catch(IllegalArgumentException absent){
+					// somebody else deleted the child
+					continue;
+				}
+				catch(KeeperException.NotEmptyException notEmpty){
+					// the key of a large value, with its chunks, or a directory of the hierarchical layout with its keys
+					String childPath = path + "/" + future.getKey();
+					
+					if (layout.isDirectory(future.getKey())){
+						deleted = deleteChildren(childPath, listener, deleted);
+					}
+					else{
+						deleteChildren(childPath, null, 0);
+					}
+					
+					try{
+						handle.getZooKeeper().delete(childPath, -1);
+					}
+					catch(KeeperException.NoNodeException noNode){
+						// somebody else deleted the child
+						continue;
+					}
+					catch(KeeperException.NotEmptyException stillNotEmpty){
+						// a large value was written in the meantime. we get to it in the next round
+						continue;
+					}
+				}
+				
+				if (layout.isDirectory(future.getKey())){
+					// not a key
+					continue;
+				}
+				
+				++deleted;
+				
+				if (listener != null && deleted % pipelineWindow == 0){
+					listener.progress(deleted);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replace the values of the given keys, keeping the in-flight window of the store. Used by write-behind.
+	 * 
+	 * @param values
+	 * 			The new values by key.
+	 * @return The error of each key whose value was not replaced: a {@link KeeperException} if the ZooKeeper server signaled an error,
+	 * 			an {@link IllegalArgumentException} if there isn't an entry for the key, or a {@link WriteRejectedException} if the write
+	 * 			limiter rejected the request of the key or an earlier one (the values after a rejected one are not sent).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error while recording the replaced keys in the change log.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private Map<String, Exception> replaceAll(Map<String, byte []> values) throws KeeperException, InterruptedException{
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		WriteRejectedException rejected = null;
+		
+		if (chunkedValues != null){
+			// a replacement may have to write or delete chunks, so it is not a single request
+			for (Map.Entry<String, byte []> value : values.entrySet()){
+				if (rejected != null){
+					failures.put(value.getKey(), rejected);
+					continue;
+				}
+				
+				try{
+					replacePair(value.getKey(), value.getValue());
+				}
+				catch(IllegalArgumentException missing){
+					failures.put(value.getKey(), missing);
+				}
+				catch(WriteRejectedException e){
+					rejected = e;
+					failures.put(value.getKey(), e);
+				}
+				catch(KeeperException e){
+					failures.put(value.getKey(), e);
+				}
+			}
+		}
+		else{
+			Map<String, OperationFuture<Void>> futures = new LinkedHashMap<String, OperationFuture<Void>>();
+			
+			// Issue all the requests. The pipeline blocks us here whenever the window is full.
+			for (Map.Entry<String, byte []> value : values.entrySet()){
+				if (rejected != null){
+					// once the write limiter rejects a request we stop sending, and the requests issued are gathered below
+					failures.put(value.getKey(), rejected);
+					continue;
+				}
+				
+				try{
+					futures.put(value.getKey(), pipeline.replace(value.getKey(), encodeValue(value.getValue())));
+				}
+				catch(WriteRejectedException e){
+					rejected = e;
+					failures.put(value.getKey(), e);
+				}
+			}
+			
+			List<String> replaced = new ArrayList<String>();
+			
+			// Gather the results
+			for (Map.Entry<String, OperationFuture<Void>> future : futures.entrySet()){
+				try{
+					future.getValue().result();
+					replaced.add(future.getKey());
+				}
+				catch(IllegalArgumentException missing){
+					failures.put(future.getKey(), missing);
+				}
+				catch(KeeperException e){
+					failures.put(future.getKey(), e);
+				}
+				finally{
+					invalidateCachedKey(layout.keyPath(future.getKey()));
+				}
+			}
+			
+			if (changeLog != null){
+				changeLog.append(replaced);
+			}
+		}
+		
+		return failures;
+	}
+	
+	/**
+	 * Make a single attempt of {@link #compute(String, ValueFunction)} to move the key from the current value to the new one.
+	 * 
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param current
+	 * 			The current value and its version, or null if there was no entry for the key.
+	 * @param value
+	 * 			The new value, or null to remove the entry for the key.
+	 * @return True if the update was made and false if another update got in between.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private boolean tryUpdate(String key, VersionedValue current, byte [] value) throws KeeperException, InterruptedException{
+		if (current == null){
+			if (value == null){
+				// nothing to remove
+				return true;
+			}
+			
+			try{
+				makePair(key, value);
+				return true;
+			}
+			catch(IllegalArgumentException exists){
+				return false;
+			}
+		}
+		
+		if (value != null){
+			try{
+				return compareAndSet(key, current.version(), value);
+			}
+			catch(IllegalArgumentException removed){
+				return false;
+			}
+		}
+		
+		String keyZnodePath = layout.keyPath(key);
+		
+		boolean deleted = false;
+		
+		long admittedAt = admitWrite();
+		
+		try{
+			if (chunkedValues != null){
+				deleted = chunkedValues.compareAndDelete(keyZnodePath, current.version());
+			}
+			else{
+				handle.getZooKeeper().delete(keyZnodePath, current.version());
+				deleted = true;
+			}
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			return false;
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// somebody else removed the key
+			return false;
+		}
+		finally{
+			completeWrite(admittedAt);
+			invalidateCachedKey(keyZnodePath);
+		}
+		
+		if (deleted){
+			logChange(key);
+		}
+		
+		return deleted;
+	}
+	
+	/**
+	 * Resolve the value of the key from the data of its znode. This is the data itself unless large values are
+	 * enabled and the data is the manifest of a chunked value, in which case the chunks are read, or a codec is
+	 * enabled, in which case the value is decoded.
+	 * 
+	 * @param key
+	 * 			The key.
+	 * @param data
+	 * 			The data of the key znode (may be null).
+	 * @return The value of the key or null if there isn't a mapping for the key (any more).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	private byte [] resolveValue(String key, byte [] data) throws KeeperException, InterruptedException{
+		if (chunkedValues != null){
+			data = chunkedValues.resolve(layout.keyPath(key), data);
+		}
+		
+		if (valueCodec != null){
+			data = ValueCodecs.decode(valueCodec, data);
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Encode the value with the codec of the store.
+	 * 
+	 * @param value
+	 * 			The value (may be null).
+	 * @return The value to store, which is the value itself if no codec is enabled.
+	 */
+	private byte [] encodeValue(byte [] value){
+		return valueCodec == null ? value : ValueCodecs.encode(valueCodec, value);
+	}
+	
+	/**
+	 * Return the current snapshot of the materialized view holding the given key.
+	 * 
+	 * @param key
+	 * 			The key.
+	 * @return The snapshot or null if the materialized view is not enabled or not usable at the moment, in which case
+	 * 			the reads must go to the ZooKeeper server.
+	 */
+	private Map<String, VersionedValue> viewSnapshot(String key){
+		if (materializedViews == null){
+			return null;
+		}
+		
+		return materializedViews[layout.isBucketed() ? layout.bucket(key) : 0].snapshot();
+	}
+	
+	/**
+	 * Return the current snapshots of all the materialized views.
+	 * 
+	 * @return The snapshots or null if the materialized view is not enabled or any of the views is not usable at the moment,
+	 * 			in which case the reads must go to the ZooKeeper server.
+	 */
+	private List<Map<String, VersionedValue>> viewSnapshots(){
+		if (materializedViews == null){
+			return null;
+		}
+		
+		List<Map<String, VersionedValue>> snapshots = new ArrayList<Map<String, VersionedValue>>(materializedViews.length);
+		
+		for (MaterializedView view : materializedViews){
+			Map<String, VersionedValue> snapshot = view.snapshot();
+			
+			if (snapshot == null){
+				return null;
+			}
+			snapshots.add(snapshot);
+		}
+		
+		return snapshots;
+	}
+	
+	/**
+	 * Drop the near cache entry (if any) for the znode with the given path, and retire the outstanding shared reads of the znode so
+	 * that the reads from now on see the change just made through this client. The read sessions of a pool are synced before the next
+	 * read (see {@link #syncReadSessions()}).
+	 * 
+	 * @param keyZnodePath
+	 * 			The path of the znode representing a key.
+	 */
+	private void invalidateCachedKey(String keyZnodePath){
+		if (nearCache != null){
+			nearCache.invalidate(keyZnodePath);
+		}
+		
+		keyReads.forget(keyZnodePath);
+		keyChecks.forget(keyZnodePath);
+		writes.incrementAndGet();
+	}
+	
+	/**
+	 * {@link KeyIterator} lists the keys a page at a time: the whole store for the flat layout, or a bucket for the bucketed layout.
+	 */
+	private class KeyIterator implements StoreIterator<String>{
+		// the keys of the current page not returned yet
+		private Iterator<String> page = Collections.<String>emptyList().iterator();
+		
+		// the next page to list
+		private int nextPage = 0;
+		
+		// the listing of the next page, issued ahead. null if none.
+		private OperationFuture<List<String>> prefetchedPage = null;
+		
+		@Override
+		public boolean hasNext() throws KeeperException, InterruptedException{
+			while (!page.hasNext()){
+				if (!layout.isBucketed()){
+					if (nextPage > 0){
+						return false;
+					}
+					
+					page = layout.isHierarchical() ? keys().iterator() : readZooKeeper().getChildren(activeKeyValueStoreZNodePath, false).iterator();
+					++nextPage;
+					continue;
+				}
+				
+				if (nextPage == layout.buckets()){
+					return false;
+				}
+				
+				OperationFuture<List<String>> listing = prefetchedPage != null ? prefetchedPage : pipeline.bucketKeys(nextPage);
+				++nextPage;
+				
+				// list the following bucket while this one is consumed
+				prefetchedPage = nextPage < layout.buckets() ? pipeline.bucketKeys(nextPage) : null;
+				
+				page = listing.result().iterator();
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public String next() throws KeeperException, NoSuchElementException, InterruptedException{
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+	}
+	
+	/**
+	 * {@link EntryIterator} fetches the values of the keys of a {@link KeyIterator} ahead of the iteration.
+	 */
+	private class EntryIterator implements StoreIterator<Map.Entry<String, byte []>>{
+		// the keys
+		private KeyIterator keys = new KeyIterator();
+		
+		// the maximum number of fetches in flight
+		private int prefetch = 0;
+		
+		// the fetches in flight, in the order of the keys
+		private LinkedList<Map.Entry<String, OperationFuture<byte []>>> fetches = new LinkedList<Map.Entry<String, OperationFuture<byte []>>>();
+		
+		// the next entry to return, null if not fetched yet
+		private Map.Entry<String, byte []> nextEntry = null;
+		
+		EntryIterator(int prefetch){
+			this.prefetch = prefetch;
+		}
+		
+		@Override
+		public boolean hasNext() throws KeeperException, InterruptedException{
+			while (nextEntry == null){
+				// keep the window of fetches full
+				while (fetches.size() < prefetch && keys.hasNext()){
+					String key = keys.next();
+					
+					fetches.add(new AbstractMap.SimpleEntry<String, OperationFuture<byte []>>(key, pipeline.get(key)));
+				}
+				
+				if (fetches.isEmpty()){
+					return false;
+				}
+				
+				Map.Entry<String, OperationFuture<byte []>> fetch = fetches.removeFirst();
+				byte [] value = resolveValue(fetch.getKey(), fetch.getValue().result());
+				
+				// we get a null if the key was removed after it was listed. We skip it in this case.
+				if (value != null){
+					nextEntry = new AbstractMap.SimpleEntry<String, byte []>(fetch.getKey(), value);
+				}
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public Map.Entry<String, byte []> next() throws KeeperException, NoSuchElementException, InterruptedException{
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+			
+			Map.Entry<String, byte []> entry = nextEntry;
+			nextEntry = null;
+			
+			return entry;
+		}
 	}
 }
\ No newline at end of file
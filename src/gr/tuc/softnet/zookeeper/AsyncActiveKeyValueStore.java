@@ -0,0 +1,624 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link AsyncActiveKeyValueStore} is the asynchronous counterpart of {@link ActiveKeyValueStore}.
+ *
+ * <p>
+ * The store uses the same representation in ZooKeeper as {@link ActiveKeyValueStore}, that is each key is a child znode of the znode
+ * representing the store and the value is stored as data in that child znode. Both classes can therefore be used over the same store.
+ * For a store with the bucketed layout (see {@link ActiveKeyValueStore.Builder#setBuckets(int)}) use {@link ActiveKeyValueStore#async()}.
+ * </p>
+ *
+ * <p>
+ * Each operation is issued through the asynchronous API of the {@link org.apache.zookeeper.ZooKeeper} client object and returns immediately
+ * with an {@link OperationFuture} that is completed from the ZooKeeper callback. This way a single thread can keep many requests in flight
+ * over the same session instead of paying a full round trip per operation. The errors are reported through the future with the same exceptions
+ * the corresponding {@link ActiveKeyValueStore} methods throw (e.g. an {@link IllegalArgumentException} if a key already exists in {@link #putIfAbsent(String, byte[])}).
+ * </p>
+ *
+ * <p>
+ * The number of outstanding requests is bounded. When the bound is reached the operations block until an earlier request is answered,
+ * so a fast producer cannot queue an unbounded number of requests in the client.
+ * </p>
+ *
+ * <p>
+ * The write requests of a store obtained with {@link ActiveKeyValueStore#async()} are also admitted by the {@link WriteLimiter} of the
+ * store, if any (see {@link ActiveKeyValueStore.Builder#setWriteLimiter(WriteLimiter)}), and drop the entries of the written keys
+ * from the near cache of the store, so that its reads see the writes once their futures are completed. Such a store is not
+ * available for a store that encodes, chunks or logs its values, since the writes of this class store the raw values and are not
+ * recorded in the change log.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore
+ * @see OperationFuture
+ * @author Tassos Souris
+ *
+ */
+public class AsyncActiveKeyValueStore {
+
+	/**
+	 * The default maximum number of outstanding requests.
+	 */
+	public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 1000;
+
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// Maps the keys to the paths of their znodes
+	private KeyLayout layout = null;
+
+	// Bounds the number of outstanding requests
+	private Semaphore outstandingRequests = null;
+
+	// Admits the write requests, null if not enabled
+	private WriteLimiter writeLimiter = null;
+
+	// Whether the reads go through the primary session instead of being spread over the sessions of a pool
+	private boolean primaryReads = false;
+
+	// Told of the keys written through this store, null if not set
+	private WriteListener writeListener = null;
+
+	/**
+	 * Told of each key written through an {@link AsyncActiveKeyValueStore}, successfully or not, before the future of the write is completed.
+	 */
+	interface WriteListener{
+		/**
+		 * Called from the ZooKeeper callback of a write request.
+		 *
+		 * @param keyZnodePath
+		 * 			The path of the znode representing the key written.
+		 */
+		void written(String keyZnodePath);
+	}
+
+	/**
+	 * Construct a new {@link AsyncActiveKeyValueStore} allowing at most {@link #DEFAULT_MAX_OUTSTANDING_REQUESTS} outstanding requests.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 */
+	public AsyncActiveKeyValueStore(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath){
+		this(handle, activeKeyValueStoreZNodePath, DEFAULT_MAX_OUTSTANDING_REQUESTS);
+	}
+
+	/**
+	 * Construct a new {@link AsyncActiveKeyValueStore}.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 * @param maxOutstandingRequests
+	 * 			The maximum number of requests that may be in flight at any time (must be positive).
+	 * @throws IllegalArgumentException
+	 * 			If maxOutstandingRequests is not positive.
+	 */
+	public AsyncActiveKeyValueStore(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath, int maxOutstandingRequests) throws IllegalArgumentException{
+		this(handle, new KeyLayout(activeKeyValueStoreZNodePath, 0), maxOutstandingRequests);
+	}
+
+	/**
+	 * Construct a new {@link AsyncActiveKeyValueStore} over a store with the given layout.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param layout
+	 * 			The layout of the store (must not be null).
+	 * @param maxOutstandingRequests
+	 * 			The maximum number of requests that may be in flight at any time (must be positive).
+	 * @throws IllegalArgumentException
+	 * 			If maxOutstandingRequests is not positive.
+	 */
+	AsyncActiveKeyValueStore(ZooKeeperHandle handle, KeyLayout layout, int maxOutstandingRequests) throws IllegalArgumentException{
+		this(handle, layout, maxOutstandingRequests, null);
+	}
+
+	/**
+	 * Construct a new {@link AsyncActiveKeyValueStore} over a store with the given layout, admitting the write requests with the given limiter.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param layout
+	 * 			The layout of the store (must not be null).
+	 * @param maxOutstandingRequests
+	 * 			The maximum number of requests that may be in flight at any time (must be positive).
+	 * @param writeLimiter
+	 * 			The limiter of the write requests, null if not enabled.
+	 * @throws IllegalArgumentException
+	 * 			If maxOutstandingRequests is not positive.
+	 */
+	AsyncActiveKeyValueStore(ZooKeeperHandle handle, KeyLayout layout, int maxOutstandingRequests, WriteLimiter writeLimiter) throws IllegalArgumentException{
+		assert handle != null;
+		assert layout != null;
+
+		if (maxOutstandingRequests <= 0){
+			throw new IllegalArgumentException();
+		}
+
+		this.handle = handle;
+		this.layout = layout;
+		this.outstandingRequests = new Semaphore(maxOutstandingRequests);
+		this.writeLimiter = writeLimiter;
+	}
+
+	/**
+	 * Asynchronous version of {@link ActiveKeyValueStore#putIfAbsent(String, byte[])}.
+	 *
+	 * @param key
+	 * 			The key of the entry (must not be null).
+	 * @param value
+	 * 			The value associated with the key (may be null).
+	 * @return A future completed when the pair is stored. The future fails with an {@link IllegalArgumentException} if there
+	 * 			exists an entry for the given key and with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws WriteRejectedException
+	 * 			If the request is rejected by the write limiter.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	public OperationFuture<Void> putIfAbsent(String key, byte [] value) throws WriteRejectedException, InterruptedException{
+		assert key != null;
+
+		final OperationFuture<Void> future = new OperationFuture<Void>();
+
+		String keyZnodePath = keyZNodePath(key);
+
+		beginWrite(future);
+
+		create(keyZnodePath, value, layout.ancestorPaths(key), future);
+
+		return future;
+	}
+
+	/**
+	 * Issue the create request of {@link #putIfAbsent(String, byte[])}.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the znode representing the key.
+	 * @param value
+	 * 			The value.
+	 * @param ancestorPaths
+	 * 			The paths of the bucket or the directories of the key to create if they are missing (see {@link KeyLayout#ancestorPaths(String)}).
+	 * @param future
+	 * 			The future of the operation.
+	 */
+	private void create(final String keyZnodePath, final byte [] value, final List<String> ancestorPaths, final OperationFuture<Void> future){
+		handle.getZooKeeper().create(keyZnodePath, value, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, String name) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.NONODE && !ancestorPaths.isEmpty()){
+					// the bucket (or the directories) of the key is created along with its first key. we keep the request slot.
+					createAncestors(ancestorPaths, 0, keyZnodePath, value, future);
+					return ;
+				}
+
+				endWrite(keyZnodePath);
+
+				if (code == KeeperException.Code.OK){
+					future.set(null);
+				}
+				else if (code == KeeperException.Code.NODEEXISTS){
+					// we already have a entry for the key
+					future.setException(new IllegalArgumentException(KeeperException.create(code, path)));
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Create the ancestor znodes from the given one on, in order, and then issue the create request of {@link #putIfAbsent(String, byte[])} again.
+	 */
+	private void createAncestors(final List<String> ancestorPaths, final int index, final String keyZnodePath, final byte [] value, final OperationFuture<Void> future){
+		handle.getZooKeeper().create(ancestorPaths.get(index), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, String name) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS){
+					// someone else may have created the znode in the meantime
+					if (index + 1 < ancestorPaths.size()){
+						createAncestors(ancestorPaths, index + 1, keyZnodePath, value, future);
+					}
+					else{
+						// an empty directory may be removed again before we get to create the key, in which case we start over
+						create(keyZnodePath, value, ancestorPaths, future);
+					}
+				}
+				else{
+					endWrite(keyZnodePath);
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Asynchronous version of {@link ActiveKeyValueStore#replace(String, byte[])}.
+	 *
+	 * @param key
+	 * 			The key for which we want to replace the associated value (must not be null).
+	 * @param value
+	 * 			The new value for the key.
+	 * @return A future completed when the value is replaced. The future fails with an {@link IllegalArgumentException} if there
+	 * 			isn't an entry for the given key and with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws WriteRejectedException
+	 * 			If the request is rejected by the write limiter.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	public OperationFuture<Void> replace(String key, byte [] value) throws WriteRejectedException, InterruptedException{
+		assert key != null;
+
+		final OperationFuture<Void> future = new OperationFuture<Void>();
+
+		String keyZnodePath = keyZNodePath(key);
+
+		beginWrite(future);
+
+		handle.getZooKeeper().setData(keyZnodePath, value, -1, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				endWrite(path);
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(null);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the key is not there
+					future.setException(new IllegalArgumentException(KeeperException.create(code, path)));
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * Asynchronous version of {@link ActiveKeyValueStore#get(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return A future completed with the value associated with the given key, or with null if there is no mapping for the key.
+	 * 			The future fails with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	public OperationFuture<byte []> get(String key) throws InterruptedException{
+		assert key != null;
+
+		final OperationFuture<byte []> future = new OperationFuture<byte []>();
+
+		String keyZnodePath = keyZNodePath(key);
+
+		beginRequest();
+
+		readZooKeeper().getData(keyZnodePath, false, new AsyncCallback.DataCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+				endRequest();
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(data);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// there isn't a mapping for the given key. no error here
+					future.set(null);
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * Asynchronous version of {@link ActiveKeyValueStore#containsKey(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to test if there is currently a mapping stored in the active key-value store (must not be null).
+	 * @return A future completed with true if there is a mapping for the given key and false otherwise. The future fails with a
+	 * 			{@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	public OperationFuture<Boolean> containsKey(String key) throws InterruptedException{
+		assert key != null;
+
+		final OperationFuture<Boolean> future = new OperationFuture<Boolean>();
+
+		String keyZnodePath = keyZNodePath(key);
+
+		beginRequest();
+
+		readZooKeeper().exists(keyZnodePath, false, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				endRequest();
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(Boolean.TRUE);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					future.set(Boolean.FALSE);
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * Asynchronous version of {@link ActiveKeyValueStore#remove(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to remove the (key,value) pair (must not be null).
+	 * @return A future completed when the pair is removed. The future fails with an {@link IllegalArgumentException} if there
+	 * 			isn't a mapping for the given key and with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws WriteRejectedException
+	 * 			If the request is rejected by the write limiter.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	public OperationFuture<Void> remove(String key) throws WriteRejectedException, InterruptedException{
+		assert key != null;
+
+		final OperationFuture<Void> future = new OperationFuture<Void>();
+
+		String keyZnodePath = keyZNodePath(key);
+
+		beginWrite(future);
+
+		handle.getZooKeeper().delete(keyZnodePath, -1, new AsyncCallback.VoidCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx) {
+				endWrite(path);
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(null);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the (key,value) pair is not stored
+					future.setException(new IllegalArgumentException(KeeperException.create(code, path)));
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * List the keys of the given bucket. Must only be called for the bucketed layout.
+	 *
+	 * @param bucket
+	 * 			The bucket.
+	 * @return A future completed with the keys of the bucket (an empty list if the bucket has not been created yet).
+	 * 			The future fails with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	OperationFuture<List<String>> bucketKeys(int bucket) throws InterruptedException{
+		return children(layout.bucketPath(bucket));
+	}
+
+	/**
+	 * List the children of the znode with the given path.
+	 *
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 * @return A future completed with the names of the children (an empty list if the znode does not exist).
+	 * 			The future fails with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	OperationFuture<List<String>> children(String path) throws InterruptedException{
+		final OperationFuture<List<String>> future = new OperationFuture<List<String>>();
+
+		beginRequest();
+
+		readZooKeeper().getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+				endRequest();
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(children);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// a bucket or a directory is created along with its first key
+					future.set(Collections.<String>emptyList());
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * Read the {@link Stat} of the given bucket. Must only be called for the bucketed layout.
+	 *
+	 * @param bucket
+	 * 			The bucket.
+	 * @return A future completed with the stat of the znode of the bucket, or with null if the bucket has not been created yet.
+	 * 			The future fails with a {@link KeeperException} if the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting for an outstanding request slot.
+	 */
+	OperationFuture<Stat> bucketStat(int bucket) throws InterruptedException{
+		final OperationFuture<Stat> future = new OperationFuture<Stat>();
+
+		beginRequest();
+
+		readZooKeeper().exists(layout.bucketPath(bucket), false, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				endRequest();
+
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					future.set(stat);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the bucket is created along with its first key
+					future.set(null);
+				}
+				else{
+					future.setException(KeeperException.create(code, path));
+				}
+			}
+		}, null);
+
+		return future;
+	}
+
+	/**
+	 * Return the path of the znode representing the given key.
+	 * 
+	 * @throws IllegalArgumentException
+	 * 			If the key does not form a valid znode path. We check this before issuing the request since the
+	 * 			asynchronous calls of the ZooKeeper client object throw in this case.
+	 */
+	private String keyZNodePath(String key) throws IllegalArgumentException{
+		// The key is represented in the active key-value store as a child of the
+		// znode path representing the store (or of its bucket).
+		String keyZnodePath = layout.keyPath(key);
+
+		PathUtils.validatePath(keyZnodePath);
+
+		return keyZnodePath;
+	}
+
+	/**
+	 * Admit the write request of the given future with the write limiter (if any), which is told of the completion of the request,
+	 * and wait for an outstanding request slot.
+	 */
+	private void beginWrite(OperationFuture<Void> future) throws WriteRejectedException, InterruptedException{
+		if (writeLimiter != null){
+			writeLimiter.acquire();
+
+			final long admittedAt = System.nanoTime();
+
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					writeLimiter.release(System.nanoTime() - admittedAt);
+				}
+			});
+		}
+
+		try{
+			beginRequest();
+		}
+		catch(InterruptedException e){
+			// the request is not sent. completing the future gives back the admission
+			future.setException(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Make the reads of this store go through the primary session of the handle, like the writes, instead of being spread over the
+	 * sessions of a {@link ZooKeeperHandlePool}. Used for the reads that follow a read of the primary session and must not see an older
+	 * state than it did, as another session of the pool may lag behind. Must be called before the store is used.
+	 *
+	 * @return This store.
+	 */
+	AsyncActiveKeyValueStore readFromPrimary(){
+		primaryReads = true;
+		return this;
+	}
+
+	/**
+	 * Tell the given listener of the keys written through this store. Must be called before the store is used.
+	 *
+	 * @param writeListener
+	 * 			The listener (must not be null).
+	 * @return This store.
+	 */
+	AsyncActiveKeyValueStore notifyWrites(WriteListener writeListener){
+		assert writeListener != null;
+
+		this.writeListener = writeListener;
+		return this;
+	}
+
+	/**
+	 * Return the client object the reads go through.
+	 */
+	private ZooKeeper readZooKeeper(){
+		return primaryReads ? handle.getZooKeeper() : handle.getReadZooKeeper();
+	}
+
+	/**
+	 * Wait for an outstanding request slot.
+	 */
+	private void beginRequest() throws InterruptedException{
+		outstandingRequests.acquire();
+	}
+
+	/**
+	 * Give back the outstanding request slot. Called from the callbacks.
+	 */
+	private void endRequest(){
+		outstandingRequests.release();
+	}
+
+	/**
+	 * Give back the outstanding request slot of a write request for the given key and tell the write listener (if any).
+	 * Called from the callbacks, before the future of the request is completed.
+	 */
+	private void endWrite(String keyZnodePath){
+		endRequest();
+
+		if (writeListener != null){
+			writeListener.written(keyZnodePath);
+		}
+	}
+}
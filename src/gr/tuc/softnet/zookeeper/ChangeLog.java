@@ -0,0 +1,455 @@
+package gr.tuc.softnet.zookeeper;
+
+import gr.tuc.softnet.zookeeper.znode.Path;
+import gr.tuc.softnet.zookeeper.znode.Paths;
+import gr.tuc.softnet.zookeeper.znode.attribute.CreateOption;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link ChangeLog} records the keys changed through an active key-value store in a log of sequential znodes, so that a reader can catch up
+ * with the changes it missed (after a disconnect or a restart) by reading the log instead of the whole store.
+ *
+ * <p>
+ * The log is a znode next to the znode representing the store (its path with the {@link #LOG_SUFFIX} suffix), since every child of the store
+ * znode is taken to be a key. Each change appends a child created with {@link CreateOption#PERSISTENT_SEQUENTIAL}, holding the changed keys
+ * (or a marker that the store was cleared) but not the values, which the readers re-read. A reader lists the children, orders them with
+ * {@link Paths#PathSequenceIdComparator} and reads the ones after the last sequence number it has seen, pipelined.
+ * </p>
+ *
+ * <p>
+ * The log is trimmed in the background to the most recent records. The sequence number of the last trimmed record is kept as the data of
+ * the log znode, and is raised before the records are deleted, so a reader that missed trimmed records knows it and reloads the whole store.
+ * Note that the record of a change is appended after the change is made, so a client that fails in between leaves the change out of the log.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setChangeLog(int)
+ * @see StoreChanges
+ * @author Tassos Souris
+ *
+ */
+final class ChangeLog {
+	/**
+	 * The suffix of the path of the log znode to the path of the znode representing the store.
+	 */
+	static final String LOG_SUFFIX = "~log";
+
+	// The prefix of the names of the records; the sequence number follows the last "-"
+	private static final String RECORD_PREFIX = "change-";
+
+	// A record listing changed keys
+	private static final byte KEYS_RECORD = 0;
+
+	// A record marking that the store was cleared
+	private static final byte CLEAR_RECORD = 1;
+
+	// The size a record listing keys is kept under, well below the znode data limit
+	private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+	// The encoding of the keys
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The path of the log znode
+	private String logPath = null;
+
+	// The number of most recent records kept by the compaction
+	private int retainedRecords = 0;
+
+	// The number of requests kept in flight when reading or trimming the log
+	private int window = 0;
+
+	// The number of records appended through this log; a compaction is run every compactionInterval of them
+	private final AtomicInteger appended = new AtomicInteger();
+
+	// The number of appended records between two compactions
+	private int compactionInterval = 0;
+
+	// Runs the compactions
+	private ExecutorService compactor = null;
+
+	/**
+	 * Construct a new {@link ChangeLog} for the given store.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 * @param retainedRecords
+	 * 			The number of most recent records kept by the compaction (must be positive).
+	 * @param window
+	 * 			The number of requests kept in flight when reading or trimming the log (must be positive).
+	 */
+	ChangeLog(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath, int retainedRecords, int window){
+		assert handle != null;
+		assert activeKeyValueStoreZNodePath != null;
+		assert retainedRecords > 0;
+		assert window > 0;
+
+		this.handle = handle;
+		this.logPath = activeKeyValueStoreZNodePath + LOG_SUFFIX;
+		this.retainedRecords = retainedRecords;
+		this.window = window;
+		this.compactionInterval = Math.max(1, retainedRecords / 4);
+
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ActiveKeyValueStore-change-log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Record that the given keys were changed. Does nothing if there are no keys.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void append(Collection<String> keys) throws KeeperException, InterruptedException{
+		List<byte []> encodedKeys = new ArrayList<byte []>();
+		int size = 1 + 4;
+
+		for (String key : keys){
+			byte [] encodedKey = key.getBytes(UTF8);
+
+			if (!encodedKeys.isEmpty() && size + 4 + encodedKey.length > MAX_RECORD_BYTES){
+				// too many keys for a record
+				appendRecord(keysRecord(encodedKeys, size));
+				encodedKeys.clear();
+				size = 1 + 4;
+			}
+
+			encodedKeys.add(encodedKey);
+			size += 4 + encodedKey.length;
+		}
+
+		if (!encodedKeys.isEmpty()){
+			appendRecord(keysRecord(encodedKeys, size));
+		}
+	}
+
+	/**
+	 * Record that the store was cleared.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void appendClear() throws KeeperException, InterruptedException{
+		appendRecord(new byte[]{ CLEAR_RECORD });
+	}
+
+	/**
+	 * Return the sequence number of the last record of the log.
+	 *
+	 * @return The sequence number, or -1 if the log is empty.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	long lastSequence() throws KeeperException, InterruptedException{
+		try{
+			List<Path> records = records();
+
+			return records.isEmpty() ? trimmedSequence() : sequence(records.get(records.size() - 1));
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// nothing was logged yet
+			return -1;
+		}
+	}
+
+	/**
+	 * Read the changes recorded after the given sequence number.
+	 *
+	 * @param since
+	 * 			The last sequence number seen by the reader, or -1 to read the whole log.
+	 * @return The changes.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	StoreChanges read(long since) throws KeeperException, InterruptedException{
+		long trimmed = -1;
+		List<Path> records = null;
+
+		try{
+			// the watermark is read after the listing: it is raised before records are deleted, so if records were trimmed
+			// before we listed them the watermark we read shows it (and records trimmed after are found missing below)
+			records = records();
+			trimmed = trimmedSequence();
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// nothing was logged yet
+			return new StoreChanges(true, false, new LinkedHashSet<String>(), since);
+		}
+
+		long last = records.isEmpty() ? Math.max(since, trimmed) : Math.max(since, sequence(records.get(records.size() - 1)));
+
+		if (since < trimmed){
+			// the reader missed records that are gone
+			return new StoreChanges(false, false, new LinkedHashSet<String>(), last);
+		}
+
+		// the records were listed through the primary session; a lagging session would find them missing as if trimmed
+		AsyncActiveKeyValueStore recordReads = new AsyncActiveKeyValueStore(handle, logPath, window).readFromPrimary();
+		List<OperationFuture<byte []>> futures = new ArrayList<OperationFuture<byte []>>();
+
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (Path record : records){
+			if (sequence(record) > since){
+				futures.add(recordReads.get(record.getPath()));
+			}
+		}
+
+		Set<String> keys = new LinkedHashSet<String>();
+		boolean cleared = false;
+		boolean complete = true;
+
+		// Gather the results in order
+		for (OperationFuture<byte []> future : futures){
+			byte [] data = future.result();
+
+			if (data == null){
+				// trimmed while we were reading
+				complete = false;
+				continue;
+			}
+
+			if (data.length > 0 && data[0] == CLEAR_RECORD){
+				// the keys changed before are kept: the clear is logged after its deletions, so a key created by another client
+				// while they were made is logged before the clear and still exists. re-reading a removed key does no harm
+				cleared = true;
+			}
+			else{
+				keys.addAll(decodeKeys(data));
+			}
+		}
+
+		if (!complete){
+			return new StoreChanges(false, false, new LinkedHashSet<String>(), last);
+		}
+
+		return new StoreChanges(true, cleared, keys, last);
+	}
+
+	/**
+	 * Stop the background compactions.
+	 */
+	void close(){
+		compactor.shutdown();
+	}
+
+	/**
+	 * Append the record, creating the log znode if needed, and run a compaction in the background every compaction interval.
+	 */
+	private void appendRecord(byte [] record) throws KeeperException, InterruptedException{
+		while (true){
+			try{
+				handle.getZooKeeper().create(logPath + "/" + RECORD_PREFIX, record, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateOption.PERSISTENT_SEQUENTIAL.mode());
+				break;
+			}
+			catch(KeeperException.NoNodeException noNode){
+				// the log is created along with its first record
+				try{
+					handle.getZooKeeper().create(logPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+				}
+				catch(KeeperException.NodeExistsException nodeExists){
+					// someone else created the log in the meantime. no error here
+				}
+			}
+		}
+
+		if (appended.incrementAndGet() % compactionInterval == 0 && !compactor.isShutdown()){
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						compact();
+					}
+					catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+					catch(KeeperException e){
+						// the records are trimmed by the next compaction
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Trim the log to the most recent records.
+	 */
+	private void compact() throws KeeperException, InterruptedException{
+		List<Path> records = null;
+
+		try{
+			records = records();
+		}
+		catch(KeeperException.NoNodeException noNode){
+			return ;
+		}
+
+		if (records.size() <= retainedRecords){
+			return ;
+		}
+
+		List<Path> trimmed = records.subList(0, records.size() - retainedRecords);
+
+		// before the records are gone, so that the readers missing them know it
+		raiseTrimmedSequence(sequence(trimmed.get(trimmed.size() - 1)));
+
+		AsyncActiveKeyValueStore recordDeletes = new AsyncActiveKeyValueStore(handle, logPath, window);
+		Map<Path, OperationFuture<Void>> futures = new LinkedHashMap<Path, OperationFuture<Void>>();
+
+		// Issue all the requests. The pipeline blocks us here whenever the window is full.
+		for (Path record : trimmed){
+			futures.put(record, recordDeletes.remove(record.getPath()));
+		}
+
+		// Gather the results
+		for (OperationFuture<Void> future : futures.values()){
+			try{
+				future.result();
+			}
+			catch(IllegalArgumentException absent){
+				// trimmed by another client. no error here
+			}
+		}
+	}
+
+	/**
+	 * List the records of the log, oldest first.
+	 */
+	private List<Path> records() throws KeeperException, InterruptedException{
+		List<Path> records = new ArrayList<Path>();
+
+		for (String name : handle.getZooKeeper().getChildren(logPath, false)){
+			records.add(new Path(name));
+		}
+
+		Collections.sort(records, Paths.PathSequenceIdComparator);
+
+		return records;
+	}
+
+	/**
+	 * Return the sequence number of the last trimmed record, -1 if none.
+	 */
+	private long trimmedSequence() throws KeeperException, InterruptedException{
+		return decodeSequence(handle.getZooKeeper().getData(logPath, false, null));
+	}
+
+	/**
+	 * Raise the sequence number of the last trimmed record to the given one, unless it is already higher.
+	 */
+	private void raiseTrimmedSequence(long sequence) throws KeeperException, InterruptedException{
+		while (true){
+			Stat stat = new Stat();
+			long current = decodeSequence(handle.getZooKeeper().getData(logPath, false, stat));
+
+			if (current >= sequence){
+				return ;
+			}
+
+			try{
+				handle.getZooKeeper().setData(logPath, ByteBuffer.allocate(8).putLong(sequence).array(), stat.getVersion());
+				return ;
+			}
+			catch(KeeperException.BadVersionException badVersion){
+				// raised by another client in the meantime. check again
+			}
+		}
+	}
+
+	/**
+	 * Return the sequence number of the record.
+	 */
+	private static long sequence(Path record){
+		String name = record.getPath();
+
+		return Long.parseLong(name.substring(name.lastIndexOf('-') + 1));
+	}
+
+	/**
+	 * Decode the sequence number kept as data of the log znode, -1 if none.
+	 */
+	private static long decodeSequence(byte [] data){
+		return data == null || data.length != 8 ? -1 : ByteBuffer.wrap(data).getLong();
+	}
+
+	/**
+	 * Encode a record listing the given keys.
+	 */
+	private static byte [] keysRecord(List<byte []> encodedKeys, int size){
+		ByteBuffer record = ByteBuffer.allocate(size);
+
+		record.put(KEYS_RECORD).putInt(encodedKeys.size());
+
+		for (byte [] encodedKey : encodedKeys){
+			record.putInt(encodedKey.length).put(encodedKey);
+		}
+
+		return record.array();
+	}
+
+	/**
+	 * Decode the keys of a record. A malformed record yields the keys decoded before the error.
+	 */
+	private static List<String> decodeKeys(byte [] data){
+		List<String> keys = new ArrayList<String>();
+		ByteBuffer record = ByteBuffer.wrap(data);
+
+		try{
+			record.get();
+
+			for (int count = record.getInt(); count > 0; --count){
+				byte [] encodedKey = new byte[record.getInt()];
+				record.get(encodedKey);
+				keys.add(new String(encodedKey, UTF8));
+			}
+		}
+		catch(BufferUnderflowException e){
+			// not written by us. nothing more to decode
+		}
+		catch(NegativeArraySizeException e){
+			// not written by us. nothing more to decode
+		}
+
+		return keys;
+	}
+}
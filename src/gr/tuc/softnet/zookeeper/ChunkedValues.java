@@ -0,0 +1,648 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link ChunkedValues} stores values that are larger than a chunk size as a number of chunk znodes under the key znode.
+ *
+ * <p>
+ * A large value is split in chunks of at most chunk size bytes. Each chunk is stored as data of a child znode of the key znode,
+ * named after a generation identifier unique to the write and the index of the chunk (e.g. <em>/store/key/1f2e3d4c5b6a7980-0000000003</em>).
+ * The data of the key znode is then a manifest recording the generation, the number of chunks and the length of the value.
+ * </p>
+ *
+ * <p>
+ * The manifest is the commit point of a write: the chunks of a generation are all written before the manifest referring to them is stored,
+ * and the chunks of the previous generation are deleted only after the new manifest is stored. The manifest is stored with a version check against
+ * the version of the key znode read before writing the chunks, so that concurrent writers do not lose track of each other's chunks. A reader
+ * therefore either sees a complete value or finds a chunk missing because a newer generation replaced it, in which case it reads the manifest again.
+ * </p>
+ *
+ * <p>
+ * A new key with a large value is first created with a pending manifest (without chunks) which reads as if the key has no value yet.
+ * The writer then claims the key by creating an ephemeral <em>owner</em> child znode, which it deletes once the value is committed.
+ * A pending key is taken as absent by the store, but it can only be created over while it is not claimed (see {@link #replacePending(String, byte[])}):
+ * the writer creating it over claims it first, so of two writers creating the key exactly one succeeds and the other finds the key existing.
+ * Since the owner znode is ephemeral, a pending manifest left behind by a client that died before committing (or before deleting the key, see
+ * {@link #compareAndDelete(String, int)}) blocks the key only until the session of the client expires. A pending key cannot be replaced;
+ * {@link #replace(String, byte[])} and {@link #compareAndSet(String, int, byte[])} find no key.
+ * </p>
+ *
+ * <p>
+ * Any key znode data of the manifest length starting with the manifest magic ("AKVC") is taken as a manifest, so that layout is reserved.
+ * A value that happens to match it is stored chunked like a large value (with a real manifest and a single chunk), so it reads back unchanged.
+ * Only such values stored before chunking was enabled are still read as manifests.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setChunkSize(int)
+ * @author Tassos Souris
+ *
+ */
+class ChunkedValues {
+	// Identifies a manifest ("AKVC")
+	private static final int MANIFEST_MAGIC = 0x414b5643;
+
+	// The length of a manifest: magic, generation, number of chunks, value length
+	private static final int MANIFEST_LENGTH = 4 + 8 + 4 + 4;
+
+	// The number of chunks of a pending manifest
+	private static final int PENDING = -1;
+
+	// The name of the ephemeral child znode claiming a pending key. Chunk names never take this form.
+	private static final String OWNER = "owner";
+
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The maximum number of bytes of a chunk
+	private int chunkSize = 0;
+
+	// The number of chunk requests kept in flight
+	private int window = 0;
+
+	// Generates the generation identifiers
+	private Random generations = new Random();
+
+	/**
+	 * Construct a new {@link ChunkedValues}.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param chunkSize
+	 * 			The maximum number of bytes of a chunk; larger values are chunked (must be positive).
+	 * @param window
+	 * 			The number of chunk requests kept in flight (must be positive).
+	 */
+	ChunkedValues(ZooKeeperHandle handle, int chunkSize, int window){
+		assert handle != null;
+		assert chunkSize > 0;
+		assert window > 0;
+
+		this.handle = handle;
+		this.chunkSize = chunkSize;
+		this.window = window;
+	}
+
+	/**
+	 * Check whether the given value must be chunked.
+	 *
+	 * @param value
+	 * 			The value (may be null).
+	 * @return True if the value is larger than the chunk size, or if it would be taken as a manifest when stored as is.
+	 */
+	boolean isLarge(byte [] value){
+		return value != null && (value.length > chunkSize || isManifest(value));
+	}
+
+	/**
+	 * Check whether the given znode data is a manifest.
+	 *
+	 * @param data
+	 * 			The data of a key znode (may be null).
+	 * @return True if the data is a manifest.
+	 */
+	static boolean isManifest(byte [] data){
+		return data != null && data.length == MANIFEST_LENGTH && ByteBuffer.wrap(data).getInt() == MANIFEST_MAGIC;
+	}
+
+	/**
+	 * Check whether the given znode data is a pending manifest.
+	 *
+	 * @param data
+	 * 			The data of a key znode (may be null).
+	 * @return True if the data is a pending manifest, in which case the key reads as absent.
+	 */
+	static boolean isPending(byte [] data){
+		return isManifest(data) && ByteBuffer.wrap(data, 4 + 8, 4).getInt() == PENDING;
+	}
+
+	/**
+	 * Check whether the data of the znode with the given stat may be a manifest, that is whether it has the length of a manifest.
+	 *
+	 * @param stat
+	 * 			The stat of a key znode (must not be null).
+	 * @return False if the data is certainly not a manifest.
+	 */
+	static boolean mayBeManifest(Stat stat){
+		return stat.getDataLength() == MANIFEST_LENGTH;
+	}
+
+	/**
+	 * Resolve the value of a key given the data last read from its znode. If the data is a manifest the chunks are read
+	 * (concurrently); otherwise the data is the value itself.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param data
+	 * 			The data read from the key znode.
+	 * @return The value of the key, or null if the key does not exist (any more) or it is still pending.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	byte [] resolve(String keyZnodePath, byte [] data) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		while (isManifest(data)){
+			ByteBuffer manifest = ByteBuffer.wrap(data);
+			manifest.getInt(); // magic
+			long generation = manifest.getLong();
+			int chunks = manifest.getInt();
+			int length = manifest.getInt();
+
+			if (chunks == PENDING){
+				// the key is being created
+				return null;
+			}
+
+			byte [] value = readChunks(keyZnodePath, generation, chunks, length);
+
+			if (value != null){
+				return value;
+			}
+
+			// a chunk is missing so a newer generation replaced the one we read. read the manifest again
+			try{
+				data = handle.getZooKeeper().getData(keyZnodePath, false, null);
+			}
+			catch(KeeperException.NoNodeException noNode){
+				// the key was removed
+				return null;
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Create the key znode with the given large value.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param value
+	 * 			The value (must be large).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NodeExistsException} if the key znode exists, or if
+	 * 			another writer created the key over our pending manifest before we claimed it).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void create(String keyZnodePath, byte [] value) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+		assert isLarge(value);
+
+		// create the key znode with a pending manifest (its version is 0)
+		handle.getZooKeeper().create(keyZnodePath, manifest(0, PENDING, 0), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+		if (!claim(keyZnodePath)){
+			// another writer claimed our pending manifest first. the key is theirs
+			throw new KeeperException.NodeExistsException(keyZnodePath);
+		}
+
+		long generation = generations.nextLong();
+		int chunks = chunkCount(value);
+
+		try{
+			writeChunks(keyZnodePath, generation, value);
+
+			// commit
+			handle.getZooKeeper().setData(keyZnodePath, manifest(generation, chunks, value.length), 0);
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			// another writer created the key over our pending manifest before we claimed it
+			deleteChunks(keyZnodePath, generation, chunks);
+			release(keyZnodePath);
+			throw new KeeperException.NodeExistsException(keyZnodePath);
+		}
+		catch(KeeperException e){
+			// do not leave a pending key behind (best effort)
+			deleteChunks(keyZnodePath, generation, chunks);
+			try{
+				release(keyZnodePath);
+				handle.getZooKeeper().delete(keyZnodePath, 0);
+			}
+			catch(KeeperException ignore){
+			}
+			throw e;
+		}
+
+		release(keyZnodePath);
+	}
+
+	/**
+	 * Replace the pending manifest of the key znode with the given value, chunking it if it is large, unless the pending key is claimed.
+	 * Used when the key znode is found to exist while creating the key.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param value
+	 * 			The value (may be null).
+	 * @return True if the pending manifest was replaced and false if the key znode holds a value or is claimed by a writer still
+	 * 			creating it (the key exists).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NoNodeException} if there is no key znode any more).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	boolean replacePending(String keyZnodePath, byte [] value) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		while (true){
+			Stat stat = handle.getZooKeeper().exists(keyZnodePath, false);
+
+			if (stat == null){
+				throw new KeeperException.NoNodeException(keyZnodePath);
+			}
+			else if (!mayBeManifest(stat)){
+				// do not read a value only to find it is not a manifest
+				return false;
+			}
+
+			byte [] old = handle.getZooKeeper().getData(keyZnodePath, false, stat);
+
+			if (!isPending(old) || !claim(keyZnodePath)){
+				return false;
+			}
+
+			try{
+				if (commit(keyZnodePath, old, stat.getVersion(), value)){
+					return true;
+				}
+			}
+			finally{
+				release(keyZnodePath);
+			}
+			// the key was changed in the meantime. look again
+		}
+	}
+
+	/**
+	 * Replace the value of the key znode with the given value, chunking it if it is large.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param value
+	 * 			The new value (may be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NoNodeException} if there is no key znode or it is pending).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void replace(String keyZnodePath, byte [] value) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		while (true){
+			Stat stat = new Stat();
+			byte [] old = readSettled(keyZnodePath, stat);
+
+			if (commit(keyZnodePath, old, stat.getVersion(), value)){
+				return ;
+			}
+			// somebody else changed the key. try again
+		}
+	}
+
+	/**
+	 * Replace the value of the key znode with the given value, chunking it if it is large, if and only if the version
+	 * of the key znode is the expected version.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param expectedVersion
+	 * 			The expected version of the key znode.
+	 * @param value
+	 * 			The new value (may be null).
+	 * @return True if the value was replaced and false if the version of the key znode is not the expected version.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NoNodeException} if there is no key znode or it is pending).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	boolean compareAndSet(String keyZnodePath, int expectedVersion, byte [] value) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		Stat stat = new Stat();
+		byte [] old = readSettled(keyZnodePath, stat);
+
+		if (stat.getVersion() != expectedVersion){
+			// do not bother writing the chunks
+			return false;
+		}
+
+		return commit(keyZnodePath, old, expectedVersion, value);
+	}
+
+	/**
+	 * Delete the key znode together with its chunks if and only if the version of the key znode is the expected version.
+	 *
+	 * <p>
+	 * The key znode is first set to a pending manifest with a version check, after which the key reads as absent, and is then deleted
+	 * along with the chunks of the previous value. Since a pending key may be created over, the key znode is deleted only if it is still
+	 * at the version of the pending manifest and has no other chunks under it (those of a writer creating the key over it); otherwise
+	 * the pending manifest is left to that writer.
+	 * </p>
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @param expectedVersion
+	 * 			The expected version of the key znode.
+	 * @return True if the key znode was deleted and false if the version of the key znode is not the expected version.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NoNodeException} if there is no key znode or it is pending).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	boolean compareAndDelete(String keyZnodePath, int expectedVersion) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		Stat stat = new Stat();
+		byte [] old = readSettled(keyZnodePath, stat);
+
+		if (stat.getVersion() != expectedVersion){
+			return false;
+		}
+
+		Stat pending = null;
+
+		try{
+			pending = handle.getZooKeeper().setData(keyZnodePath, manifest(0, PENDING, 0), expectedVersion);
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			return false;
+		}
+
+		// the chunks of the previous value (if any) are not referenced any more
+		deleteChunks(keyZnodePath, old);
+
+		try{
+			handle.getZooKeeper().delete(keyZnodePath, pending.getVersion());
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// somebody else deleted the key in the meantime. no error here
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			// the key was created over the pending manifest. our removal still took place before that
+		}
+		catch(KeeperException.NotEmptyException notEmpty){
+			// a writer is creating the key over the pending manifest (or left chunks behind). the key reads as absent either way
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read the data of the key znode, which must not be pending.
+	 *
+	 * @throws KeeperException.NoNodeException
+	 * 			If there is no key znode or it is pending, since a pending key reads as absent.
+	 */
+	private byte [] readSettled(String keyZnodePath, Stat stat) throws KeeperException, InterruptedException{
+		byte [] data = handle.getZooKeeper().getData(keyZnodePath, false, stat);
+
+		if (isPending(data)){
+			throw new KeeperException.NoNodeException(keyZnodePath);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Claim the pending key by creating its owner znode, which goes away with our session if we die before releasing it.
+	 *
+	 * @return True if we claimed the key and false if another writer holds it.
+	 */
+	private boolean claim(String keyZnodePath) throws KeeperException, InterruptedException{
+		try{
+			handle.getZooKeeper().create(keyZnodePath + "/" + OWNER, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+			return true;
+		}
+		catch(KeeperException.NodeExistsException nodeExists){
+			return false;
+		}
+	}
+
+	/**
+	 * Release the claim of the key taken with {@link #claim(String)}.
+	 */
+	private void release(String keyZnodePath) throws KeeperException, InterruptedException{
+		try{
+			handle.getZooKeeper().delete(keyZnodePath + "/" + OWNER, -1);
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// the key was deleted along with its children
+		}
+	}
+
+	/**
+	 * Store the value (writing its chunks first if it is large) with a version check and delete the chunks of the old value on success.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode.
+	 * @param old
+	 * 			The data of the key znode read at the given version.
+	 * @param version
+	 * 			The version of the key znode.
+	 * @param value
+	 * 			The new value (may be null).
+	 * @return True if the value was stored and false if the version of the key znode changed.
+	 */
+	private boolean commit(String keyZnodePath, byte [] old, int version, byte [] value) throws KeeperException, InterruptedException{
+		long generation = 0;
+		int chunks = 0;
+		byte [] data = value;
+
+		if (isLarge(value)){
+			generation = generations.nextLong();
+			chunks = chunkCount(value);
+
+			writeChunks(keyZnodePath, generation, value);
+
+			data = manifest(generation, chunks, value.length);
+		}
+
+		try{
+			// commit, if nobody changed the key in the meantime
+			handle.getZooKeeper().setData(keyZnodePath, data, version);
+		}
+		catch(KeeperException.BadVersionException badVersion){
+			// somebody else changed the key. drop our chunks
+			deleteChunks(keyZnodePath, generation, chunks);
+			return false;
+		}
+		catch(KeeperException e){
+			deleteChunks(keyZnodePath, generation, chunks);
+			throw e;
+		}
+
+		// the chunks of the previous value (if any) are not referenced any more
+		deleteChunks(keyZnodePath, old);
+
+		return true;
+	}
+
+	/**
+	 * Delete the key znode together with its chunks.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of the key znode (must not be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error ({@link KeeperException.NoNodeException} if there is no key znode).
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void delete(String keyZnodePath) throws KeeperException, InterruptedException{
+		assert keyZnodePath != null;
+
+		while (true){
+			try{
+				handle.getZooKeeper().delete(keyZnodePath, -1);
+				return ;
+			}
+			catch(KeeperException.NotEmptyException notEmpty){
+				// delete the chunks first. a concurrent writer may add more so we try again afterwards
+				AsyncActiveKeyValueStore chunkStore = new AsyncActiveKeyValueStore(handle, keyZnodePath, window);
+				List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>();
+
+				for (String chunk : handle.getZooKeeper().getChildren(keyZnodePath, false)){
+					futures.add(chunkStore.remove(chunk));
+				}
+
+				awaitIgnoringAbsent(futures);
+			}
+		}
+	}
+
+	/**
+	 * Read the chunks of the given generation concurrently and assemble the value.
+	 *
+	 * @return The value or null if a chunk is missing.
+	 */
+	private byte [] readChunks(String keyZnodePath, long generation, int chunks, int length) throws KeeperException, InterruptedException{
+		// the manifest is read again through the primary session when a chunk is missing, so the chunks must not be read from a lagging one
+		AsyncActiveKeyValueStore chunkStore = new AsyncActiveKeyValueStore(handle, keyZnodePath, window).readFromPrimary();
+		List<OperationFuture<byte []>> futures = new ArrayList<OperationFuture<byte []>>(chunks);
+
+		for (int i = 0; i < chunks; ++i){
+			futures.add(chunkStore.get(chunkName(generation, i)));
+		}
+
+		ByteBuffer value = ByteBuffer.allocate(length);
+
+		for (OperationFuture<byte []> future : futures){
+			byte [] chunk = future.result();
+
+			if (chunk == null || chunk.length > value.remaining()){
+				return null;
+			}
+			value.put(chunk);
+		}
+
+		if (value.hasRemaining()){
+			return null;
+		}
+
+		return value.array();
+	}
+
+	/**
+	 * Write the chunks of the value under the given generation concurrently.
+	 */
+	private void writeChunks(String keyZnodePath, long generation, byte [] value) throws KeeperException, InterruptedException{
+		AsyncActiveKeyValueStore chunkStore = new AsyncActiveKeyValueStore(handle, keyZnodePath, window);
+		List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>();
+
+		for (int i = 0, offset = 0; offset < value.length; ++i, offset += chunkSize){
+			byte [] chunk = new byte[Math.min(chunkSize, value.length - offset)];
+			System.arraycopy(value, offset, chunk, 0, chunk.length);
+
+			futures.add(chunkStore.putIfAbsent(chunkName(generation, i), chunk));
+		}
+
+		for (OperationFuture<Void> future : futures){
+			future.result();
+		}
+	}
+
+	/**
+	 * Delete the chunks of the given generation concurrently. Missing chunks are ignored.
+	 */
+	private void deleteChunks(String keyZnodePath, long generation, int chunks) throws KeeperException, InterruptedException{
+		AsyncActiveKeyValueStore chunkStore = new AsyncActiveKeyValueStore(handle, keyZnodePath, window);
+		List<OperationFuture<Void>> futures = new ArrayList<OperationFuture<Void>>(Math.max(chunks, 0));
+
+		for (int i = 0; i < chunks; ++i){
+			futures.add(chunkStore.remove(chunkName(generation, i)));
+		}
+
+		awaitIgnoringAbsent(futures);
+	}
+
+	/**
+	 * Delete the chunks referenced by the given key znode data, if it is a manifest.
+	 */
+	private void deleteChunks(String keyZnodePath, byte [] data) throws KeeperException, InterruptedException{
+		if (isManifest(data)){
+			ByteBuffer manifest = ByteBuffer.wrap(data);
+			manifest.getInt(); // magic
+			long generation = manifest.getLong();
+			int chunks = manifest.getInt();
+
+			deleteChunks(keyZnodePath, generation, chunks);
+		}
+	}
+
+	/**
+	 * Wait for the given remove requests ignoring those that found nothing to remove.
+	 */
+	private static void awaitIgnoringAbsent(List<OperationFuture<Void>> futures) throws KeeperException, InterruptedException{
+		for (OperationFuture<Void> future : futures){
+			try{
+				future.result();
+			}
+			catch(IllegalArgumentException absent){
+				// already removed
+			}
+		}
+	}
+
+	/**
+	 * Return the number of chunks of the value.
+	 */
+	private int chunkCount(byte [] value){
+		return (value.length + chunkSize - 1) / chunkSize;
+	}
+
+	/**
+	 * Return the name of the znode of the given chunk.
+	 */
+	private static String chunkName(long generation, int index){
+		return String.format("%016x-%010d", generation, index);
+	}
+
+	/**
+	 * Encode a manifest.
+	 */
+	private static byte [] manifest(long generation, int chunks, int length){
+		ByteBuffer manifest = ByteBuffer.allocate(MANIFEST_LENGTH);
+
+		manifest.putInt(MANIFEST_MAGIC);
+		manifest.putLong(generation);
+		manifest.putInt(chunks);
+		manifest.putInt(length);
+
+		return manifest.array();
+	}
+}
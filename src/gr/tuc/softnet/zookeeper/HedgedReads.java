@@ -0,0 +1,277 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link HedgedReads} issues the reads of an active key-value store over a {@link ZooKeeperHandlePool}, sending a second copy of a read
+ * that is slow to answer through another session of the pool and taking the first answer.
+ *
+ * <p>
+ * A read goes out through a session of the pool. If it has not been answered within the hedging delay, the same read goes out through another
+ * connected session, which is normally connected to another server, and whichever answer comes first is returned. A server stalled by a
+ * garbage collection pause or a snapshot write thus delays a read by about the hedging delay rather than by the stall. The delay is the given
+ * percentile of the latencies of the recent reads, so only about the slowest reads beyond the percentile are sent twice.
+ * </p>
+ *
+ * <p>
+ * A copy that fails with a connection loss does not answer the read while the other copy may still succeed.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setHedgedReads(double)
+ * @author Tassos Souris
+ *
+ */
+final class HedgedReads {
+	// The hedging delay until enough latencies are sampled, in nanoseconds
+	private static final long INITIAL_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// The shortest hedging delay, in nanoseconds, so that a burst of fast reads does not make every read go out twice
+	private static final long MIN_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+	// The number of recent latencies the delay is derived from
+	private static final int SAMPLES = 1024;
+
+	// The delay is derived again every this many latencies
+	private static final int RECOMPUTE_INTERVAL = 64;
+
+	// The pool of sessions
+	private ZooKeeperHandlePool pool = null;
+
+	// The percentile of the latencies the delay is set to
+	private double percentile = 0;
+
+	// The latencies of the recent reads in nanoseconds, as a ring
+	private final long [] latencies = new long[SAMPLES];
+
+	// The number of latencies recorded so far
+	private long recorded = 0;
+
+	// The current hedging delay in nanoseconds
+	private volatile long delayNanos = INITIAL_DELAY_NANOS;
+
+	/**
+	 * The answer of a hedged read: the first successful (or final) answer of its copies.
+	 */
+	private static class Answer<T>{
+		private final CountDownLatch done = new CountDownLatch(1);
+		// the number of copies sent and not answered yet
+		private int pending = 0;
+		// whether a copy may still be sent
+		private boolean hedging = true;
+		private KeeperException.Code code = null;
+		private String path = null;
+		private T result = null;
+		private Stat stat = null;
+
+		/**
+		 * Count a copy being sent. Returns false if the read was answered already.
+		 */
+		synchronized boolean send(){
+			if (done.getCount() == 0){
+				return false;
+			}
+			++pending;
+			return true;
+		}
+
+		/**
+		 * Take the answer of a copy, unless the read was answered already. A connection loss answers the read only if no other copy
+		 * is pending or may still be sent.
+		 */
+		synchronized void answer(KeeperException.Code code, String path, T result, Stat stat){
+			--pending;
+
+			if (done.getCount() == 0){
+				return ;
+			}
+			if (code == KeeperException.Code.CONNECTIONLOSS && (pending > 0 || hedging)){
+				// the other copy may still succeed
+				this.code = code;
+				this.path = path;
+				return ;
+			}
+
+			this.code = code;
+			this.path = path;
+			this.result = result;
+			this.stat = stat;
+			done.countDown();
+		}
+
+		/**
+		 * Stop sending copies, and answer the read with the last error if no copy is pending.
+		 */
+		synchronized void giveUp(){
+			hedging = false;
+
+			if (pending == 0){
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Construct a new {@link HedgedReads} over the given pool.
+	 *
+	 * @param pool
+	 * 			The pool of sessions (must not be null and must have at least two sessions).
+	 * @param percentile
+	 * 			The percentile of the latencies the hedging delay is set to (between 0 and 100, exclusive).
+	 */
+	HedgedReads(ZooKeeperHandlePool pool, double percentile){
+		assert pool != null && pool.size() > 1;
+		assert percentile > 0 && percentile < 100;
+
+		this.pool = pool;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Hedged version of {@link ZooKeeper#getData(String, boolean, Stat)} without a watch.
+	 */
+	byte [] getData(final String path, final Stat stat) throws KeeperException, InterruptedException{
+		final Answer<byte []> answer = new Answer<byte []>();
+
+		read(answer, new Request() {
+			@Override
+			public void send(ZooKeeper session, final long start, final boolean first) {
+				session.getData(path, false, new AsyncCallback.DataCallback() {
+					@Override
+					public void processResult(int rc, String path, Object ctx, byte[] data, Stat dataStat) {
+						if (first){
+							record(System.nanoTime() - start);
+						}
+						answer.answer(KeeperException.Code.get(rc), path, data, dataStat);
+					}
+				}, null);
+			}
+		});
+
+		if (stat != null && answer.stat != null){
+			Stats.copy(answer.stat, stat);
+		}
+
+		return answer.result;
+	}
+
+	/**
+	 * Hedged version of {@link ZooKeeper#exists(String, boolean)} without a watch.
+	 */
+	Stat exists(final String path) throws KeeperException, InterruptedException{
+		final Answer<Stat> answer = new Answer<Stat>();
+
+		try{
+			read(answer, new Request() {
+				@Override
+				public void send(ZooKeeper session, final long start, final boolean first) {
+					session.exists(path, false, new AsyncCallback.StatCallback() {
+						@Override
+						public void processResult(int rc, String path, Object ctx, Stat stat) {
+							if (first){
+								record(System.nanoTime() - start);
+							}
+							answer.answer(KeeperException.Code.get(rc), path, stat, stat);
+						}
+					}, null);
+				}
+			});
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// as exists() does
+			return null;
+		}
+
+		return answer.result;
+	}
+
+	/**
+	 * Return the current hedging delay.
+	 *
+	 * @return The delay in nanoseconds.
+	 */
+	long delayNanos(){
+		return delayNanos;
+	}
+
+	/**
+	 * Sends a copy of a read through a session.
+	 */
+	private static interface Request{
+		void send(ZooKeeper session, long start, boolean first);
+	}
+
+	/**
+	 * Send the read, hedge it after the delay and wait for the answer.
+	 */
+	private void read(Answer<?> answer, Request request) throws KeeperException, InterruptedException{
+		ZooKeeper first = pool.getReadZooKeeper();
+		long start = System.nanoTime();
+
+		answer.send();
+		request.send(first, start, true);
+
+		if (!answer.done.await(delayNanos, TimeUnit.NANOSECONDS)){
+			ZooKeeper second = otherSession(first);
+
+			if (second != null && answer.send()){
+				request.send(second, System.nanoTime(), false);
+			}
+		}
+
+		// no more copies
+		answer.giveUp();
+		answer.done.await();
+
+		if (answer.code != KeeperException.Code.OK){
+			throw KeeperException.create(answer.code, answer.path);
+		}
+	}
+
+	/**
+	 * Return a connected session of the pool other than the given one, or null if there is none.
+	 */
+	private ZooKeeper otherSession(ZooKeeper session){
+		for (int i = 0; i < pool.size(); ++i){
+			ZooKeeper other = pool.getReadZooKeeper();
+
+			if (other != session && other.getState() == ZooKeeper.States.CONNECTED){
+				return other;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Record the latency of a read and derive the delay again every so often.
+	 */
+	private void record(long latencyNanos){
+		long [] sorted = null;
+
+		synchronized (latencies) {
+			latencies[(int)(recorded % SAMPLES)] = latencyNanos;
+
+			if (++recorded % RECOMPUTE_INTERVAL != 0){
+				return ;
+			}
+
+			sorted = Arrays.copyOf(latencies, (int)Math.min(recorded, SAMPLES));
+		}
+
+		Arrays.sort(sorted);
+
+		int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+
+		delayNanos = Math.max(MIN_DELAY_NANOS, sorted[Math.max(0, index)]);
+	}
+}
@@ -0,0 +1,167 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link KeyBloomFilter} is a Bloom filter over a set of keys: it answers whether a key might be in the set, with no false negatives
+ * and a bounded rate of false positives.
+ *
+ * <p>
+ * The filter is sized for an expected number of keys and a false positive rate; adding more keys than expected raises the rate.
+ * The bits are held in a primitive long array and set with compare-and-set, so the filter takes a fixed amount of memory
+ * (about 1.2 bytes per expected key for a 1% rate) and is read without locking. Keys cannot be removed from the filter.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see KeyIndex
+ * @author Tassos Souris
+ *
+ */
+final class KeyBloomFilter {
+	// The bits of the filter
+	private final AtomicLongArray bits;
+
+	// The number of bits of the filter
+	private final long bitCount;
+
+	// The number of bits set per key
+	private final int hashCount;
+
+	// The expected number of keys
+	private final int capacity;
+
+	// The number of keys added that set at least one bit, an estimate of the number of distinct keys
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Construct a new empty {@link KeyBloomFilter}.
+	 *
+	 * @param expectedKeys
+	 * 			The expected number of keys (must be positive).
+	 * @param falsePositiveRate
+	 * 			The rate of false positives for the expected number of keys (must be between 0 and 1, exclusive).
+	 * @throws IllegalArgumentException
+	 * 			If expectedKeys or falsePositiveRate is out of range.
+	 */
+	KeyBloomFilter(int expectedKeys, double falsePositiveRate) throws IllegalArgumentException{
+		if (expectedKeys <= 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1)){
+			throw new IllegalArgumentException();
+		}
+
+		double ln2 = Math.log(2);
+		// the optimal number of bits, rounded up to whole words
+		long words = (long)Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2) / 64);
+		words = Math.max(1, Math.min(words, Integer.MAX_VALUE));
+
+		this.bits = new AtomicLongArray((int)words);
+		this.bitCount = words * 64;
+		this.hashCount = (int)Math.max(1, Math.round((double)bitCount / expectedKeys * ln2));
+		this.capacity = expectedKeys;
+	}
+
+	/**
+	 * Add the key to the filter.
+	 *
+	 * @return True if the key was not in the filter (some bit was set).
+	 */
+	boolean add(String key){
+		long h1 = hash(key);
+		long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+		boolean changed = false;
+
+		for (int i = 0; i < hashCount; ++i){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			int word = (int)(bit >>> 6);
+			long mask = 1L << bit;
+
+			while (true){
+				long current = bits.get(word);
+
+				if ((current & mask) != 0){
+					break;
+				}
+				if (bits.compareAndSet(word, current, current | mask)){
+					changed = true;
+					break;
+				}
+			}
+		}
+
+		if (changed){
+			count.incrementAndGet();
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Check whether the key might be in the filter.
+	 *
+	 * @return False if the key was definitely not added, true if it might have been added.
+	 */
+	boolean mightContain(String key){
+		long h1 = hash(key);
+		long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+
+		for (int i = 0; i < hashCount; ++i){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+
+			if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return the expected number of keys.
+	 */
+	int capacity(){
+		return capacity;
+	}
+
+	/**
+	 * Return the estimated number of distinct keys added.
+	 */
+	int count(){
+		return count.get();
+	}
+
+	/**
+	 * Return the number of bytes taken by the bits of the filter.
+	 */
+	long sizeInBytes(){
+		return bitCount / 8;
+	}
+
+	/**
+	 * Return a 64-bit hash of the key (FNV-1a over the characters, then mixed).
+	 */
+	private static long hash(String key){
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < key.length(); ++i){
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * Mix the bits of the value (the finalizer of MurmurHash3).
+	 */
+	private static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,61 @@
+package gr.tuc.softnet.zookeeper;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link KeyBloomFilter} class.
+ * 
+ * @see KeyBloomFilter
+ * @author Tassos Souris
+ *
+ */
+public class KeyBloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives(){
+		KeyBloomFilter filter = new KeyBloomFilter(10000, 0.01);
+
+		for (int i = 0; i < 10000; ++i){
+			filter.add("key-" + i);
+		}
+		for (int i = 0; i < 10000; ++i){
+			assertTrue(filter.mightContain("key-" + i));
+		}
+	}
+
+	@Test
+	public void testFalsePositiveRate(){
+		KeyBloomFilter filter = new KeyBloomFilter(10000, 0.01);
+
+		for (int i = 0; i < 10000; ++i){
+			filter.add("key-" + i);
+		}
+
+		int falsePositives = 0;
+
+		for (int i = 0; i < 10000; ++i){
+			if (filter.mightContain("missing-" + i)){
+				++falsePositives;
+			}
+		}
+
+		// 1% expected, with some slack
+		assertTrue(falsePositives < 200);
+	}
+
+	@Test
+	public void testAddReportsChange(){
+		KeyBloomFilter filter = new KeyBloomFilter(100, 0.01);
+
+		assertTrue(filter.add("key"));
+		assertFalse(filter.add("key"));
+		assertEquals(1, filter.count());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRate(){
+		new KeyBloomFilter(100, 1.0);
+	}
+}
@@ -0,0 +1,107 @@
+package gr.tuc.softnet.zookeeper;
+
+import gr.tuc.softnet.zookeeper.znode.WatchEvent;
+
+/**
+ * {@link KeyEvent} describes a change of a key of an active key-value store: the key was created, its value was changed, or it was removed.
+ *
+ * <p>
+ * The event carries the value of the key as read when the change was detected. Several changes made in quick succession may be reported
+ * as a single event with the latest value, but the transitions between a key being present and absent are always reported.
+ * </p>
+ *
+ * <p>
+ * This class is immutable.
+ * </p>
+ *
+ * @see KeyListener
+ * @author Tassos Souris
+ *
+ */
+public final class KeyEvent {
+	// the event for the key znode
+	private final WatchEvent event;
+	// the key
+	private final String key;
+	// the value, null if not available
+	private final byte [] value;
+	// the version of the value, -1 if not available
+	private final int version;
+
+	/**
+	 * Construct a new {@link KeyEvent}.
+	 *
+	 * @param event
+	 * 			The event for the key znode (must not be null).
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param value
+	 * 			The value (may be null). Not copied.
+	 * @param version
+	 * 			The version of the value, -1 if the key was removed.
+	 */
+	KeyEvent(WatchEvent event, String key, byte [] value, int version){
+		assert event != null;
+		assert key != null;
+
+		this.event = event;
+		this.key = key;
+		this.value = value;
+		this.version = version;
+	}
+
+	/**
+	 * Return the kind of the change: {@link WatchEvent.Kind#NODE_CREATED}, {@link WatchEvent.Kind#NODE_DATA_CHANGED} or {@link WatchEvent.Kind#NODE_DELETED}.
+	 *
+	 * @return The kind.
+	 */
+	public WatchEvent.Kind kind(){
+		return event.kind();
+	}
+
+	/**
+	 * Return the modifier of the listener registration that produced the event.
+	 *
+	 * @return The modifier.
+	 */
+	public WatchEvent.Modifier modifier(){
+		return event.modifier();
+	}
+
+	/**
+	 * Return the event for the znode representing the key.
+	 *
+	 * @return The event.
+	 */
+	public WatchEvent watchEvent(){
+		return event;
+	}
+
+	/**
+	 * Return the key that changed.
+	 *
+	 * @return The key.
+	 */
+	public String key(){
+		return key;
+	}
+
+	/**
+	 * Return a copy of the value of the key as read when the change was detected.
+	 *
+	 * @return The value, or null if the key was removed, its value is null, or its value is stored in chunks (see
+	 * 			{@link ActiveKeyValueStore.Builder#setChunkSize(int)}) in which case it must be read with {@link ActiveKeyValueStore#get(String)}.
+	 */
+	public byte [] value(){
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * Return the version of the value (see {@link VersionedValue#version()}).
+	 *
+	 * @return The version or -1 if the key was removed.
+	 */
+	public int version(){
+		return version;
+	}
+}
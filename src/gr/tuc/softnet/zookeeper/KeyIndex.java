@@ -0,0 +1,262 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link KeyIndex} keeps a {@link KeyBloomFilter} over the keys of an active key-value store, so that a key can be found
+ * definitely absent without going to the ZooKeeper server.
+ *
+ * <p>
+ * The filter is built by listing the znodes that are the parents of the key znodes (the znode of the store, or each bucket in turn for
+ * the bucketed layout) leaving a child watch on each. A {@link Watcher.Event.EventType#NodeChildrenChanged} event re-lists the parent
+ * and adds the new keys to the filter. The keys inserted through the store are added before they are created, so they are never
+ * reported absent by this client. The removed keys stay in the filter (raising the rate of false positives) until the filter is rebuilt,
+ * which happens when the number of keys exceeds the capacity of the filter; the new filter has twice the capacity and replaces the
+ * old one once all the parents are listed into it.
+ * </p>
+ *
+ * <p>
+ * As with {@link MaterializedView}, the keys created by other clients are seen once the corresponding watch fires. The index is not
+ * usable (see {@link #isAbsent(String)}) until the initial listing is complete and after the session has expired.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setKeyFilter(int, double)
+ * @author Tassos Souris
+ *
+ */
+class KeyIndex implements Watcher{
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The layout of the key znodes
+	private KeyLayout layout = null;
+
+	// The false positive rate of the filters
+	private double falsePositiveRate = 0;
+
+	// The filter in use, null until the initial listing is complete
+	private volatile KeyBloomFilter filter = null;
+
+	// Whether the session has expired
+	private volatile boolean expired = false;
+
+	// The filter being built, null if none. Guarded by this.
+	private KeyBloomFilter next = null;
+
+	// The parents not listed into the filter being built yet. Guarded by this.
+	private Set<String> unlisted = null;
+
+	// The parents whose listing failed due to connection loss and must be retried once reconnected. Guarded by this.
+	private Set<String> deferredListings = new HashSet<String>();
+
+	/**
+	 * Construct a new {@link KeyIndex} for the given store. The index starts building with {@link #start()}.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param layout
+	 * 			The layout of the key znodes of the store (must not be null).
+	 * @param expectedKeys
+	 * 			The expected number of keys (must be positive).
+	 * @param falsePositiveRate
+	 * 			The false positive rate of the filter (must be between 0 and 1, exclusive).
+	 * @throws IllegalArgumentException
+	 * 			If expectedKeys or falsePositiveRate is out of range.
+	 */
+	KeyIndex(ZooKeeperHandle handle, KeyLayout layout, int expectedKeys, double falsePositiveRate) throws IllegalArgumentException{
+		assert handle != null;
+		assert layout != null;
+
+		this.handle = handle;
+		this.layout = layout;
+		this.falsePositiveRate = falsePositiveRate;
+		this.next = new KeyBloomFilter(expectedKeys, falsePositiveRate);
+		this.unlisted = new HashSet<String>(layout.parentPaths());
+	}
+
+	/**
+	 * Start building the index. Returns immediately; the index becomes usable once all the parents are listed.
+	 */
+	void start(){
+		for (String parentPath : layout.parentPaths()){
+			listParent(parentPath);
+		}
+	}
+
+	/**
+	 * Check whether the key is definitely not in the store.
+	 *
+	 * @return True if the key is definitely absent, false if it might be present or the index is not usable.
+	 */
+	boolean isAbsent(String key){
+		KeyBloomFilter current = filter;
+
+		return current != null && !expired && !current.mightContain(key);
+	}
+
+	/**
+	 * Add the key to the index. Called before the key is created through the store.
+	 */
+	synchronized void add(String key){
+		if (filter != null){
+			filter.add(key);
+		}
+		if (next != null){
+			next.add(key);
+		}
+	}
+
+	/**
+	 * Return the number of bytes taken by the filters (the filter in use and the filter being built).
+	 */
+	synchronized long sizeInBytes(){
+		return (filter == null ? 0 : filter.sizeInBytes()) + (next == null ? 0 : next.sizeInBytes());
+	}
+
+	/**
+	 * Apply the watch event to the index.
+	 */
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None){
+			if (event.getState() == Event.KeeperState.Expired){
+				// all the watches are lost with the session
+				expired = true;
+			}
+			else if (event.getState() == Event.KeeperState.SyncConnected){
+				// the client re-registers the watches once reconnected; we only have to retry the listings that failed in the meantime
+				resumeDeferred();
+			}
+			return ;
+		}
+
+		if (layout.parentPaths().contains(event.getPath())){
+			listParent(event.getPath());
+		}
+	}
+
+	/**
+	 * List the keys under the parent znode leaving a child watch.
+	 */
+	private void listParent(final String parentPath){
+		handle.getZooKeeper().getChildren(parentPath, this, new AsyncCallback.ChildrenCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					listed(parentPath, children);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the parent is not there (yet), as is the case for a bucket without keys
+					listed(parentPath, null);
+					awaitParent(parentPath);
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					// the watch may not have been left, try again once reconnected
+					synchronized (KeyIndex.this) {
+						deferredListings.add(parentPath);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Leave a watch for the creation of the parent znode.
+	 */
+	private void awaitParent(final String parentPath){
+		handle.getZooKeeper().exists(parentPath, this, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					// created in the meantime
+					listParent(parentPath);
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					synchronized (KeyIndex.this) {
+						deferredListings.add(parentPath);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Add the listed keys of the parent to the filters, publishing the filter being built once all the parents are listed into it.
+	 *
+	 * @param keys
+	 * 			The keys, null if the parent does not exist.
+	 */
+	private void listed(String parentPath, List<String> keys){
+		int rebuildCapacity = 0;
+
+		synchronized (this) {
+			if (keys != null){
+				for (String key : keys){
+					add(key);
+				}
+			}
+
+			if (next != null && unlisted.remove(parentPath) && unlisted.isEmpty()){
+				filter = next;
+				next = null;
+				unlisted = null;
+			}
+
+			if (next == null && filter != null && filter.count() > filter.capacity()){
+				// too many keys for the rate: start over with a larger filter, dropping the removed keys too
+				rebuildCapacity = (int)Math.min(Integer.MAX_VALUE, 2L * filter.count());
+				next = new KeyBloomFilter(rebuildCapacity, falsePositiveRate);
+				unlisted = new HashSet<String>(layout.parentPaths());
+			}
+		}
+
+		if (rebuildCapacity > 0){
+			start();
+		}
+	}
+
+	/**
+	 * Retry the deferred listings if we got reconnected before they were deferred (in which case
+	 * there will be no event to retry them).
+	 */
+	private void resumeIfConnected(){
+		if (handle.getZooKeeper().getState() == ZooKeeper.States.CONNECTED){
+			resumeDeferred();
+		}
+	}
+
+	/**
+	 * Retry the listings that failed due to connection loss.
+	 */
+	private void resumeDeferred(){
+		Set<String> listings = null;
+
+		synchronized (this) {
+			listings = deferredListings;
+			deferredListings = new HashSet<String>();
+		}
+
+		for (String parentPath : listings){
+			listParent(parentPath);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link KeyLayout} maps the keys of an active key-value store to the paths of the znodes representing them.
+ *
+ * <p>
+ * In the flat layout each key is a child znode of the znode representing the store, e.g. <em>/store/key</em>. In the bucketed layout
+ * the keys are spread by their hash over a fixed number of bucket znodes that are the children of the znode representing the store,
+ * e.g. <em>/store/bucket-0007/key</em>, so that no single znode has a huge children list.
+ * </p>
+ *
+ * <p>
+ * In the hierarchical layout a key is split at the slashes and each leading part is a directory znode, named after the part and
+ * {@link #DIRECTORY_SUFFIX}, e.g. the key <em>tenant42/users/7</em> is represented by the znode <em>/store/tenant42~/users~/7</em>.
+ * The suffix keeps the directories apart from the keys, so that <em>tenant42</em> may be a key too, and the keys under a prefix
+ * are found by walking the subtree of its directory only. The directories hold no data and are created along with their first key.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setBuckets(int)
+ * @author Tassos Souris
+ *
+ */
+final class KeyLayout {
+	/**
+	 * The suffix of the names of the directory znodes of the hierarchical layout. The parts of the keys must not end with it.
+	 */
+	static final String DIRECTORY_SUFFIX = "~";
+
+	// The path of the znode representing the store
+	private final String activeKeyValueStoreZNodePath;
+
+	// The number of buckets, zero for the flat layout
+	private final int buckets;
+
+	// Whether the layout is hierarchical
+	private final boolean hierarchical;
+
+	// The paths of the znodes whose children are the key znodes
+	private final Set<String> parentPaths;
+
+	/**
+	 * Construct a new flat or bucketed {@link KeyLayout}.
+	 *
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 * @param buckets
+	 * 			The number of buckets or zero for the flat layout (must not be negative).
+	 */
+	KeyLayout(String activeKeyValueStoreZNodePath, int buckets){
+		this(activeKeyValueStoreZNodePath, buckets, false);
+	}
+
+	/**
+	 * Construct a new {@link KeyLayout}.
+	 *
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 * @param buckets
+	 * 			The number of buckets or zero for the flat layout (must not be negative).
+	 * @param hierarchical
+	 * 			Whether the layout is hierarchical (must be false if buckets is positive).
+	 */
+	KeyLayout(String activeKeyValueStoreZNodePath, int buckets, boolean hierarchical){
+		assert activeKeyValueStoreZNodePath != null;
+		assert buckets >= 0;
+		assert !(hierarchical && buckets > 0);
+
+		this.activeKeyValueStoreZNodePath = activeKeyValueStoreZNodePath;
+		this.buckets = buckets;
+		this.hierarchical = hierarchical;
+
+		Set<String> paths = new LinkedHashSet<String>();
+
+		if (buckets == 0){
+			paths.add(activeKeyValueStoreZNodePath);
+		}
+		else{
+			for (int bucket = 0; bucket < buckets; ++bucket){
+				paths.add(bucketPath(bucket));
+			}
+		}
+
+		this.parentPaths = Collections.unmodifiableSet(paths);
+	}
+
+	/**
+	 * Return the path of the znode representing the store.
+	 */
+	String storePath(){
+		return activeKeyValueStoreZNodePath;
+	}
+
+	/**
+	 * Check whether the keys are spread over buckets.
+	 */
+	boolean isBucketed(){
+		return buckets > 0;
+	}
+
+	/**
+	 * Check whether the keys are split over directories.
+	 */
+	boolean isHierarchical(){
+		return hierarchical;
+	}
+
+	/**
+	 * Return the number of buckets (zero for the flat layout).
+	 */
+	int buckets(){
+		return buckets;
+	}
+
+	/**
+	 * Return the bucket of the given key. Must only be called for the bucketed layout.
+	 */
+	int bucket(String key){
+		assert isBucketed();
+
+		// String.hashCode() is specified, so all the clients agree on the bucket. We mix its bits
+		// since the keys often differ only in their last characters.
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return (h & 0x7fffffff) % buckets;
+	}
+
+	/**
+	 * Return the path of the znode of the given bucket. Must only be called for the bucketed layout.
+	 */
+	String bucketPath(int bucket){
+		assert isBucketed();
+		assert bucket >= 0 && bucket < buckets;
+
+		return activeKeyValueStoreZNodePath + "/" + String.format("bucket-%04d", bucket);
+	}
+
+	/**
+	 * Return the path of the znode whose children are the key znodes holding the given key: the store znode
+	 * in the flat layout, the znode of the bucket of the key in the bucketed layout or the innermost directory
+	 * of the key (the store znode for a key without a slash) in the hierarchical layout.
+	 */
+	String parentPath(String key){
+		if (hierarchical){
+			int slash = key.lastIndexOf('/');
+
+			return slash < 0 ? activeKeyValueStoreZNodePath : directoryPath(key.substring(0, slash));
+		}
+		return isBucketed() ? bucketPath(bucket(key)) : activeKeyValueStoreZNodePath;
+	}
+
+	/**
+	 * Return the paths of all the znodes whose children are the key znodes: the store znode in the flat layout
+	 * or the znodes of the buckets in the bucketed layout. In the hierarchical layout only the keys without
+	 * a slash are children of the returned znode (the store znode).
+	 */
+	Set<String> parentPaths(){
+		return parentPaths;
+	}
+
+	/**
+	 * Return the path of the znode representing the given key.
+	 *
+	 * @throws IllegalArgumentException
+	 * 			If the key is not valid for the hierarchical layout: it has an empty part or a part ending with {@link #DIRECTORY_SUFFIX}.
+	 */
+	String keyPath(String key) throws IllegalArgumentException{
+		if (hierarchical){
+			for (String part : key.split("/", -1)){
+				if (part.length() == 0 || part.endsWith(DIRECTORY_SUFFIX)){
+					throw new IllegalArgumentException(key);
+				}
+			}
+			return parentPath(key) + "/" + key.substring(key.lastIndexOf('/') + 1);
+		}
+		return parentPath(key) + "/" + key;
+	}
+
+	/**
+	 * Return the key represented by the znode with the given path, the reverse of {@link #keyPath(String)}.
+	 *
+	 * @param keyZnodePath
+	 * 			The path of a key znode of the store.
+	 */
+	String key(String keyZnodePath){
+		if (hierarchical){
+			// the parts of a key never end with the suffix, so it only marks the directories
+			return keyZnodePath.substring(activeKeyValueStoreZNodePath.length() + 1).replace(DIRECTORY_SUFFIX + "/", "/");
+		}
+		return keyZnodePath.substring(keyZnodePath.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Return the paths of the znodes that must exist before the znode of the given key can be created, outermost first:
+	 * the znode of the bucket of the key in the bucketed layout, the directories of the key in the hierarchical layout,
+	 * and none in the flat layout.
+	 */
+	List<String> ancestorPaths(String key){
+		List<String> paths = new ArrayList<String>();
+
+		if (isBucketed()){
+			paths.add(bucketPath(bucket(key)));
+		}
+		else if (hierarchical){
+			for (int slash = key.indexOf('/'); slash >= 0; slash = key.indexOf('/', slash + 1)){
+				paths.add(directoryPath(key.substring(0, slash)));
+			}
+		}
+
+		return paths;
+	}
+
+	/**
+	 * Return the path of the directory znode holding the keys starting with the given directory followed by a slash.
+	 * Must only be called for the hierarchical layout.
+	 *
+	 * @param directory
+	 * 			The leading parts of the keys, without the trailing slash (e.g. <em>tenant42/users</em>).
+	 */
+	String directoryPath(String directory){
+		assert hierarchical;
+
+		return activeKeyValueStoreZNodePath + "/" + directory.replace("/", DIRECTORY_SUFFIX + "/") + DIRECTORY_SUFFIX;
+	}
+
+	/**
+	 * Check whether the child znode with the given name is a directory of the hierarchical layout.
+	 */
+	boolean isDirectory(String name){
+		return hierarchical && name.endsWith(DIRECTORY_SUFFIX);
+	}
+}
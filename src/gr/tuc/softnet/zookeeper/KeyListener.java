@@ -0,0 +1,25 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link KeyListener} is notified of the changes of the keys of an active key-value store it is registered for.
+ *
+ * <p>
+ * The listener is called from the event thread of the {@link org.apache.zookeeper.ZooKeeper} client object, so it must return quickly and
+ * must not call the synchronous operations of the store (which would wait for a reply that the event thread itself has to deliver).
+ * </p>
+ *
+ * @see ActiveKeyValueStore#addListener(String, KeyListener)
+ * @see ActiveKeyValueStore#addPrefixListener(String, KeyListener)
+ * @author Tassos Souris
+ *
+ */
+public interface KeyListener {
+
+	/**
+	 * Process the change of a key.
+	 *
+	 * @param event
+	 * 			The event describing the change.
+	 */
+	public void process(KeyEvent event);
+}
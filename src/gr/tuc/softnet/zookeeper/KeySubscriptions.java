@@ -0,0 +1,436 @@
+package gr.tuc.softnet.zookeeper;
+
+import gr.tuc.softnet.zookeeper.znode.WatchEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link KeySubscriptions} delivers the changes of the keys of an active key-value store to the registered {@link KeyListener} objects.
+ *
+ * <p>
+ * ZooKeeper watches fire once, so each watch event re-reads the key znode leaving a new watch in the same request. The state read is
+ * compared against the last state known for the key (the zxids of its creation and last modification) and the difference is reported:
+ * a change made between the watch firing and the re-read is not missed but is reported together with it, as a single event carrying
+ * the latest value. A key that is removed and re-created in between is reported as removed and then created. A key that is absent is
+ * watched with an exists watch so that its creation is reported.
+ * </p>
+ *
+ * <p>
+ * A prefix subscription also leaves a child watch on the znodes that are the parents of the key znodes (the znode of the store or
+ * the znodes of the buckets) so that the new keys with the prefix are watched as well.
+ * </p>
+ *
+ * <p>
+ * All the requests are asynchronous, so their results and the watch events are handled in order from the event thread of the
+ * {@link org.apache.zookeeper.ZooKeeper} client object, which is the thread that calls the listeners. The watches are lost when
+ * the session expires and no more events are delivered then.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore#addListener(String, KeyListener)
+ * @author Tassos Souris
+ *
+ */
+class KeySubscriptions implements Watcher{
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The layout of the key znodes
+	private KeyLayout layout = null;
+
+	// The codec of the values (null if none)
+	private ValueCodec valueCodec = null;
+
+	// The registered subscriptions
+	private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	// The last known state of each watched key, null if the key is absent. A key not in the map has no known state yet.
+	// Only accessed from the event thread.
+	private Map<String, Stat> known = new HashMap<String, Stat>();
+
+	// The keys whose read failed due to connection loss and must be retried once reconnected
+	private Set<String> deferredKeys = new HashSet<String>();
+
+	// The parents whose listing failed due to connection loss and must be retried once reconnected
+	private Set<String> deferredParents = new HashSet<String>();
+
+	/**
+	 * A registered listener.
+	 */
+	private static class Subscription{
+		// The key, or the prefix of the keys
+		final String key;
+		// Whether key is a prefix
+		final boolean prefix;
+		final KeyListener listener;
+		final WatchEvent.Modifier modifier;
+
+		Subscription(String key, boolean prefix, KeyListener listener, WatchEvent.Modifier modifier){
+			this.key = key;
+			this.prefix = prefix;
+			this.listener = listener;
+			this.modifier = modifier;
+		}
+
+		boolean matches(String key){
+			return prefix ? key.startsWith(this.key) : key.equals(this.key);
+		}
+	}
+
+	/**
+	 * Construct a new {@link KeySubscriptions} for the given store.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param layout
+	 * 			The layout of the key znodes of the store (must not be null).
+	 * @param valueCodec
+	 * 			The codec of the values (may be null).
+	 */
+	KeySubscriptions(ZooKeeperHandle handle, KeyLayout layout, ValueCodec valueCodec){
+		assert handle != null;
+		assert layout != null;
+
+		this.handle = handle;
+		this.layout = layout;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Register the listener for the changes of the key.
+	 */
+	void addKeyListener(String key, KeyListener listener, WatchEvent.Modifier modifier){
+		subscriptions.add(new Subscription(key, false, listener, modifier));
+		readKey(key);
+	}
+
+	/**
+	 * Register the listener for the changes of the keys starting with the prefix.
+	 */
+	void addPrefixListener(String prefix, KeyListener listener, WatchEvent.Modifier modifier){
+		subscriptions.add(new Subscription(prefix, true, listener, modifier));
+
+		for (String parentPath : layout.parentPaths()){
+			listParent(parentPath, true);
+		}
+	}
+
+	/**
+	 * Unregister all the registrations of the listener. The watches left for it are dropped as they fire.
+	 */
+	void removeListener(KeyListener listener){
+		List<Subscription> removed = new ArrayList<Subscription>();
+
+		for (Subscription subscription : subscriptions){
+			if (subscription.listener == listener){
+				removed.add(subscription);
+			}
+		}
+
+		subscriptions.removeAll(removed);
+	}
+
+	/**
+	 * Handle the watch event.
+	 */
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None){
+			if (event.getState() == Event.KeeperState.SyncConnected){
+				// the client re-registers the watches once reconnected; we only have to retry the requests that failed in the meantime
+				resumeDeferred();
+			}
+			return ;
+		}
+
+		String path = event.getPath();
+
+		if (layout.parentPaths().contains(path)){
+			// also on deletion (of an emptied bucket), in which case the listing waits for the parent to be re-created
+			listParent(path, false);
+			return ;
+		}
+
+		String key = layout.key(path);
+
+		if (!known.containsKey(key) || !isSubscribed(key)){
+			// nobody listens for the key any more, so the watch is not re-armed
+			known.remove(key);
+			return ;
+		}
+
+		readKey(key);
+	}
+
+	/**
+	 * Read the key znode leaving a data watch, or an exists watch if it is absent, and report the difference from the last known state.
+	 */
+	private void readKey(final String key){
+		handle.getZooKeeper().getData(layout.keyPath(key), this, new AsyncCallback.DataCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					keyRead(key, data, stat);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					if (isSubscribedByKey(key)){
+						awaitKey(key);
+					}
+					else{
+						// a key watched for a prefix only is picked up by the listing if re-created
+						keyRead(key, null, null);
+					}
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					// the watch may not have been left, try again once reconnected
+					synchronized (KeySubscriptions.this) {
+						deferredKeys.add(key);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Leave a watch for the creation of the key znode.
+	 */
+	private void awaitKey(final String key){
+		handle.getZooKeeper().exists(layout.keyPath(key), this, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					// created in the meantime
+					readKey(key);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					keyRead(key, null, null);
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					synchronized (KeySubscriptions.this) {
+						deferredKeys.add(key);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * List the keys under the parent znode leaving a child watch, and start watching the keys with a subscribed prefix.
+	 *
+	 * @param initial
+	 * 			True if the keys found are the existing keys of a new subscription, which are not reported as created.
+	 */
+	private void listParent(final String parentPath, final boolean initial){
+		handle.getZooKeeper().getChildren(parentPath, this, new AsyncCallback.ChildrenCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					for (String key : children){
+						if (known.containsKey(key) || !isSubscribedByPrefix(key)){
+							continue;
+						}
+						if (!initial){
+							// a new key: known to be absent so that its creation is reported
+							known.put(key, null);
+						}
+						readKey(key);
+					}
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the parent is not there (yet), as is the case for a bucket without keys
+					awaitParent(parentPath);
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					synchronized (KeySubscriptions.this) {
+						deferredParents.add(parentPath);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Leave a watch for the creation of the parent znode.
+	 */
+	private void awaitParent(final String parentPath){
+		handle.getZooKeeper().exists(parentPath, this, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					listParent(parentPath, false);
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					synchronized (KeySubscriptions.this) {
+						deferredParents.add(parentPath);
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Compare the state read for the key with the last known state and report the difference.
+	 *
+	 * @param data
+	 * 			The data of the key znode, null if absent.
+	 * @param stat
+	 * 			The stat of the key znode, null if absent.
+	 */
+	private void keyRead(String key, byte [] data, Stat stat){
+		boolean first = !known.containsKey(key);
+		Stat previous = known.get(key);
+
+		if (stat == null && !isSubscribedByKey(key)){
+			known.remove(key);
+		}
+		else{
+			known.put(key, stat);
+		}
+
+		if (first){
+			// the initial read only sets the baseline
+			return ;
+		}
+
+		if (previous == null && stat != null){
+			deliver(WatchEvent.Kind.NODE_CREATED, key, data, stat);
+		}
+		else if (previous != null && stat == null){
+			deliver(WatchEvent.Kind.NODE_DELETED, key, null, null);
+		}
+		else if (previous != null && previous.getCzxid() != stat.getCzxid()){
+			// removed and re-created since the last read
+			deliver(WatchEvent.Kind.NODE_DELETED, key, null, null);
+			deliver(WatchEvent.Kind.NODE_CREATED, key, data, stat);
+		}
+		else if (previous != null && previous.getMzxid() != stat.getMzxid()){
+			deliver(WatchEvent.Kind.NODE_DATA_CHANGED, key, data, stat);
+		}
+	}
+
+	/**
+	 * Deliver the event to the listeners of the key, dropping the one-shot registrations.
+	 */
+	private void deliver(WatchEvent.Kind kind, String key, byte [] data, Stat stat){
+		byte [] value = null;
+
+		if (data != null && !ChunkedValues.isManifest(data)){
+			value = valueCodec == null ? data : ValueCodecs.decode(valueCodec, data);
+		}
+
+		for (Subscription subscription : subscriptions){
+			if (!subscription.matches(key)){
+				continue;
+			}
+			if (subscription.modifier == WatchEvent.Modifier.ONE_SHOT && !subscriptions.remove(subscription)){
+				// already delivered
+				continue;
+			}
+
+			KeyEvent event = new KeyEvent(new WatchEvent(kind, subscription.modifier, layout.keyPath(key)), key, value, stat == null ? -1 : stat.getVersion());
+
+			try{
+				subscription.listener.process(event);
+			}
+			catch(RuntimeException e){
+				// a failing listener must not keep the event from the others
+			}
+		}
+	}
+
+	/**
+	 * Check whether some subscription is for the key.
+	 */
+	private boolean isSubscribed(String key){
+		for (Subscription subscription : subscriptions){
+			if (subscription.matches(key)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether some subscription is for exactly the key.
+	 */
+	private boolean isSubscribedByKey(String key){
+		for (Subscription subscription : subscriptions){
+			if (!subscription.prefix && subscription.matches(key)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether some prefix subscription is for the key.
+	 */
+	private boolean isSubscribedByPrefix(String key){
+		for (Subscription subscription : subscriptions){
+			if (subscription.prefix && subscription.matches(key)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retry the deferred requests if we got reconnected before they were deferred (in which case
+	 * there will be no event to retry them).
+	 */
+	private void resumeIfConnected(){
+		if (handle.getZooKeeper().getState() == ZooKeeper.States.CONNECTED){
+			resumeDeferred();
+		}
+	}
+
+	/**
+	 * Retry the requests that failed due to connection loss.
+	 */
+	private void resumeDeferred(){
+		Set<String> keys = null;
+		Set<String> parents = null;
+
+		synchronized (this) {
+			keys = deferredKeys;
+			parents = deferredParents;
+			deferredKeys = new HashSet<String>();
+			deferredParents = new HashSet<String>();
+		}
+
+		for (String parentPath : parents){
+			listParent(parentPath, false);
+		}
+		for (String key : keys){
+			readKey(key);
+		}
+	}
+}
@@ -0,0 +1,533 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link MaterializedView} keeps a complete local mirror of an active key-value store, maintained through ZooKeeper watches.
+ *
+ * <p>
+ * The view leaves a child watch on the znode representing the store and a data watch on each key znode. A {@link Watcher.Event.EventType#NodeChildrenChanged}
+ * event re-lists the keys (fetching the values of the new keys and dropping the removed ones) and a {@link Watcher.Event.EventType#NodeDataChanged}
+ * event re-reads the value of the key, re-arming the watches at the same time. All the requests are asynchronous, so their results and the watch
+ * events are applied in order from the event thread of the {@link org.apache.zookeeper.ZooKeeper} client object.
+ * </p>
+ *
+ * <p>
+ * The mirror is published as an immutable {@link Map} that is replaced as a whole on each change, so readers get a consistent snapshot
+ * without locking. Each entry carries the version of the znode it was read from so that an older read never replaces a newer one.
+ * To keep the copying down, the initial load is gathered in a private map that is published once complete, and the values fetched
+ * for the keys added by a listing are published together once all of them arrived.
+ * </p>
+ *
+ * <p>
+ * The view is not usable (see {@link #snapshot()}) until the initial load is complete and after the session has expired, since watches
+ * are lost in that case.
+ * </p>
+ *
+ * <p>
+ * The initial load may start from the entries of an earlier snapshot (see {@link SnapshotFile}). An entry of a listed key is then
+ * revalidated with an <em>exists</em> request, which also leaves the watch for the later changes of the key, and the value is only fetched
+ * if the znode was changed since the snapshot was taken.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore
+ * @author Tassos Souris
+ *
+ */
+class MaterializedView implements Watcher{
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The path of the znode representing the store
+	private String activeKeyValueStoreZNodePath = null;
+
+	// The published mirror of the store. Replaced as a whole on each change.
+	private volatile Map<String, VersionedValue> snapshot = Collections.emptyMap();
+
+	// The mirror being gathered during the initial load, changed in place and published once the load is complete; null afterwards.
+	private Map<String, VersionedValue> loading = new HashMap<String, VersionedValue>();
+
+	// The batches of fetches not published yet
+	private Set<Batch> batches = new HashSet<Batch>();
+
+	// Whether the initial load is complete
+	private volatile boolean loaded = false;
+
+	// Whether the session has expired
+	private volatile boolean expired = false;
+
+	// The number of values of the initial key listing not yet fetched, -1 before the initial listing arrives.
+	// Only accessed from the event thread.
+	private int pendingInitialFetches = -1;
+
+	// The keys of the initial listing not yet fetched. Only accessed from the event thread.
+	private Set<String> initialKeys = null;
+
+	// The entries of an earlier snapshot to revalidate during the initial load, null if none.
+	// Only accessed from the event thread after start().
+	private Map<String, VersionedValue> warmEntries = null;
+
+	// Whether a listing of the keys failed due to connection loss and must be retried once reconnected
+	private boolean deferredListing = false;
+
+	// The keys whose fetch failed due to connection loss and must be retried once reconnected
+	private Set<String> deferredFetches = new HashSet<String>();
+
+	/**
+	 * The values fetched for the keys added by a listing, published together once all the fetches completed.
+	 * Only accessed from the event thread.
+	 */
+	private class Batch{
+		// the fetched values by key
+		final Map<String, VersionedValue> values = new HashMap<String, VersionedValue>();
+		// the number of fetches not completed yet
+		int outstanding = 0;
+
+		/**
+		 * Count down a completed fetch, publishing the values after the last one.
+		 */
+		void fetchDone(){
+			if (--outstanding == 0){
+				publishBatch(this);
+			}
+		}
+	}
+
+	/**
+	 * Construct a new {@link MaterializedView} for the given store. The view starts loading with {@link #start()}.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param activeKeyValueStoreZNodePath
+	 * 			The path of the znode representing the active key-value store (must not be null).
+	 */
+	MaterializedView(ZooKeeperHandle handle, String activeKeyValueStoreZNodePath){
+		assert handle != null;
+		assert activeKeyValueStoreZNodePath != null;
+
+		this.handle = handle;
+		this.activeKeyValueStoreZNodePath = activeKeyValueStoreZNodePath;
+	}
+
+	/**
+	 * Start loading the view. Returns immediately; the view becomes usable once all the values are fetched.
+	 */
+	void start(){
+		listKeys();
+	}
+
+	/**
+	 * Start loading the view from the entries of an earlier snapshot. Returns immediately; the view becomes usable once all the entries
+	 * are revalidated and the changed values are fetched.
+	 *
+	 * @param warmEntries
+	 * 			The entries of the snapshot by key (must not be null). Entries of keys not in the view are ignored.
+	 */
+	void start(Map<String, VersionedValue> warmEntries){
+		assert warmEntries != null;
+
+		this.warmEntries = warmEntries;
+		listKeys();
+	}
+
+	/**
+	 * Return the current mirror of the store.
+	 *
+	 * @return An immutable map from the keys to their values, or null if the view is not usable
+	 * 			(the initial load is not complete or the session has expired).
+	 */
+	Map<String, VersionedValue> snapshot(){
+		if (!loaded || expired){
+			return null;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Apply the watch event to the view.
+	 */
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None){
+			if (event.getState() == Event.KeeperState.Expired){
+				// all the watches are lost with the session
+				expired = true;
+			}
+			else if (event.getState() == Event.KeeperState.SyncConnected){
+				// on a disconnect the client re-registers the watches once reconnected, so we are notified of the changes we missed.
+				// we only have to retry the requests that failed in the meantime.
+				resumeDeferred();
+			}
+			return ;
+		}
+
+		String path = event.getPath();
+
+		if (path.equals(activeKeyValueStoreZNodePath)){
+			if (event.getType() == Event.EventType.NodeChildrenChanged || event.getType() == Event.EventType.NodeCreated){
+				listKeys();
+			}
+			return ;
+		}
+
+		String key = path.substring(activeKeyValueStoreZNodePath.length() + 1);
+
+		if (event.getType() == Event.EventType.NodeDataChanged){
+			fetchValue(key);
+		}
+		else if (event.getType() == Event.EventType.NodeDeleted){
+			removeKeys(Collections.singleton(key), Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * List the keys of the store and leave a child watch.
+	 */
+	private void listKeys(){
+		handle.getZooKeeper().getChildren(activeKeyValueStoreZNodePath, this, new AsyncCallback.Children2Callback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.CONNECTIONLOSS){
+					// the watch may not have been left, try again once reconnected
+					synchronized (MaterializedView.this) {
+						deferredListing = true;
+					}
+					resumeIfConnected();
+					return ;
+				}
+				else if (code == KeeperException.Code.NONODE){
+					// the znode is not there (yet), as is the case for a bucket without keys.
+					// the view is empty and we get to list the keys once the znode is created.
+					keysListed(new HashSet<String>(), Long.MAX_VALUE);
+					awaitCreation();
+					return ;
+				}
+				else if (code != KeeperException.Code.OK){
+					// nothing we can do about it; the view is not updated
+					return ;
+				}
+
+				keysListed(new HashSet<String>(children), stat.getPzxid());
+			}
+		}, null);
+	}
+
+	/**
+	 * Leave a watch for the creation of the znode representing the store.
+	 */
+	private void awaitCreation(){
+		handle.getZooKeeper().exists(activeKeyValueStoreZNodePath, this, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.OK){
+					// created in the meantime
+					listKeys();
+				}
+				else if (code == KeeperException.Code.CONNECTIONLOSS){
+					synchronized (MaterializedView.this) {
+						deferredListing = true;
+					}
+					resumeIfConnected();
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Apply a listing of the keys to the view.
+	 */
+	private void keysListed(Set<String> keys, long listingZxid){
+		Map<String, VersionedValue> current = current();
+
+		// drop the removed keys
+		Set<String> removed = new HashSet<String>(current.keySet());
+		removed.removeAll(keys);
+		removeKeys(removed, listingZxid);
+
+		// fetch the new keys
+		Set<String> added = new HashSet<String>(keys);
+		added.removeAll(current.keySet());
+
+		if (pendingInitialFetches == -1){
+			// this is the initial listing
+			initialKeys = new HashSet<String>(added);
+			pendingInitialFetches = added.size();
+
+			if (pendingInitialFetches == 0){
+				publishLoaded();
+			}
+
+			if (warmEntries != null){
+				Map<String, VersionedValue> entries = warmEntries;
+				warmEntries = null;
+
+				for (String key : added){
+					VersionedValue entry = entries.get(key);
+
+					if (entry != null){
+						revalidateValue(key, entry);
+					}
+					else{
+						fetchValue(key);
+					}
+				}
+				return ;
+			}
+		}
+
+		if (loading != null){
+			// gathered in place until the initial load is complete
+			for (String key : added){
+				fetchValue(key, null);
+			}
+			return ;
+		}
+
+		Batch batch = new Batch();
+		batch.outstanding = added.size();
+
+		if (!added.isEmpty()){
+			synchronized (this) {
+				batches.add(batch);
+			}
+		}
+
+		for (String key : added){
+			fetchValue(key, batch);
+		}
+	}
+
+	/**
+	 * Check the value of the key from a snapshot against its znode and leave a watch. The value is fetched if the znode was changed.
+	 */
+	private void revalidateValue(final String key, final VersionedValue entry){
+		handle.getZooKeeper().exists(activeKeyValueStoreZNodePath + "/" + key, this, new AsyncCallback.StatCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.CONNECTIONLOSS){
+					// fetched once reconnected, leaving the watch then
+					synchronized (MaterializedView.this) {
+						deferredFetches.add(key);
+					}
+					resumeIfConnected();
+					return ;
+				}
+
+				if (code == KeeperException.Code.OK){
+					if (stat.getMzxid() != entry.modifiedZxid() || stat.getVersion() != entry.version()){
+						// changed since the snapshot; the fetch counts down the initial fetches
+						fetchValue(key);
+						return ;
+					}
+					putValue(key, entry);
+				}
+				else if (code == KeeperException.Code.NONODE){
+					removeKeys(Collections.singleton(key), Long.MAX_VALUE);
+				}
+
+				initialFetchDone(key);
+			}
+		}, null);
+	}
+
+	/**
+	 * Fetch the value of the key and leave a data watch.
+	 */
+	private void fetchValue(String key){
+		fetchValue(key, null);
+	}
+
+	/**
+	 * Fetch the value of the key and leave a data watch. The value is published with the batch, if given.
+	 */
+	private void fetchValue(final String key, final Batch batch){
+		handle.getZooKeeper().getData(activeKeyValueStoreZNodePath + "/" + key, this, new AsyncCallback.DataCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+
+				if (code == KeeperException.Code.CONNECTIONLOSS){
+					// the watch may not have been left, try again once reconnected
+					synchronized (MaterializedView.this) {
+						deferredFetches.add(key);
+					}
+					resumeIfConnected();
+				}
+				else if (code == KeeperException.Code.OK){
+					if (batch != null){
+						batch.values.put(key, new VersionedValue(data, stat));
+					}
+					else{
+						putValue(key, new VersionedValue(data, stat));
+					}
+				}
+				else if (code == KeeperException.Code.NONODE){
+					removeKeys(Collections.singleton(key), Long.MAX_VALUE);
+				}
+
+				if (batch != null){
+					// a deferred fetch is published on its own once retried
+					batch.fetchDone();
+				}
+
+				if (code != KeeperException.Code.CONNECTIONLOSS){
+					initialFetchDone(key);
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Retry the deferred requests if we got reconnected before they were deferred (in which case
+	 * there will be no event to retry them).
+	 */
+	private void resumeIfConnected(){
+		if (handle.getZooKeeper().getState() == ZooKeeper.States.CONNECTED){
+			resumeDeferred();
+		}
+	}
+
+	/**
+	 * Retry the requests that failed due to connection loss.
+	 */
+	private void resumeDeferred(){
+		boolean listing = false;
+		Set<String> fetches = null;
+
+		synchronized (this) {
+			listing = deferredListing;
+			fetches = deferredFetches;
+			deferredListing = false;
+			deferredFetches = new HashSet<String>();
+		}
+
+		if (listing){
+			listKeys();
+		}
+		for (String key : fetches){
+			fetchValue(key);
+		}
+	}
+
+	/**
+	 * Count down the initial fetches.
+	 */
+	private void initialFetchDone(String key){
+		if (initialKeys != null && initialKeys.remove(key) && --pendingInitialFetches == 0){
+			initialKeys = null;
+			publishLoaded();
+		}
+	}
+
+	/**
+	 * Publish the mirror gathered during the initial load and make the view usable.
+	 */
+	private synchronized void publishLoaded(){
+		snapshot = Collections.unmodifiableMap(loading);
+		loading = null;
+		loaded = true;
+	}
+
+	/**
+	 * Return the current mirror: the one being gathered during the initial load and the published one afterwards.
+	 * The returned map must not be changed.
+	 */
+	private synchronized Map<String, VersionedValue> current(){
+		return loading != null ? loading : snapshot;
+	}
+
+	/**
+	 * Publish the values of a batch whose fetches all completed.
+	 */
+	private synchronized void publishBatch(Batch batch){
+		batches.remove(batch);
+		putValues(batch.values);
+	}
+
+	/**
+	 * Publish a new snapshot with the value of the given key, unless we already have a newer value.
+	 */
+	private void putValue(String key, VersionedValue value){
+		putValues(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * Publish a new snapshot with the values of the given keys, except for those of which we already have a newer value.
+	 */
+	private synchronized void putValues(Map<String, VersionedValue> values){
+		if (values.isEmpty()){
+			return ;
+		}
+
+		Map<String, VersionedValue> next = loading != null ? loading : new HashMap<String, VersionedValue>(snapshot);
+
+		for (Map.Entry<String, VersionedValue> entry : values.entrySet()){
+			VersionedValue current = next.get(entry.getKey());
+
+			if (current == null || current.modifiedZxid() <= entry.getValue().modifiedZxid()){
+				next.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (loading == null){
+			snapshot = Collections.unmodifiableMap(next);
+		}
+	}
+
+	/**
+	 * Publish a new snapshot without the given keys. A key whose value was changed after beforeZxid is kept,
+	 * since it was re-created after the listing that found it removed.
+	 */
+	private synchronized void removeKeys(Set<String> keys, long beforeZxid){
+		if (keys.isEmpty()){
+			return ;
+		}
+
+		Map<String, VersionedValue> next = loading != null ? loading : new HashMap<String, VersionedValue>(snapshot);
+
+		for (String key : keys){
+			VersionedValue current = next.get(key);
+
+			if (current != null && current.modifiedZxid() <= beforeZxid){
+				next.remove(key);
+			}
+		}
+
+		// the removal applies to the values fetched before it and not published yet
+		for (Batch batch : batches){
+			for (String key : keys){
+				VersionedValue fetched = batch.values.get(key);
+
+				if (fetched != null && fetched.modifiedZxid() <= beforeZxid){
+					batch.values.remove(key);
+				}
+			}
+		}
+
+		if (loading == null){
+			snapshot = Collections.unmodifiableMap(next);
+		}
+	}
+}
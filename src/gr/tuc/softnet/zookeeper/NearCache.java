@@ -0,0 +1,401 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link NearCache} is a local read cache of znodes kept consistent through ZooKeeper watches.
+ *
+ * <p>
+ * Each read that misses the cache goes to the ZooKeeper server and leaves a watch on the znode (a data watch for
+ * {@link #getData(String)} and an exists watch for {@link #exists(String)}) with this object as the {@link Watcher}.
+ * When the watch fires the entry for the znode is dropped, so the next read fetches the new data and re-arms the watch.
+ * If the session is disconnected or expires all the entries are dropped since we may miss notifications in these cases.
+ * </p>
+ *
+ * <p>
+ * The cache holds at most a fixed number of entries and evicts the least recently used entry when it is full. The reads in progress
+ * are tracked apart from the entries, so a burst of misses does not evict the cached entries.
+ * </p>
+ *
+ * <p>
+ * Optionally the cache also remembers the znodes that do not exist, in a separate bounded set of entries, so that repeated reads of
+ * a missing znode are answered locally. An exists watch is left on the missing znode and the entry is dropped when it fires
+ * (that is, when the znode is created).
+ * </p>
+ *
+ * <p>
+ * Concurrent misses for the same znode share a single request to the ZooKeeper server (see {@link SingleFlight}), so that
+ * dropping the entry of a hot znode does not send every reader to the server at once.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore
+ * @author Tassos Souris
+ *
+ */
+class NearCache implements Watcher{
+
+	/**
+	 * An entry of the cache.
+	 */
+	private static class Entry{
+		// the data of the znode. Only meaningful if hasData is true.
+		private byte [] data = null;
+		// whether the data of the znode is known or we only know that the znode exists.
+		private boolean hasData = false;
+
+		Entry(byte [] data, boolean hasData){
+			this.data = data;
+			this.hasData = hasData;
+		}
+	}
+
+	// The ZooKeeper handle
+	private ZooKeeperHandle handle = null;
+
+	// The entries of the cache indexed by znode path, in access order
+	private LinkedHashMap<String, Entry> entries = null;
+
+	// The marks of the znodes being loaded indexed by znode path. Not bounded, as there is one per read in progress.
+	private Map<String, Object> loading = new HashMap<String, Object>();
+
+	// The paths of the znodes known not to exist, in access order. null if absent znodes are not cached.
+	private LinkedHashMap<String, Boolean> absent = null;
+
+	// Coalesces the concurrent reads of the same znode. The readers other than the one issuing the read get a copy of the data.
+	private SingleFlight<byte []> reads = new SingleFlight<byte []>(){
+		@Override
+		byte [] share(byte [] data) {
+			return data == null ? null : data.clone();
+		}
+	};
+
+	// Coalesces the concurrent checks of the same znode
+	private SingleFlight<Stat> checks = new SingleFlight<Stat>();
+
+	/**
+	 * Construct a new {@link NearCache} that does not cache absent znodes.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param maxEntries
+	 * 			The maximum number of entries held by the cache (must be positive).
+	 * @throws IllegalArgumentException
+	 * 			If maxEntries is not positive.
+	 */
+	NearCache(ZooKeeperHandle handle, int maxEntries) throws IllegalArgumentException{
+		this(handle, maxEntries, 0);
+	}
+
+	/**
+	 * Construct a new {@link NearCache}.
+	 *
+	 * @param handle
+	 * 			The handle of the session to use (must not be null).
+	 * @param maxEntries
+	 * 			The maximum number of entries held by the cache (must be positive).
+	 * @param maxAbsentEntries
+	 * 			The maximum number of absent znodes remembered by the cache, zero to not cache absent znodes (must not be negative).
+	 * @throws IllegalArgumentException
+	 * 			If maxEntries is not positive or maxAbsentEntries is negative.
+	 */
+	NearCache(ZooKeeperHandle handle, final int maxEntries, final int maxAbsentEntries) throws IllegalArgumentException{
+		assert handle != null;
+
+		if (maxEntries <= 0 || maxAbsentEntries < 0){
+			throw new IllegalArgumentException();
+		}
+
+		this.handle = handle;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NearCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+
+		if (maxAbsentEntries > 0){
+			this.absent = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > maxAbsentEntries;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Retrieve the data of the znode with the given path, from the cache if possible.
+	 *
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 * @return The data of the znode or null if there is no znode with the given path.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	byte [] getData(String path) throws KeeperException, InterruptedException{
+		return getData(path, true);
+	}
+
+	/**
+	 * Retrieve the data of the znode with the given path, from the cache if possible.
+	 *
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 * @param copy
+	 * 			Whether to return a copy of the cached data. If false the caller must not change the returned array.
+	 * @return The data of the znode or null if there is no znode with the given path.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	byte [] getData(final String path, boolean copy) throws KeeperException, InterruptedException{
+		assert path != null;
+
+		Object token = null;
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+
+			if (entry != null && entry.hasData){
+				// the caller may change the returned array, so we hand out a copy unless asked otherwise
+				return entry.data == null || !copy ? entry.data : entry.data.clone();
+			}
+			if (isAbsent(path)){
+				return null;
+			}
+
+			// Mark the znode as being loaded. A watch event (or another loader) replaces or removes the mark,
+			// in which case what we read may already be stale and we do not cache it.
+			token = new Object();
+			loading.put(path, token);
+		}
+
+		byte [] data = null;
+
+		try{
+			// read the data and leave a data watch on the znode
+			data = reads.execute(path, new SingleFlight.Request<byte []>() {
+				@Override
+				public byte [] execute() throws KeeperException, InterruptedException {
+					return handle.getZooKeeper().getData(path, NearCache.this, null);
+				}
+			});
+		}
+		catch(KeeperException.NoNodeException noNode){
+			// no znode with the given path. no watch is left in this case
+			if (absent != null){
+				awaitCreation(path, token);
+			}
+			else{
+				loaded(path, token, null);
+			}
+			return null;
+		}
+		catch(KeeperException e){
+			loaded(path, token, null);
+			throw e;
+		}
+
+		loaded(path, token, new Entry(data, true));
+
+		return data == null || !copy ? data : data.clone();
+	}
+
+	/**
+	 * Check whether there is a znode with the given path, from the cache if possible.
+	 *
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 * @return True if there is a znode with the given path and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	boolean exists(String path) throws KeeperException, InterruptedException{
+		assert path != null;
+
+		Object token = null;
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+
+			if (entry != null){
+				return true;
+			}
+			if (isAbsent(path)){
+				return false;
+			}
+
+			// mark the znode as being loaded (see getData())
+			token = new Object();
+			loading.put(path, token);
+		}
+
+		Stat stat = null;
+
+		try{
+			// check the znode and leave an exists watch on it
+			stat = check(path);
+		}
+		catch(KeeperException e){
+			loaded(path, token, null);
+			throw e;
+		}
+
+		if (stat != null){
+			loaded(path, token, new Entry(null, false));
+		}
+		else{
+			loadedAbsent(path, token);
+		}
+
+		return stat != null;
+	}
+
+	/**
+	 * Drop the entry for the znode with the given path. Used after the znode is changed through this client
+	 * so that the change is visible to the next read without waiting for the watch to fire.
+	 *
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 */
+	synchronized void invalidate(String path){
+		assert path != null;
+
+		entries.remove(path);
+		loading.remove(path);
+		if (absent != null){
+			absent.remove(path);
+		}
+
+		// a read issued before the change must not be joined by the reads after it
+		reads.forget(path);
+		checks.forget(path);
+	}
+
+	/**
+	 * Drop all the entries of the cache.
+	 */
+	synchronized void invalidateAll(){
+		entries.clear();
+		loading.clear();
+		if (absent != null){
+			absent.clear();
+		}
+
+		reads.forgetAll();
+		checks.forgetAll();
+	}
+
+	/**
+	 * Invalidate the cache according to the watch event.
+	 */
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None){
+			// a session event. unless we are connected we may miss notifications so we drop everything
+			if (event.getState() != Event.KeeperState.SyncConnected){
+				invalidateAll();
+			}
+			return ;
+		}
+
+		invalidate(event.getPath());
+	}
+
+	/**
+	 * Check the znode leaving an exists watch on it, sharing the request with the concurrent checks of the same znode.
+	 */
+	private Stat check(final String path) throws KeeperException, InterruptedException{
+		return checks.execute(path, new SingleFlight.Request<Stat>() {
+			@Override
+			public Stat execute() throws KeeperException, InterruptedException {
+				return handle.getZooKeeper().exists(path, NearCache.this);
+			}
+		});
+	}
+
+	/**
+	 * Check whether the znode with the given path is known not to exist. Must be called with the lock held.
+	 */
+	private boolean isAbsent(String path){
+		return absent != null && absent.get(path) != null;
+	}
+
+	/**
+	 * Leave an exists watch on the znode found missing by a read and remember it as absent if it is still missing.
+	 * Errors are not reported since the read has its answer already; the znode is just not remembered then.
+	 */
+	private void awaitCreation(String path, Object token) throws InterruptedException{
+		Stat stat = null;
+
+		try{
+			stat = check(path);
+		}
+		catch(KeeperException e){
+			loaded(path, token, null);
+			return ;
+		}
+
+		if (stat == null){
+			loadedAbsent(path, token);
+		}
+		else{
+			// created in the meantime; the watch left drops the entry on the next change
+			loaded(path, token, null);
+		}
+	}
+
+	/**
+	 * Remember the given znode as absent if our loading mark is still in place (see {@link #loaded(String, Object, Entry)}).
+	 */
+	private synchronized void loadedAbsent(String path, Object token){
+		if (loading.get(path) != token){
+			return ;
+		}
+
+		loading.remove(path);
+		entries.remove(path);
+		if (absent != null){
+			absent.put(path, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Install the loaded entry for the given znode (or drop its entry if null) if our loading mark is still in place.
+	 */
+	private synchronized void loaded(String path, Object token, Entry entry){
+		if (loading.get(path) != token){
+			// a watch event arrived while we were loading, or another loader took over.
+			return ;
+		}
+
+		loading.remove(path);
+
+		if (entry == null){
+			entries.remove(path);
+		}
+		else{
+			entries.put(path, entry);
+		}
+	}
+}
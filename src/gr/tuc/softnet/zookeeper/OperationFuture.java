@@ -0,0 +1,236 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link OperationFuture} represents the pending result of an asynchronous ZooKeeper operation.
+ *
+ * <p>
+ * An {@link OperationFuture} is completed exactly once, either with a result through the {@link #set(Object)} method or with an error
+ * through the {@link #setException(Throwable)} method. Usually this happens from within a ZooKeeper callback, that is from the event thread
+ * of the {@link org.apache.zookeeper.ZooKeeper} client object, so listeners registered with {@link #addListener(Runnable)} must not block.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @param <V>
+ * 			The type of the result of the operation.
+ * @see AsyncActiveKeyValueStore
+ * @author Tassos Souris
+ *
+ */
+public class OperationFuture<V> implements Future<V>{
+	// counted down once the operation is completed
+	private final CountDownLatch completed = new CountDownLatch(1);
+
+	// the listeners to run upon completion. null after the future has been completed.
+	private List<Runnable> listeners = new LinkedList<Runnable>();
+
+	// the result of the operation
+	private V result = null;
+
+	// the error of the operation (if any)
+	private Throwable exception = null;
+
+	// whether the future was cancelled
+	private boolean cancelled = false;
+
+	/**
+	 * Construct a new {@link OperationFuture} that is not yet completed.
+	 */
+	public OperationFuture(){
+	}
+
+	/**
+	 * Complete this future with the given result. Has no effect if the future is already completed.
+	 *
+	 * @param result
+	 * 			The result of the operation (may be null).
+	 * @return True if this call completed the future and false otherwise.
+	 */
+	public boolean set(V result){
+		List<Runnable> toRun = null;
+
+		synchronized (this) {
+			if (listeners == null){
+				return false;
+			}
+			this.result = result;
+			toRun = listeners;
+			listeners = null;
+		}
+
+		completed.countDown();
+		runListeners(toRun);
+
+		return true;
+	}
+
+	/**
+	 * Complete this future with the given error. Has no effect if the future is already completed.
+	 *
+	 * @param exception
+	 * 			The error of the operation (must not be null).
+	 * @return True if this call completed the future and false otherwise.
+	 */
+	public boolean setException(Throwable exception){
+		assert exception != null;
+
+		List<Runnable> toRun = null;
+
+		synchronized (this) {
+			if (listeners == null){
+				return false;
+			}
+			this.exception = exception;
+			toRun = listeners;
+			listeners = null;
+		}
+
+		completed.countDown();
+		runListeners(toRun);
+
+		return true;
+	}
+
+	/**
+	 * Register a listener to be run once this future is completed. If the future is already completed then the listener
+	 * is run immediately in the calling thread.
+	 *
+	 * @param listener
+	 * 			The listener to run (must not be null).
+	 */
+	public void addListener(Runnable listener){
+		assert listener != null;
+
+		synchronized (this) {
+			if (listeners != null){
+				listeners.add(listener);
+				return ;
+			}
+		}
+
+		listener.run();
+	}
+
+	/**
+	 * Cancelling only marks the future as completed; the request that is already sent to the ZooKeeper server is not aborted.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<Runnable> toRun = null;
+
+		synchronized (this) {
+			if (listeners == null){
+				return false;
+			}
+			cancelled = true;
+			toRun = listeners;
+			listeners = null;
+		}
+
+		completed.countDown();
+		runListeners(toRun);
+
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return completed.getCount() == 0;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		completed.await();
+
+		return outcome();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!completed.await(timeout, unit)){
+			throw new TimeoutException();
+		}
+
+		return outcome();
+	}
+
+	/**
+	 * Wait for the operation to complete and return its result, re-throwing the error of the operation the same way the synchronous
+	 * {@link ActiveKeyValueStore} methods do.
+	 *
+	 * @return The result of the operation.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If the operation failed with an {@link IllegalArgumentException} (e.g. the key already existed).
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while waiting.
+	 * @throws CancellationException
+	 * 			If the future was cancelled.
+	 */
+	public V result() throws KeeperException, IllegalArgumentException, InterruptedException, CancellationException{
+		try{
+			return get();
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+
+			if (cause instanceof KeeperException){
+				throw (KeeperException)cause;
+			}
+			else if (cause instanceof InterruptedException){
+				throw (InterruptedException)cause;
+			}
+			else if (cause instanceof RuntimeException){
+				throw (RuntimeException)cause;
+			}
+			else if (cause instanceof Error){
+				throw (Error)cause;
+			}
+
+			// should not happen; the operations only fail with the exceptions above
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Return the outcome of the completed future.
+	 */
+	private synchronized V outcome() throws ExecutionException{
+		if (cancelled){
+			throw new CancellationException();
+		}
+		else if (exception != null){
+			throw new ExecutionException(exception);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Run the given listeners.
+	 */
+	private static void runListeners(List<Runnable> listeners){
+		for (Runnable listener : listeners){
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,763 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link PartitionedActiveKeyValueStore} is an active key-value store whose keys are spread over several {@link ActiveKeyValueStore} partitions,
+ * typically each on a separate ZooKeeper ensemble, so that the write throughput is not bound by a single ensemble.
+ *
+ * <p>
+ * Each key belongs to a single partition, found by consistent hashing: every partition is placed on a hash ring at a number of points derived
+ * from its name, and a key belongs to the partition of the first point following the hash of the key. All the clients using the same partition
+ * names agree on the partition of each key, and adding a partition moves only the keys taken by the new partition. For example (without error
+ * checking and such):
+ * 	<pre>
+ * 		PartitionedActiveKeyValueStore store = PartitionedActiveKeyValueStore.newBuilder()
+ * 												.addPartition("ensemble-a", new ActiveKeyValueStore(handleA, "/store"))
+ * 												.addPartition("ensemble-b", new ActiveKeyValueStore(handleB, "/store"))
+ * 												.build();
+ * 		store.putIfAbsent("key", value);
+ * 	</pre>
+ * </p>
+ *
+ * <p>
+ * The operations on a single key go to the partition of the key, with the semantics of the corresponding {@link ActiveKeyValueStore} method.
+ * The operations on many keys or on the whole store are scattered over the partitions concurrently and their results gathered. Note that they
+ * are not atomic across the partitions. When a partition is added, {@link #rebalance(ProgressListener)} moves the keys to their new partitions;
+ * until then the keys not moved yet are not found.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore
+ * @author Tassos Souris
+ *
+ */
+public class PartitionedActiveKeyValueStore {
+
+	/**
+	 * The default number of points of each partition on the hash ring.
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	// The encoding of the names and the keys for hashing
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The names of the partitions
+	private List<String> names = null;
+
+	// The partitions, in the order of their names
+	private List<ActiveKeyValueStore> partitions = null;
+
+	// The hash ring: the points of the partitions to the indexes of the partitions
+	private TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+	// Runs the operations scattered over the partitions
+	private ExecutorService scatterer = null;
+
+	/**
+	 * An operation on a single partition, given with its index.
+	 */
+	private static interface PartitionOperation<T>{
+		T execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException;
+	}
+
+	/**
+	 * Construct a new {@link PartitionedActiveKeyValueStore} from the given builder.
+	 */
+	private PartitionedActiveKeyValueStore(PartitionedActiveKeyValueStore.Builder builder){
+		this.names = Collections.unmodifiableList(new ArrayList<String>(builder.partitions.keySet()));
+		this.partitions = Collections.unmodifiableList(new ArrayList<ActiveKeyValueStore>(builder.partitions.values()));
+
+		for (int partition = 0; partition < names.size(); ++partition){
+			for (int point = 0; point < builder.virtualNodes; ++point){
+				// a collision of two points is as good as a point less
+				ring.put(hash(names.get(partition) + "#" + point), partition);
+			}
+		}
+
+		final AtomicInteger threads = new AtomicInteger();
+
+		scatterer = Executors.newFixedThreadPool(partitions.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PartitionedActiveKeyValueStore-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * {@link Builder} is used to build {@link PartitionedActiveKeyValueStore} objects.
+	 *
+	 * <p>
+	 * At least one partition is mandatory. The names of the partitions place them on the hash ring, so all the clients of the store must
+	 * use the same names for the same partitions, and a partition must keep its name.
+	 * </p>
+	 *
+	 * This class is not thread-safe.
+	 *
+	 * @author Tassos Souris
+	 *
+	 */
+	public static class Builder{
+		// the partitions by name, in the order they were added
+		private Map<String, ActiveKeyValueStore> partitions = new LinkedHashMap<String, ActiveKeyValueStore>();
+		// the number of points of each partition on the hash ring
+		private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+		/**
+		 * Construct a Builder object.
+		 */
+		public Builder(){
+		}
+
+		/**
+		 * Constructs a {@link PartitionedActiveKeyValueStore} from the components of this builder.
+		 *
+		 * @return The partitioned active key-value store.
+		 * @throws IllegalStateException
+		 * 			If no partition has been added.
+		 */
+		public PartitionedActiveKeyValueStore build() throws IllegalStateException{
+			if (partitions.isEmpty()){
+				throw new IllegalStateException();
+			}
+			return new PartitionedActiveKeyValueStore(this);
+		}
+
+		/**
+		 * Adds a partition.
+		 *
+		 * @param name
+		 * 			The name of the partition, which places it on the hash ring.
+		 * @param partition
+		 * 			The store holding the keys of the partition.
+		 * @return this builder
+		 * @throws NullPointerException
+		 * 			if name or partition is null
+		 * @throws IllegalArgumentException
+		 * 			if a partition with the same name has already been added
+		 */
+		public PartitionedActiveKeyValueStore.Builder addPartition(String name, ActiveKeyValueStore partition) throws NullPointerException, IllegalArgumentException{
+			if (name == null || partition == null){
+				throw new NullPointerException();
+			}
+			if (partitions.containsKey(name)){
+				throw new IllegalArgumentException();
+			}
+			partitions.put(name, partition);
+			return this;
+		}
+
+		/**
+		 * Sets the number of points of each partition on the hash ring. More points spread the keys more evenly over the partitions,
+		 * at the cost of a larger ring. Defaults to {@link PartitionedActiveKeyValueStore#DEFAULT_VIRTUAL_NODES}.
+		 *
+		 * @param virtualNodes
+		 * 			The number of points.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 * 			if virtualNodes is not positive
+		 */
+		public PartitionedActiveKeyValueStore.Builder setVirtualNodes(int virtualNodes) throws IllegalArgumentException{
+			if (virtualNodes <= 0){
+				throw new IllegalArgumentException();
+			}
+			this.virtualNodes = virtualNodes;
+			return this;
+		}
+	}
+
+	/**
+	 * Construct a new Builder object with no partitions.
+	 *
+	 * @return The builder.
+	 */
+	public static PartitionedActiveKeyValueStore.Builder newBuilder(){
+		return new PartitionedActiveKeyValueStore.Builder();
+	}
+
+	/**
+	 * Return the names of the partitions.
+	 *
+	 * @return An unmodifiable list of the names, in the order the partitions were added.
+	 */
+	public List<String> partitionNames(){
+		return names;
+	}
+
+	/**
+	 * Return the name of the partition of the given key.
+	 *
+	 * @param key
+	 * 			The key (must not be null).
+	 * @return The name of the partition.
+	 */
+	public String partitionName(String key){
+		return names.get(partitionIndex(key));
+	}
+
+	/**
+	 * Return the partition of the given key.
+	 *
+	 * @param key
+	 * 			The key (must not be null).
+	 * @return The store holding the key.
+	 */
+	public ActiveKeyValueStore partition(String key){
+		return partitions.get(partitionIndex(key));
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#putIfAbsent(String, byte[])} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key of the entry (must not be null).
+	 * @param value
+	 * 			The value associated with the key (may be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there exists an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void putIfAbsent(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		partition(key).putIfAbsent(key, value);
+	}
+
+	/**
+	 * Put all the given entries in the store, as {@link ActiveKeyValueStore#putAll(Map)} does. The entries of each partition are
+	 * inserted pipelined, and the partitions concurrently.
+	 *
+	 * @param entries
+	 * 			The entries to be stored in the active key-value store (must not be null).
+	 * @return A report of the outcome for each key.
+	 * @throws KeeperException
+	 * 			If the session of a partition expired or the authentication failed, in which case the remaining pairs of the partition are not inserted.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public PutAllReport putAll(Map<String, byte []> entries) throws KeeperException, InterruptedException{
+		assert entries != null;
+
+		final List<Map<String, byte []>> groups = new ArrayList<Map<String, byte []>>();
+
+		for (int partition = 0; partition < partitions.size(); ++partition){
+			groups.add(new LinkedHashMap<String, byte []>());
+		}
+		for (Map.Entry<String, byte []> entry : entries.entrySet()){
+			groups.get(partitionIndex(entry.getKey())).put(entry.getKey(), entry.getValue());
+		}
+
+		List<PutAllReport> reports = scatter(new PartitionOperation<PutAllReport>() {
+			@Override
+			public PutAllReport execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				Map<String, byte []> group = groups.get(index);
+
+				return group.isEmpty() ? new PutAllReport() : partition.putAll(group);
+			}
+		});
+
+		PutAllReport report = new PutAllReport();
+
+		for (PutAllReport partitionReport : reports){
+			for (String key : partitionReport.keys(PutAllReport.Outcome.CREATED)){
+				report.created(key);
+			}
+			for (String key : partitionReport.keys(PutAllReport.Outcome.ALREADY_EXISTED)){
+				report.alreadyExisted(key);
+			}
+			for (String key : partitionReport.keys(PutAllReport.Outcome.FAILED)){
+				report.failed(key, partitionReport.failure(key));
+			}
+			for (String key : partitionReport.keys(PutAllReport.Outcome.REJECTED)){
+				report.rejected(key);
+			}
+		}
+
+		return report;
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#replace(String, byte[])} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to replace the associated value (must not be null).
+	 * @param value
+	 * 			The new value for the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void replace(String key, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		partition(key).replace(key, value);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#compareAndSet(String, int, byte[])} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to replace the associated value (must not be null).
+	 * @param expectedVersion
+	 * 			The version of the value as returned by {@link VersionedValue#version()} (must not be negative).
+	 * @param value
+	 * 			The new value for the key.
+	 * @return True if the value was replaced and false if the version of the value is not the expected version.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the given key or expectedVersion is negative.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean compareAndSet(String key, int expectedVersion, byte [] value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		return partition(key).compareAndSet(key, expectedVersion, value);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#compute(String, ValueFunction)} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key (must not be null).
+	 * @param function
+	 * 			The function computing the new value from the current value (must not be null).
+	 * @return The new value associated with the key, or null if there is no entry for the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public byte [] compute(String key, ValueFunction function) throws KeeperException, InterruptedException{
+		return partition(key).compute(key, function);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#get(String)} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return The value associated with the given key if there is a mapping for the given key; otherwise null is returned.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public byte [] get(String key) throws KeeperException, InterruptedException{
+		return partition(key).get(key);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#getWithVersion(String)} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return The value and its version, or null if there isn't a mapping for the given key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public VersionedValue getWithVersion(String key) throws KeeperException, InterruptedException{
+		return partition(key).getWithVersion(key);
+	}
+
+	/**
+	 * Retrieve the values associated with the given keys, as {@link ActiveKeyValueStore#getAll(Collection)} does. The keys of
+	 * each partition are read pipelined, and the partitions concurrently.
+	 *
+	 * @param keys
+	 * 			The keys for which we want to retrieve the associated values (must not be null and must not contain null).
+	 * @return A {@link Map} object with an entry for each of the given keys that has a mapping in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public Map<String, byte []> getAll(Collection<String> keys) throws KeeperException, InterruptedException{
+		assert keys != null;
+
+		final List<List<String>> groups = new ArrayList<List<String>>();
+
+		for (int partition = 0; partition < partitions.size(); ++partition){
+			groups.add(new ArrayList<String>());
+		}
+		for (String key : keys){
+			groups.get(partitionIndex(key)).add(key);
+		}
+
+		Map<String, byte []> values = new HashMap<String, byte []>();
+
+		for (Map<String, byte []> partitionValues : scatter(new PartitionOperation<Map<String, byte []>>() {
+			@Override
+			public Map<String, byte []> execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				List<String> group = groups.get(index);
+
+				return group.isEmpty() ? Collections.<String, byte []>emptyMap() : partition.getAll(group);
+			}
+		})){
+			values.putAll(partitionValues);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#containsKey(String)} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to test if there is currently a mapping stored in the active key-value store (must not be null).
+	 * @return True if there is a mapping for the given key and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean containsKey(String key) throws KeeperException, InterruptedException{
+		return partition(key).containsKey(key);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#remove(String)} on the partition of the key.
+	 *
+	 * @param key
+	 * 			The key for which we want to remove the (key,value) pair (must not be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't a mapping for the given key in the active key-value store.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void remove(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
+		partition(key).remove(key);
+	}
+
+	/**
+	 * Retrieve all the entries of the store, gathered from the partitions concurrently.
+	 *
+	 * @return A {@link Set} object with all the entries in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public Set<Map.Entry<String, byte []>> entrySet() throws KeeperException, InterruptedException{
+		Set<Map.Entry<String, byte []>> entries = new HashSet<Map.Entry<String, byte []>>();
+
+		for (Set<Map.Entry<String, byte []>> partitionEntries : scatter(new PartitionOperation<Set<Map.Entry<String, byte []>>>() {
+			@Override
+			public Set<Map.Entry<String, byte []>> execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				return partition.entrySet();
+			}
+		})){
+			entries.addAll(partitionEntries);
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Return the number of entries of the store, summed over the partitions queried concurrently.
+	 *
+	 * @return The number of <em>(key,value)</em> entries stored in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int size() throws KeeperException, InterruptedException{
+		int size = 0;
+
+		for (Integer partitionSize : scatter(new PartitionOperation<Integer>() {
+			@Override
+			public Integer execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				return partition.size();
+			}
+		})){
+			size += partitionSize;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Check whether the store is empty, querying the partitions concurrently.
+	 *
+	 * @return True if all the partitions are empty and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean isEmpty() throws KeeperException, InterruptedException{
+		for (Boolean partitionEmpty : scatter(new PartitionOperation<Boolean>() {
+			@Override
+			public Boolean execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				return partition.isEmpty();
+			}
+		})){
+			if (!partitionEmpty){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove all the entries of the store, clearing the partitions concurrently.
+	 *
+	 * @return The number of entries removed.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int clear() throws KeeperException, InterruptedException{
+		int removed = 0;
+
+		for (Integer partitionRemoved : scatter(new PartitionOperation<Integer>() {
+			@Override
+			public Integer execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				return partition.clear();
+			}
+		})){
+			removed += partitionRemoved;
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Move the keys held by a partition other than their own to their own partition, as needed after a partition is added.
+	 *
+	 * <p>
+	 * The partitions are scanned concurrently. A key is inserted in its own partition and then removed from the partition holding it.
+	 * If its own partition already has an entry for the key, that entry was written after the partition was added and is kept. The keys
+	 * of a partition that is taken out of the store are moved by adding the partition to a store built without it and rebalancing that store.
+	 * </p>
+	 *
+	 * <p>
+	 * If a partition fails or the calling thread is interrupted, the other partitions stop after the key they are moving. The move of a key is
+	 * not interrupted half way, which would leave it in both partitions. The keys not moved yet are moved by the next rebalance.
+	 * </p>
+	 *
+	 * @param listener
+	 * 			Notified with the number of keys moved so far, after each key moved by any partition (may be null).
+	 * @return The number of keys moved.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int rebalance(final ProgressListener listener) throws KeeperException, InterruptedException{
+		final AtomicInteger moved = new AtomicInteger();
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		try{
+			rebalance(listener, moved, stopped);
+		}
+		finally{
+			// the partitions still moving keys stop after the current key
+			stopped.set(true);
+		}
+
+		return moved.get();
+	}
+
+	/**
+	 * Move the keys of {@link #rebalance(ProgressListener)} until all are moved or the move is stopped. The moves are not interrupted.
+	 */
+	private void rebalance(final ProgressListener listener, final AtomicInteger moved, final AtomicBoolean stopped) throws KeeperException, InterruptedException{
+		scatter(new PartitionOperation<Void>() {
+			@Override
+			public Void execute(int index, ActiveKeyValueStore partition) throws KeeperException, InterruptedException {
+				StoreIterator<Map.Entry<String, byte []>> entries = partition.entryIterator();
+
+				while (!stopped.get() && entries.hasNext()){
+					Map.Entry<String, byte []> entry = entries.next();
+					ActiveKeyValueStore owner = partition(entry.getKey());
+
+					if (owner == partition){
+						continue;
+					}
+
+					try{
+						owner.putIfAbsent(entry.getKey(), entry.getValue());
+					}
+					catch(IllegalArgumentException exists){
+						// written to its own partition in the meantime, which is newer
+					}
+
+					try{
+						partition.remove(entry.getKey());
+					}
+					catch(IllegalArgumentException absent){
+						// removed in the meantime. no error here
+					}
+
+					int count = moved.incrementAndGet();
+
+					if (listener != null){
+						listener.progress(count);
+					}
+				}
+
+				return null;
+			}
+		}, false);
+	}
+
+	/**
+	 * Release the resources of the store and close its partitions (see {@link ActiveKeyValueStore#close()}). The sessions are not closed.
+	 * The store must not be used afterwards. All the partitions are closed even if closing one of them fails; the first error is thrown.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error for some buffered key of a partition.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for some buffered key of a partition.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void close() throws KeeperException, IllegalArgumentException, InterruptedException{
+		scatterer.shutdown();
+
+		Throwable error = null;
+
+		for (ActiveKeyValueStore partition : partitions){
+			try{
+				partition.close();
+			}
+			catch(Throwable e){
+				if (error == null){
+					error = e;
+				}
+			}
+		}
+
+		if (error != null){
+			rethrow(error);
+		}
+	}
+
+	/**
+	 * Return the index of the partition of the given key: the partition of the first point of the ring following the hash of the key.
+	 */
+	private int partitionIndex(String key){
+		assert key != null;
+
+		Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(key));
+
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	/**
+	 * Run the operation on all the partitions concurrently and gather the results, in the order of the partitions.
+	 */
+	private <T> List<T> scatter(PartitionOperation<T> operation) throws KeeperException, InterruptedException{
+		return scatter(operation, true);
+	}
+
+	/**
+	 * Run the operation on all the partitions concurrently and gather the results, in the order of the partitions. When an operation fails
+	 * or we are interrupted the operations not started yet are cancelled, and the running ones are interrupted if asked.
+	 */
+	private <T> List<T> scatter(final PartitionOperation<T> operation, boolean interrupt) throws KeeperException, InterruptedException{
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+
+		for (int partition = 0; partition < partitions.size(); ++partition){
+			final int index = partition;
+
+			futures.add(scatterer.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return operation.execute(index, partitions.get(index));
+				}
+			}));
+		}
+
+		List<T> results = new ArrayList<T>();
+
+		try{
+			for (Future<T> future : futures){
+				results.add(future.get());
+			}
+		}
+		catch(ExecutionException e){
+			rethrow(e.getCause());
+		}
+		finally{
+			// the remaining operations are not waited for when one fails or we are interrupted
+			for (Future<T> future : futures){
+				future.cancel(interrupt);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Throw the given error of an operation on a partition.
+	 */
+	private static void rethrow(Throwable error) throws KeeperException, InterruptedException{
+		if (error instanceof KeeperException){
+			throw (KeeperException)error;
+		}
+		else if (error instanceof InterruptedException){
+			throw (InterruptedException)error;
+		}
+		else if (error instanceof RuntimeException){
+			throw (RuntimeException)error;
+		}
+		throw (Error)error;
+	}
+
+	/**
+	 * Hash the string over 64 bits: FNV-1a over its UTF-8 bytes followed by the finalizer of MurmurHash3, so that
+	 * similar names and keys land far apart on the ring.
+	 */
+	private static long hash(String value){
+		long h = 0xcbf29ce484222325L;
+
+		for (byte b : value.getBytes(UTF8)){
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb53a185ec6d4L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+}
@@ -0,0 +1,182 @@
+package gr.tuc.softnet.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link PartitionedActiveKeyValueStore} class against an in-process ZooKeeper server.
+ * 
+ * @see PartitionedActiveKeyValueStore
+ * @author Tassos Souris
+ *
+ */
+public class PartitionedActiveKeyValueStoreTest {
+	// each partition is a separate in-process ZooKeeper server, standing for an ensemble
+	private static final int SERVERS = 3;
+
+	private List<ZooKeeperServer> servers = new ArrayList<ZooKeeperServer>();
+	private List<NIOServerCnxn.Factory> factories = new ArrayList<NIOServerCnxn.Factory>();
+	private List<File> directories = new ArrayList<File>();
+	private List<ZooKeeperHandle> handles = new ArrayList<ZooKeeperHandle>();
+
+	@Before
+	public void startServers() throws Exception{
+		for (int i = 0; i < SERVERS; ++i){
+			File directory = File.createTempFile("zookeeper-", "");
+			directory.delete();
+			directory.mkdirs();
+			directories.add(directory);
+
+			ZooKeeperServer server = new ZooKeeperServer(directory, directory, 2000);
+			NIOServerCnxn.Factory factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", 0));
+			factory.startup(server);
+			servers.add(server);
+			factories.add(factory);
+
+			ZooKeeperHandle handle = ZooKeeperHandles.getHandleFactory().newHandle("127.0.0.1:" + factory.getLocalPort(), 10000);
+			waitUntilConnected(handle.getZooKeeper());
+			handle.getZooKeeper().create("/store", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			handles.add(handle);
+		}
+	}
+
+	@After
+	public void stopServers() throws Exception{
+		for (ZooKeeperHandle handle : handles){
+			handle.getZooKeeper().close();
+		}
+		for (NIOServerCnxn.Factory factory : factories){
+			factory.shutdown();
+		}
+		for (File directory : directories){
+			delete(directory);
+		}
+	}
+
+	@Test
+	public void testKeysSpreadOverPartitions() throws Exception{
+		PartitionedActiveKeyValueStore store = newStore(SERVERS);
+
+		for (int i = 0; i < 300; ++i){
+			store.putIfAbsent("key-" + i, ("value-" + i).getBytes());
+		}
+
+		int total = 0;
+
+		for (int i = 0; i < SERVERS; ++i){
+			int size = new ActiveKeyValueStore(handles.get(i), "/store").size();
+
+			// about 100 each
+			assertTrue(size > 30);
+			total += size;
+		}
+
+		assertEquals(300, total);
+
+		for (int i = 0; i < 300; ++i){
+			assertArrayEquals(("value-" + i).getBytes(), store.get("key-" + i));
+			assertTrue(store.partition("key-" + i).containsKey("key-" + i));
+		}
+
+		store.close();
+	}
+
+	@Test
+	public void testScatterGather() throws Exception{
+		PartitionedActiveKeyValueStore store = newStore(SERVERS);
+		Map<String, byte []> entries = new HashMap<String, byte []>();
+
+		for (int i = 0; i < 100; ++i){
+			entries.put("key-" + i, new byte[]{ (byte)i });
+		}
+
+		PutAllReport report = store.putAll(entries);
+
+		assertEquals(100, report.count(PutAllReport.Outcome.CREATED));
+		assertEquals(100, store.size());
+		assertEquals(100, store.entrySet().size());
+		assertEquals(100, store.getAll(entries.keySet()).size());
+		assertFalse(store.isEmpty());
+
+		assertEquals(100, store.clear());
+		assertTrue(store.isEmpty());
+
+		store.close();
+	}
+
+	@Test
+	public void testRebalanceAfterAddingPartition() throws Exception{
+		PartitionedActiveKeyValueStore before = newStore(SERVERS - 1);
+
+		for (int i = 0; i < 200; ++i){
+			before.putIfAbsent("key-" + i, ("value-" + i).getBytes());
+		}
+
+		PartitionedActiveKeyValueStore after = newStore(SERVERS);
+		int moved = after.rebalance(null);
+
+		assertTrue(moved > 0);
+		assertEquals(200, after.size());
+
+		for (int i = 0; i < 200; ++i){
+			String key = "key-" + i;
+
+			assertArrayEquals(("value-" + i).getBytes(), after.get(key));
+
+			// consistent hashing: a key either stays or moves to the new partition
+			if (!before.partitionName(key).equals(after.partitionName(key))){
+				assertEquals("partition-" + (SERVERS - 1), after.partitionName(key));
+			}
+		}
+
+		// each key is held by its own partition only
+		assertEquals(moved, new ActiveKeyValueStore(handles.get(SERVERS - 1), "/store").size());
+
+		before.close();
+		after.close();
+	}
+
+	private PartitionedActiveKeyValueStore newStore(int partitions){
+		PartitionedActiveKeyValueStore.Builder builder = PartitionedActiveKeyValueStore.newBuilder();
+
+		for (int i = 0; i < partitions; ++i){
+			builder.addPartition("partition-" + i, new ActiveKeyValueStore(handles.get(i), "/store"));
+		}
+
+		return builder.build();
+	}
+
+	private static void waitUntilConnected(ZooKeeper zookeeper) throws InterruptedException{
+		for (int i = 0; i < 1000 && zookeeper.getState() != ZooKeeper.States.CONNECTED; ++i){
+			Thread.sleep(10);
+		}
+		assertEquals(ZooKeeper.States.CONNECTED, zookeeper.getState());
+	}
+
+	private static void delete(File file) throws IOException{
+		File [] children = file.listFiles();
+
+		if (children != null){
+			for (File child : children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
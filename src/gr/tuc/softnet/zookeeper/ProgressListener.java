@@ -0,0 +1,23 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link ProgressListener} is notified of the progress of a long running bulk operation, such as {@link ActiveKeyValueStore#clear(ProgressListener)}.
+ *
+ * <p>
+ * The listener is called from the thread running the operation, so it should return quickly.
+ * </p>
+ *
+ * @see ActiveKeyValueStore#clear(ProgressListener)
+ * @author Tassos Souris
+ *
+ */
+public interface ProgressListener {
+
+	/**
+	 * Report the progress of the operation.
+	 *
+	 * @param done
+	 * 			The number of keys processed so far.
+	 */
+	public void progress(int done);
+}
@@ -0,0 +1,162 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link PutAllReport} reports the outcome of {@link ActiveKeyValueStore#putAll(Map)} for each of the given keys.
+ *
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore#putAll(Map, int)
+ * @author Tassos Souris
+ *
+ */
+public class PutAllReport {
+
+	/**
+	 * {@link Outcome} defines the possible outcomes of inserting a <em>(key,value)</em> pair.
+	 *
+	 * @author Tassos Souris
+	 *
+	 */
+	public static enum Outcome{
+		/**
+		 * The pair was inserted.
+		 */
+		CREATED,
+
+		/**
+		 * There was already an entry for the key so the pair was not inserted.
+		 */
+		ALREADY_EXISTED,
+
+		/**
+		 * The ZooKeeper server signaled an error. The error is available from {@link PutAllReport#failure(String)}.
+		 */
+		FAILED,
+
+		/**
+		 * The write limiter of the store rejected the create request, or an earlier one, so the pair was not sent to the ZooKeeper server
+		 * and may be inserted again later (see {@link ActiveKeyValueStore.Builder#setWriteLimiter(WriteLimiter)}).
+		 */
+		REJECTED
+	}
+
+	// the outcome for each key
+	private Map<String, Outcome> outcomes = new HashMap<String, Outcome>();
+
+	// the error for each key that failed
+	private Map<String, KeeperException> failures = new HashMap<String, KeeperException>();
+
+	/**
+	 * Construct an empty {@link PutAllReport}.
+	 */
+	PutAllReport(){
+	}
+
+	/**
+	 * Record that the pair for the given key was inserted.
+	 */
+	void created(String key){
+		outcomes.put(key, Outcome.CREATED);
+	}
+
+	/**
+	 * Record that there was already an entry for the given key.
+	 */
+	void alreadyExisted(String key){
+		outcomes.put(key, Outcome.ALREADY_EXISTED);
+	}
+
+	/**
+	 * Record that the ZooKeeper server signaled an error for the given key.
+	 */
+	void failed(String key, KeeperException failure){
+		outcomes.put(key, Outcome.FAILED);
+		failures.put(key, failure);
+	}
+
+	/**
+	 * Record that the pair for the given key was not sent because of the write limiter.
+	 */
+	void rejected(String key){
+		outcomes.put(key, Outcome.REJECTED);
+	}
+
+	/**
+	 * Return the outcome for the given key.
+	 *
+	 * @param key
+	 * 			The key.
+	 * @return The outcome or null if the key was not among the keys of the bulk operation.
+	 */
+	public Outcome outcome(String key){
+		return outcomes.get(key);
+	}
+
+	/**
+	 * Return the error the ZooKeeper server signaled for the given key.
+	 *
+	 * @param key
+	 * 			The key.
+	 * @return The error or null if the outcome for the key is not {@link Outcome#FAILED}.
+	 */
+	public KeeperException failure(String key){
+		return failures.get(key);
+	}
+
+	/**
+	 * Return the keys with the given outcome.
+	 *
+	 * @param outcome
+	 * 			The outcome.
+	 * @return An unmodifiable {@link Set} with the keys.
+	 */
+	public Set<String> keys(Outcome outcome){
+		Set<String> keys = new HashSet<String>();
+
+		for (Map.Entry<String, Outcome> entry : outcomes.entrySet()){
+			if (entry.getValue() == outcome){
+				keys.add(entry.getKey());
+			}
+		}
+
+		return Collections.unmodifiableSet(keys);
+	}
+
+	/**
+	 * Return the number of keys with the given outcome.
+	 *
+	 * @param outcome
+	 * 			The outcome.
+	 * @return The number of keys.
+	 */
+	public int count(Outcome outcome){
+		int count = 0;
+
+		for (Outcome o : outcomes.values()){
+			if (o == outcome){
+				++count;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Check whether none of the keys failed or was rejected.
+	 *
+	 * @return True if no key has the {@link Outcome#FAILED} or the {@link Outcome#REJECTED} outcome.
+	 */
+	public boolean isSuccessful(){
+		return failures.isEmpty() && !outcomes.containsValue(Outcome.REJECTED);
+	}
+}
@@ -0,0 +1,43 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Serializer} converts the values of a {@link TypedActiveKeyValueStore} to and from the bytes stored in ZooKeeper.
+ *
+ * <p>
+ * The values are deserialized from a read-only {@link ByteBuffer} so that a value held locally (in the near cache or the
+ * materialized view) is read in place, without an intermediate copy.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe. Built-in serializers are available from {@link Serializers}.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ * @see Serializers
+ * @author Tassos Souris
+ *
+ */
+public interface Serializer<V> {
+
+	/**
+	 * Serialize the value.
+	 *
+	 * @param value
+	 * 			The value (must not be null).
+	 * @return The bytes of the value.
+	 */
+	public byte [] serialize(V value);
+
+	/**
+	 * Deserialize a value from the remaining bytes of the given buffer.
+	 *
+	 * @param buffer
+	 * 			The bytes of the value (must not be null). The buffer is read-only and must not be kept after the call.
+	 * @return The value.
+	 * @throws IllegalArgumentException
+	 * 			If the bytes do not form a value.
+	 */
+	public V deserialize(ByteBuffer buffer) throws IllegalArgumentException;
+}
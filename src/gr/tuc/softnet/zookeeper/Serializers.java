@@ -0,0 +1,155 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * {@link Serializers} contains the built-in {@link Serializer} objects.
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see Serializer
+ * @author Tassos Souris
+ *
+ */
+public final class Serializers {
+
+	// The encoding of the strings
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A {@link Serializer} of {@link String} values as UTF-8 bytes.
+	 */
+	public static final Serializer<String> STRING = new Serializer<String>(){
+		@Override
+		public byte[] serialize(String value) {
+			return value.getBytes(UTF8);
+		}
+
+		@Override
+		public String deserialize(ByteBuffer buffer) throws IllegalArgumentException {
+			try{
+				// a new decoder per call since decoders are not thread-safe
+				return UTF8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(buffer.duplicate())
+						.toString();
+			}
+			catch(CharacterCodingException e){
+				throw new IllegalArgumentException(e);
+			}
+		}
+	};
+
+	/**
+	 * A {@link Serializer} of {@link Long} values as 8 bytes in big-endian order.
+	 */
+	public static final Serializer<Long> LONG = new Serializer<Long>(){
+		@Override
+		public byte[] serialize(Long value) {
+			return ByteBuffer.allocate(8).putLong(value.longValue()).array();
+		}
+
+		@Override
+		public Long deserialize(ByteBuffer buffer) throws IllegalArgumentException {
+			if (buffer.remaining() != 8){
+				throw new IllegalArgumentException();
+			}
+			return Long.valueOf(buffer.getLong(buffer.position()));
+		}
+	};
+
+	private Serializers(){
+	}
+
+	/**
+	 * Return a {@link Serializer} of protocol buffer messages of the given class.
+	 *
+	 * <p>
+	 * The messages are serialized with their <em>toByteArray()</em> method and deserialized with the static <em>parseFrom(ByteBuffer)</em>
+	 * method of the class, or <em>parseFrom(byte[])</em> for the versions of protocol buffers without the former. The methods are looked up
+	 * by reflection so that there is no dependency on the protocol buffers library; any class with these methods will do.
+	 * </p>
+	 *
+	 * @param messageClass
+	 * 			The class of the messages (must not be null).
+	 * @return The serializer.
+	 * @throws NullPointerException
+	 * 			If messageClass is null.
+	 * @throws IllegalArgumentException
+	 * 			If the class does not have the methods of a protocol buffer message.
+	 */
+	public static <V> Serializer<V> protobuf(final Class<V> messageClass) throws NullPointerException, IllegalArgumentException{
+		if (messageClass == null){
+			throw new NullPointerException();
+		}
+
+		final Method toByteArray;
+		Method parseFrom = null;
+		boolean parsesBuffers = false;
+
+		try{
+			toByteArray = messageClass.getMethod("toByteArray");
+
+			try{
+				parseFrom = messageClass.getMethod("parseFrom", ByteBuffer.class);
+				parsesBuffers = true;
+			}
+			catch(NoSuchMethodException e){
+				parseFrom = messageClass.getMethod("parseFrom", byte [].class);
+			}
+		}
+		catch(NoSuchMethodException e){
+			throw new IllegalArgumentException(e);
+		}
+
+		if (!Modifier.isStatic(parseFrom.getModifiers()) || !messageClass.isAssignableFrom(parseFrom.getReturnType())){
+			throw new IllegalArgumentException();
+		}
+
+		final Method parser = parseFrom;
+		final boolean buffers = parsesBuffers;
+
+		return new Serializer<V>(){
+			@Override
+			public byte[] serialize(V value) {
+				return (byte [])invoke(toByteArray, value);
+			}
+
+			@Override
+			public V deserialize(ByteBuffer buffer) throws IllegalArgumentException {
+				if (buffers){
+					return messageClass.cast(invoke(parser, null, buffer.duplicate()));
+				}
+
+				byte [] bytes = new byte[buffer.remaining()];
+				buffer.duplicate().get(bytes);
+
+				return messageClass.cast(invoke(parser, null, bytes));
+			}
+		};
+	}
+
+	/**
+	 * Invoke the method, reporting the exceptions it throws (such as a parse error) as an {@link IllegalArgumentException}.
+	 */
+	private static Object invoke(Method method, Object target, Object... arguments) throws IllegalArgumentException{
+		try{
+			return method.invoke(target, arguments);
+		}
+		catch(InvocationTargetException e){
+			throw new IllegalArgumentException(e.getCause());
+		}
+		catch(IllegalAccessException e){
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
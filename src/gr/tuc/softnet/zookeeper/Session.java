@@ -1,5 +1,6 @@
 package gr.tuc.softnet.zookeeper;
 
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 
 /**
@@ -12,6 +13,43 @@ import org.apache.zookeeper.ZooKeeper;
 public abstract class Session{
 	// the zookeeper client object.
 	protected ZooKeeper zookeeper = null;
+	
+	// the handle of the session, null if not given. reads without a watch go through its read client object.
+	protected ZooKeeperHandle handle = null;
+	
+	/**
+	 * Construct a session without a zookeeper client object.
+	 */
+	public Session(){
+	}
+	
+	/**
+	 * Construct a session over the given handle. The requests go through the client object of the handle, except for the reads
+	 * without a watch which go through {@link ZooKeeperHandle#getReadZooKeeper()} (spread over the sessions of a {@link ZooKeeperHandlePool}).
+	 * 
+	 * @param handle
+	 * 			the handle
+	 * @throws NullPointerException
+	 * 			if handle is null
+	 */
+	public Session(ZooKeeperHandle handle) throws NullPointerException{
+		if (handle == null){
+			throw new NullPointerException();
+		}
+		this.handle = handle;
+		this.zookeeper = handle.getZooKeeper();
+	}
+	
+	/**
+	 * The zookeeper client object for a read leaving the given watcher.
+	 * 
+	 * @param watcher
+	 * 			the watcher left by the read, null for none
+	 * @return the client object of the handle for a read without a watch, and the zookeeper client object of the session otherwise.
+	 */
+	protected ZooKeeper readZooKeeper(Watcher watcher){
+		return watcher == null && handle != null ? handle.getReadZooKeeper() : zookeeper;
+	}
 
 
 	/**
@@ -0,0 +1,171 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link SingleFlight} coalesces concurrent identical requests: while a request for a key is outstanding, the callers asking for the
+ * same key wait for it and receive its result instead of issuing their own.
+ *
+ * <p>
+ * The first caller for a key (the leader) runs the request; the callers arriving before it completes (the followers) get the same
+ * result, passed through {@link #share(Object)} so that mutable results can be copied, or a {@link KeeperException} of the same code.
+ * If the leader is interrupted the followers are not; they start over, one of them becoming the new leader. A caller arriving after
+ * the request completed issues a new request.
+ * </p>
+ *
+ * <p>
+ * A request may be issued before a change that completes while it is outstanding, so its result may not reflect the change. To keep
+ * the reads after a change seeing it, the writer calls {@link #forget(Object)} once the change is made: the outstanding request is then
+ * left to the callers that already joined it, and the callers arriving later issue a new request.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @param <V> The type of the results.
+ * @author Tassos Souris
+ *
+ */
+class SingleFlight<V> {
+
+	/**
+	 * A request to coalesce.
+	 */
+	interface Request<V>{
+		V execute() throws KeeperException, InterruptedException;
+	}
+
+	/**
+	 * Selects the keys of the requests to retire.
+	 */
+	interface KeyFilter{
+		boolean accept(Object key);
+	}
+
+	/**
+	 * An outstanding request.
+	 */
+	private static class Flight<V>{
+		// counted down once the request completes
+		final CountDownLatch done = new CountDownLatch(1);
+		// whether the request succeeded
+		boolean succeeded = false;
+		// the result, if succeeded
+		V result = null;
+		// the error of the request, if it failed with a KeeperException or a RuntimeException
+		Exception failure = null;
+	}
+
+	// The outstanding requests by key
+	private ConcurrentMap<Object, Flight<V>> flights = new ConcurrentHashMap<Object, Flight<V>>();
+
+	/**
+	 * Run the request for the given key, or wait for the outstanding request for the same key and return its result.
+	 *
+	 * @param key
+	 * 			The key identifying the request (must not be null). Requests with equal keys must be interchangeable.
+	 * @param request
+	 * 			The request (must not be null).
+	 * @return The result of the request.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	V execute(Object key, Request<V> request) throws KeeperException, InterruptedException{
+		assert key != null;
+		assert request != null;
+
+		while (true){
+			Flight<V> flight = new Flight<V>();
+			Flight<V> leader = flights.putIfAbsent(key, flight);
+
+			if (leader == null){
+				try{
+					flight.result = request.execute();
+					flight.succeeded = true;
+					return flight.result;
+				}
+				catch(KeeperException e){
+					flight.failure = e;
+					throw e;
+				}
+				catch(RuntimeException e){
+					flight.failure = e;
+					throw e;
+				}
+				finally{
+					flights.remove(key, flight);
+					flight.done.countDown();
+				}
+			}
+
+			leader.done.await();
+
+			if (leader.succeeded){
+				return share(leader.result);
+			}
+			else if (leader.failure instanceof KeeperException){
+				// a new exception so that it carries the stack of this thread
+				KeeperException e = (KeeperException)leader.failure;
+				throw KeeperException.create(e.code(), e.getPath());
+			}
+			else if (leader.failure != null){
+				throw (RuntimeException)leader.failure;
+			}
+
+			// the leader was interrupted (or failed with an error): start over
+		}
+	}
+
+	/**
+	 * Retire the outstanding request for the given key (if any), so that the callers arriving from now on issue a new request.
+	 *
+	 * @param key
+	 * 			The key identifying the request (must not be null).
+	 */
+	void forget(Object key){
+		assert key != null;
+
+		flights.remove(key);
+	}
+
+	/**
+	 * Retire the outstanding requests whose key is accepted by the filter (see {@link #forget(Object)}).
+	 *
+	 * @param filter
+	 * 			The filter selecting the keys (must not be null).
+	 */
+	void forget(KeyFilter filter){
+		assert filter != null;
+
+		for (Object key : flights.keySet()){
+			if (filter.accept(key)){
+				flights.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Retire all the outstanding requests (see {@link #forget(Object)}).
+	 */
+	void forgetAll(){
+		flights.clear();
+	}
+
+	/**
+	 * Return the result to hand to a follower. The default returns the result itself; override to copy mutable results.
+	 *
+	 * @param result
+	 * 			The result of the leader.
+	 * @return The result for the follower.
+	 */
+	V share(V result){
+		return result;
+	}
+}
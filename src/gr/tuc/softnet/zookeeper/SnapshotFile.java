@@ -0,0 +1,231 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SnapshotFile} stores the entries of a materialized view in a local file, so that a client can warm start from it.
+ *
+ * <p>
+ * The file holds the path of the store and, for each key, the data of its znode along with the version and the zxid of the last change of
+ * the znode, followed by a CRC32 checksum of all the preceding bytes. The file is written and read through a memory mapping in one pass.
+ * A new snapshot is written to a temporary file that then replaces the old one, so a crash while writing leaves the old snapshot in place.
+ * The writes are serialized since they share the temporary file.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setSnapshotFile(File)
+ * @author Tassos Souris
+ *
+ */
+final class SnapshotFile {
+	// Identifies a snapshot file ("AKVS")
+	private static final int MAGIC = 0x414b5653;
+
+	// The version of the format of the file
+	private static final int FORMAT_VERSION = 1;
+
+	// The encoding of the strings
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SnapshotFile(){
+	}
+
+	/**
+	 * Write the entries to the file, replacing its previous content.
+	 *
+	 * @param file
+	 * 			The file (must not be null).
+	 * @param storePath
+	 * 			The path of the znode representing the store (must not be null).
+	 * @param entries
+	 * 			The entries by key (must not be null).
+	 * @throws IOException
+	 * 			If the file cannot be written.
+	 */
+	static synchronized void write(File file, String storePath, Map<String, VersionedValue> entries) throws IOException{
+		assert file != null;
+		assert storePath != null;
+		assert entries != null;
+
+		byte [] path = storePath.getBytes(UTF8);
+		Map<byte [], VersionedValue> encoded = new HashMap<byte [], VersionedValue>();
+		// magic, format version, store path, number of entries, checksum
+		long size = 4 + 4 + 4 + path.length + 4 + 8;
+
+		for (Map.Entry<String, VersionedValue> entry : entries.entrySet()){
+			byte [] key = entry.getKey().getBytes(UTF8);
+			byte [] value = entry.getValue().sharedValue();
+
+			encoded.put(key, entry.getValue());
+			// key, version, modified zxid, value
+			size += 4 + key.length + 4 + 8 + 4 + (value == null ? 0 : value.length);
+		}
+
+		if (size > Integer.MAX_VALUE){
+			throw new IOException("snapshot too large: " + size + " bytes");
+		}
+
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+
+		try{
+			output.setLength(size);
+
+			MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+			buffer.putInt(path.length).put(path);
+			buffer.putInt(encoded.size());
+
+			for (Map.Entry<byte [], VersionedValue> entry : encoded.entrySet()){
+				byte [] value = entry.getValue().sharedValue();
+
+				buffer.putInt(entry.getKey().length).put(entry.getKey());
+				buffer.putInt(entry.getValue().version()).putLong(entry.getValue().modifiedZxid());
+
+				if (value == null){
+					buffer.putInt(-1);
+				}
+				else{
+					buffer.putInt(value.length).put(value);
+				}
+			}
+
+			buffer.putLong(checksum(buffer, buffer.position()));
+			buffer.force();
+		}
+		finally{
+			output.close();
+		}
+
+		// replace the old snapshot. renameTo() does not replace an existing file on all platforms
+		if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))){
+			throw new IOException("cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Read the entries from the file.
+	 *
+	 * @param file
+	 * 			The file (must not be null).
+	 * @param storePath
+	 * 			The path of the znode representing the store (must not be null).
+	 * @return The entries by key.
+	 * @throws IOException
+	 * 			If the file cannot be read, is not a snapshot of the given store or is corrupt.
+	 */
+	static Map<String, VersionedValue> read(File file, String storePath) throws IOException{
+		assert file != null;
+		assert storePath != null;
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+
+		try{
+			long size = input.length();
+
+			if (size > Integer.MAX_VALUE){
+				throw new IOException("not a snapshot: " + file);
+			}
+
+			MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			try{
+				if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION){
+					throw new IOException("not a snapshot: " + file);
+				}
+				if (buffer.getLong((int)size - 8) != checksum(buffer, (int)size - 8)){
+					throw new IOException("corrupt snapshot: " + file);
+				}
+				if (!storePath.equals(string(buffer))){
+					throw new IOException("snapshot of another store: " + file);
+				}
+
+				int count = buffer.getInt();
+				Map<String, VersionedValue> entries = new HashMap<String, VersionedValue>(Math.max(16, count * 2));
+
+				for (int i = 0; i < count; ++i){
+					String key = string(buffer);
+					int version = buffer.getInt();
+					long modifiedZxid = buffer.getLong();
+					byte [] value = bytes(buffer);
+
+					entries.put(key, new VersionedValue(value, version, modifiedZxid));
+				}
+
+				return entries;
+			}
+			catch(BufferUnderflowException e){
+				throw new IOException("corrupt snapshot: " + file);
+			}
+		}
+		finally{
+			input.close();
+		}
+	}
+
+	/**
+	 * Read a length-prefixed UTF-8 string.
+	 */
+	private static String string(ByteBuffer buffer) throws IOException{
+		byte [] bytes = bytes(buffer);
+
+		if (bytes == null){
+			throw new IOException("corrupt snapshot");
+		}
+
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Read a length-prefixed byte array, with a length of -1 for null.
+	 */
+	private static byte [] bytes(ByteBuffer buffer) throws IOException{
+		int length = buffer.getInt();
+
+		if (length == -1){
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()){
+			throw new IOException("corrupt snapshot");
+		}
+
+		byte [] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Compute the CRC32 checksum of the first length bytes of the buffer.
+	 */
+	private static long checksum(ByteBuffer buffer, int length){
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.position(0);
+		bytes.limit(length);
+
+		CRC32 crc = new CRC32();
+		byte [] chunk = new byte[8192];
+
+		while (bytes.hasRemaining()){
+			int n = Math.min(chunk.length, bytes.remaining());
+			bytes.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+
+		return crc.getValue();
+	}
+}
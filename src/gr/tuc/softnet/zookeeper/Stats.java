@@ -0,0 +1,43 @@
+package gr.tuc.softnet.zookeeper;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link Stats} contains static methods on the {@link Stat} objects of the znodes.
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @author Tassos Souris
+ *
+ */
+final class Stats {
+
+	private Stats(){
+	}
+
+	/**
+	 * Copy the fields of a stat to another, as for a result shared by several reads, each with its own stat.
+	 *
+	 * @param from
+	 * 			The stat to copy (must not be null).
+	 * @param to
+	 * 			The stat to copy to (must not be null).
+	 * @return The stat copied to.
+	 */
+	static Stat copy(Stat from, Stat to){
+		to.setCzxid(from.getCzxid());
+		to.setMzxid(from.getMzxid());
+		to.setCtime(from.getCtime());
+		to.setMtime(from.getMtime());
+		to.setVersion(from.getVersion());
+		to.setCversion(from.getCversion());
+		to.setAversion(from.getAversion());
+		to.setEphemeralOwner(from.getEphemeralOwner());
+		to.setDataLength(from.getDataLength());
+		to.setNumChildren(from.getNumChildren());
+		to.setPzxid(from.getPzxid());
+		return to;
+	}
+}
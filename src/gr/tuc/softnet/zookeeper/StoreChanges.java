@@ -0,0 +1,90 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * {@link StoreChanges} describes the changes of an active key-value store recorded in its change log after a given sequence number
+ * (see {@link ActiveKeyValueStore#changesSince(long)}).
+ *
+ * <p>
+ * A reader holding a copy of (part of) the store catches up as follows: if the changes are not complete it reloads everything; otherwise
+ * if the store was cleared it drops everything, and then it re-reads the changed keys. Either way it keeps {@link #lastSequence()} to
+ * catch up from the next time.
+ * </p>
+ *
+ * <p>
+ * This class is immutable.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setChangeLog(int)
+ * @author Tassos Souris
+ *
+ */
+public final class StoreChanges {
+	// whether all the changes after the requested sequence number are still in the log
+	private final boolean complete;
+	// whether the store was cleared after the requested sequence number
+	private final boolean cleared;
+	// the keys changed after the requested sequence number
+	private final Set<String> keys;
+	// the sequence number of the last change in the log
+	private final long lastSequence;
+
+	/**
+	 * Construct a new {@link StoreChanges}.
+	 *
+	 * @param complete
+	 * 			Whether all the changes after the requested sequence number are still in the log.
+	 * @param cleared
+	 * 			Whether the store was cleared after the requested sequence number.
+	 * @param keys
+	 * 			The keys changed after the requested sequence number.
+	 * @param lastSequence
+	 * 			The sequence number of the last change in the log.
+	 */
+	StoreChanges(boolean complete, boolean cleared, Set<String> keys, long lastSequence){
+		this.complete = complete;
+		this.cleared = cleared;
+		this.keys = Collections.unmodifiableSet(keys);
+		this.lastSequence = lastSequence;
+	}
+
+	/**
+	 * Check whether the log still holds all the changes after the requested sequence number. The oldest changes are trimmed from the log,
+	 * so a reader that fell too far behind must reload the whole store.
+	 *
+	 * @return True if the changes are complete and false if the reader must reload the whole store.
+	 */
+	public boolean isComplete(){
+		return complete;
+	}
+
+	/**
+	 * Check whether the store was cleared (see {@link ActiveKeyValueStore#clear()}) after the requested sequence number.
+	 *
+	 * @return True if all the entries held by the reader must be dropped before the changed keys are re-read.
+	 */
+	public boolean isCleared(){
+		return cleared;
+	}
+
+	/**
+	 * Return the keys inserted, replaced or removed after the requested sequence number. The keys changed before a clear are included
+	 * too, since a key created by another client while the store was being cleared may be logged before the clear.
+	 *
+	 * @return An unmodifiable set of the keys, empty if the changes are not complete.
+	 */
+	public Set<String> keys(){
+		return keys;
+	}
+
+	/**
+	 * Return the sequence number to catch up from the next time.
+	 *
+	 * @return The sequence number of the last change in the log, or the requested sequence number if there were no changes since.
+	 */
+	public long lastSequence(){
+		return lastSequence;
+	}
+}
@@ -0,0 +1,51 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.NoSuchElementException;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link StoreIterator} iterates over the contents of an active key-value store, fetching them from the ZooKeeper server as it goes.
+ *
+ * <p>
+ * Unlike {@link java.util.Iterator} the methods may throw the errors of the ZooKeeper server. The iteration is weakly consistent:
+ * each key present for the whole iteration is returned exactly once, a key removed during the iteration may or may not be returned,
+ * and so may a key added during the iteration.
+ * </p>
+ *
+ * <p>
+ * Implementations are not thread-safe.
+ * </p>
+ *
+ * @param <E> The type of the elements.
+ * @see ActiveKeyValueStore#keyIterator()
+ * @see ActiveKeyValueStore#entryIterator()
+ * @author Tassos Souris
+ *
+ */
+public interface StoreIterator<E> {
+
+	/**
+	 * Check whether the iteration has more elements.
+	 *
+	 * @return True if there are more elements.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean hasNext() throws KeeperException, InterruptedException;
+
+	/**
+	 * Return the next element of the iteration.
+	 *
+	 * @return The next element.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws NoSuchElementException
+	 * 			If there are no more elements.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public E next() throws KeeperException, NoSuchElementException, InterruptedException;
+}
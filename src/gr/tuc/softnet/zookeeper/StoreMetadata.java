@@ -0,0 +1,81 @@
+package gr.tuc.softnet.zookeeper;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link StoreMetadata} describes the set of keys of an active key-value store as found in the {@link Stat} of the znodes holding the key znodes.
+ *
+ * <p>
+ * The metadata is read without transferring the keys themselves (see {@link ActiveKeyValueStore#metadata()}). Note that ZooKeeper tracks the changes
+ * of the children of a znode but not the changes of their data, so the zxid and the version change when a key is added or removed but not when
+ * the value of a key is replaced.
+ * </p>
+ *
+ * <p>
+ * This class is immutable.
+ * </p>
+ *
+ * @author Tassos Souris
+ *
+ */
+public final class StoreMetadata {
+	// the number of keys
+	private final int size;
+	// the zxid of the last addition or removal of a key
+	private final long lastModifiedZxid;
+	// the number of additions and removals of keys
+	private final int childrenVersion;
+
+	/**
+	 * Construct a new {@link StoreMetadata}.
+	 *
+	 * @param size
+	 * 			The number of keys.
+	 * @param lastModifiedZxid
+	 * 			The zxid of the last addition or removal of a key.
+	 * @param childrenVersion
+	 * 			The number of additions and removals of keys.
+	 */
+	StoreMetadata(int size, long lastModifiedZxid, int childrenVersion){
+		this.size = size;
+		this.lastModifiedZxid = lastModifiedZxid;
+		this.childrenVersion = childrenVersion;
+	}
+
+	/**
+	 * Return the number of <em>(key,value)</em> entries stored in the active key-value store.
+	 *
+	 * @return The number of entries (as in {@link Stat#getNumChildren()}).
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Check whether the active key-value store is empty or not.
+	 *
+	 * @return True if the active key-value store is empty and false otherwise.
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * Return the zxid of the last addition or removal of a key.
+	 *
+	 * @return The zxid (as in {@link Stat#getPzxid()}).
+	 */
+	public long lastModifiedZxid(){
+		return lastModifiedZxid;
+	}
+
+	/**
+	 * Return the version of the set of keys, which increases on each addition or removal of a key. Two equal versions
+	 * read from the same store mean that no key was added or removed in between.
+	 *
+	 * @return The version (as in {@link Stat#getCversion()}).
+	 */
+	public int childrenVersion(){
+		return childrenVersion;
+	}
+}
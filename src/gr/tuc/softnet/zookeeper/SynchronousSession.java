@@ -19,6 +19,14 @@ import org.apache.zookeeper.data.Stat;
  * {@link SynchronousSession} wraps the synchronous versions of the {@link ZooKeeper} client object.
  * 
  * <p>
+ * Concurrent calls of {@link #exists(Path, Watcher)} or {@link #getChildren(Path, Watcher)} (or {@link #getChildren(Path, Watcher, Stat)})
+ * for the same path and the same watcher share a single request to the ZooKeeper server and all receive its result.
+ * A write through the session ({@link #create(Path, byte[], Acl, CreateOption)}, {@link #delete(Path, int)} or {@link #setData(Path, byte[], int)})
+ * retires the outstanding requests for the znode written (and for its parent on create and delete), so the reads issued after the write
+ * see it and do not join a request sent before it.
+ * </p>
+ * 
+ * <p>
  * This class is thread-safe.
  * </p>
  * 
@@ -27,6 +35,75 @@ import org.apache.zookeeper.data.Stat;
  */
 public class SynchronousSession extends Session{
 	
+	// Coalesces the concurrent exists() calls. The callers other than the one issuing the request get a copy of the stat.
+	private SingleFlight<Stat> existsFlights = new SingleFlight<Stat>(){
+		@Override
+		Stat share(Stat stat) {
+			return stat == null ? null : Stats.copy(stat, new Stat());
+		}
+	};
+	
+	// Coalesces the concurrent getChildren() calls. Each caller copies the result.
+	private SingleFlight<Children> childrenFlights = new SingleFlight<Children>();
+	
+	/**
+	 * The result of a getChildren() request.
+	 */
+	private static class Children{
+		final List<String> names;
+		final Stat stat;
+		
+		Children(List<String> names, Stat stat){
+			this.names = names;
+			this.stat = stat;
+		}
+	}
+	
+	/**
+	 * The key of a coalesced request: the path and the identity of the watcher.
+	 */
+	private static class FlightKey{
+		private final String path;
+		private final Watcher watcher;
+		
+		FlightKey(String path, Watcher watcher){
+			this.path = path;
+			this.watcher = watcher;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FlightKey)){
+				return false;
+			}
+			FlightKey other = (FlightKey)obj;
+			return path.equals(other.path) && watcher == other.watcher;
+		}
+		
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + System.identityHashCode(watcher);
+		}
+	}
+	
+	/**
+	 * Construct a session without a zookeeper client object.
+	 */
+	public SynchronousSession(){
+	}
+	
+	/**
+	 * Construct a session over the given handle. Over a {@link ZooKeeperHandlePool} the reads without a watch are spread over the sessions of the pool.
+	 * 
+	 * @param handle
+	 * 			the handle
+	 * @throws NullPointerException
+	 * 			if handle is null
+	 */
+	public SynchronousSession(ZooKeeperHandle handle) throws NullPointerException{
+		super(handle);
+	}
+	
 	/**
 	 * A wrapper around the {@link ZooKeeper#create(String, byte[], List, org.apache.zookeeper.CreateMode)} method.
 	 * 
@@ -62,7 +139,14 @@ public class SynchronousSession extends Session{
 		CreateMode createMode = createOption.mode();
 		List<ACL> acls = Acls.toZooKeeperACL(acl);
 		
-		return new Path(path.getRoot(), zookeeper.create(path.getPath(), data, acls, createMode));
+		try{
+			return new Path(path.getRoot(), zookeeper.create(path.getPath(), data, acls, createMode));
+		}
+		finally{
+			// a sequential znode is created under the same parent; its own path has no outstanding request
+			forgetFlights(path);
+			forgetFlights(path.getParent());
+		}
 	}
 	
 	/**
@@ -90,7 +174,13 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		zookeeper.delete(path.getPath(), version);
+		try{
+			zookeeper.delete(path.getPath(), version);
+		}
+		finally{
+			forgetFlights(path);
+			forgetFlights(path.getParent());
+		}
 	}
 	
 	/**
@@ -119,7 +209,15 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		return zookeeper.exists(path.getPath(), watcher);
+		final String znodePath = path.getPath();
+		final Watcher znodeWatcher = watcher;
+		
+		return existsFlights.execute(new FlightKey(znodePath, znodeWatcher), new SingleFlight.Request<Stat>() {
+			@Override
+			public Stat execute() throws KeeperException, InterruptedException {
+				return readZooKeeper(znodeWatcher).exists(znodePath, znodeWatcher);
+			}
+		});
 	}
 	
 	
@@ -151,7 +249,7 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		return zookeeper.getData(path.getPath(), watcher, stat);
+		return readZooKeeper(watcher).getData(path.getPath(), watcher, stat);
 	}
 	
 	/**
@@ -182,7 +280,12 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		return zookeeper.setData(path.getPath(), data, version);
+		try{
+			return zookeeper.setData(path.getPath(), data, version);
+		}
+		finally{
+			forgetFlights(path);
+		}
 	}
 	
 	/**
@@ -213,7 +316,7 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		List<String> children = zookeeper.getChildren(path.getPath(), watcher);
+		List<String> children = children(path.getPath(), watcher).names;
 		
 		List<Path> paths = new ArrayList<Path>(children.size());
 		
@@ -254,7 +357,12 @@ public class SynchronousSession extends Session{
 			throw new IllegalArgumentException();
 		}
 		
-		List<String> children = zookeeper.getChildren(path.getPath(), watcher, stat);
+		Children result = children(path.getPath(), watcher);
+		List<String> children = result.names;
+		
+		if (stat != null){
+			Stats.copy(result.stat, stat);
+		}
 		
 		List<Path> paths = new ArrayList<Path>(children.size());
 		
@@ -264,4 +372,44 @@ public class SynchronousSession extends Session{
 		
 		return paths;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Retrieve the children of the znode, sharing the request with the concurrent calls for the same znode and watcher.
+	 * The returned list must not be changed.
+	 */
+	private Children children(final String znodePath, final Watcher watcher) throws KeeperException, InterruptedException{
+		return childrenFlights.execute(new FlightKey(znodePath, watcher), new SingleFlight.Request<Children>() {
+			@Override
+			public Children execute() throws KeeperException, InterruptedException {
+				Stat stat = new Stat();
+				List<String> names = readZooKeeper(watcher).getChildren(znodePath, watcher, stat);
+				
+				return new Children(names, stat);
+			}
+		});
+	}
+	
+	/**
+	 * Retire the outstanding exists() and getChildren() requests for the znode, whatever their watcher, so that the reads arriving
+	 * from now on issue a new request. Called after each write, whether it succeeded or not (a failed write may still have been applied).
+	 * 
+	 * @param path
+	 * 			the path of the znode, null for none
+	 */
+	private void forgetFlights(Path path){
+		if (path == null){
+			return;
+		}
+		
+		final String znodePath = path.getPath();
+		SingleFlight.KeyFilter filter = new SingleFlight.KeyFilter() {
+			@Override
+			public boolean accept(Object key) {
+				return ((FlightKey)key).path.equals(znodePath);
+			}
+		};
+		
+		existsFlights.forget(filter);
+		childrenFlights.forget(filter);
+	}
+}
@@ -0,0 +1,188 @@
+package gr.tuc.softnet.zookeeper;
+
+import static org.junit.Assert.*;
+
+import gr.tuc.softnet.zookeeper.znode.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link SynchronousSession} class against an in-process ZooKeeper server.
+ *
+ * @see SynchronousSession
+ * @author Tassos Souris
+ *
+ */
+public class SynchronousSessionTest {
+	private ZooKeeperServer server;
+	private NIOServerCnxn.Factory factory;
+	private File directory;
+	private StallingZooKeeper zookeeper;
+	private SynchronousSession session;
+
+	/**
+	 * A client object whose next read, once armed, holds its result until released: a request outstanding across a write.
+	 */
+	private static class StallingZooKeeper extends ZooKeeper{
+		volatile boolean armed = false;
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StallingZooKeeper(String connectString) throws IOException{
+			super(connectString, 10000, null);
+		}
+
+		@Override
+		public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+			Stat stat = super.exists(path, watcher);
+			stall();
+			return stat;
+		}
+
+		@Override
+		public List<String> getChildren(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+			List<String> children = super.getChildren(path, watcher, stat);
+			stall();
+			return children;
+		}
+
+		private void stall() throws InterruptedException{
+			if (armed){
+				armed = false;
+				stalled.countDown();
+				release.await(5, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	@Before
+	public void startServer() throws Exception{
+		directory = File.createTempFile("zookeeper-", "");
+		directory.delete();
+		directory.mkdirs();
+
+		server = new ZooKeeperServer(directory, directory, 2000);
+		factory = new NIOServerCnxn.Factory(new InetSocketAddress("127.0.0.1", 0));
+		factory.startup(server);
+
+		zookeeper = new StallingZooKeeper("127.0.0.1:" + factory.getLocalPort());
+		waitUntilConnected(zookeeper);
+		session = new SynchronousSession(new ZooKeeperHandle(zookeeper));
+	}
+
+	@After
+	public void stopServer() throws Exception{
+		zookeeper.close();
+		factory.shutdown();
+		delete(directory);
+	}
+
+	@Test
+	public void testExistsAfterSetDataDoesNotJoinEarlierRequest() throws Exception{
+		final Path path = new Path("/a");
+
+		zookeeper.create("/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+		Thread reader = stalledRead(new Runnable() {
+			@Override
+			public void run() {
+				try{
+					session.exists(path, null);
+				}
+				catch(Exception e){
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		session.setData(path, new byte[]{ 1 }, -1);
+		assertEquals(1, session.exists(path, null).getVersion());
+
+		zookeeper.release.countDown();
+		reader.join();
+	}
+
+	@Test
+	public void testChildrenAfterDeleteDoNotJoinEarlierRequest() throws Exception{
+		final Path parent = new Path("/p");
+
+		zookeeper.create("/p", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		zookeeper.create("/p/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+		Thread reader = stalledRead(new Runnable() {
+			@Override
+			public void run() {
+				try{
+					session.getChildren(parent, null);
+				}
+				catch(Exception e){
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		session.delete(new Path("/p/b"), -1);
+		assertFalse(names(session.getChildren(parent, null)).contains("/p/b"));
+
+		zookeeper.release.countDown();
+		reader.join();
+	}
+
+	/**
+	 * Start a read in another thread and return once it has its result but holds it back.
+	 */
+	private Thread stalledRead(Runnable read) throws InterruptedException{
+		zookeeper.armed = true;
+
+		Thread reader = new Thread(read);
+		reader.start();
+		assertTrue(zookeeper.stalled.await(5, TimeUnit.SECONDS));
+
+		return reader;
+	}
+
+	private static List<String> names(List<Path> paths){
+		List<String> names = new ArrayList<String>();
+
+		for (Path path : paths){
+			names.add(path.getPath());
+		}
+		return names;
+	}
+
+	private static void waitUntilConnected(ZooKeeper zookeeper) throws InterruptedException{
+		for (int i = 0; i < 1000 && zookeeper.getState() != ZooKeeper.States.CONNECTED; ++i){
+			Thread.sleep(10);
+		}
+		assertEquals(ZooKeeper.States.CONNECTED, zookeeper.getState());
+	}
+
+	private static void delete(File file) throws IOException{
+		File [] children = file.listFiles();
+
+		if (children != null){
+			for (File child : children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,267 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link TypedActiveKeyValueStore} is an active key-value store with values of type V, converted to and from bytes with a {@link Serializer}.
+ *
+ * <p>
+ * The store is a view over an {@link ActiveKeyValueStore}, which stores the serialized values and provides all of its features (near cache,
+ * materialized view, codecs and such). The values are deserialized from read-only views of the stored bytes (see {@link ActiveKeyValueStore#getBuffer(String)}),
+ * so that a value served from the near cache or the materialized view is deserialized in place without copying its bytes first.
+ * For example (without error checking and such):
+ * 	<pre>
+ * 		TypedActiveKeyValueStore&lt;String&gt; names = new TypedActiveKeyValueStore&lt;String&gt;(store, Serializers.STRING);
+ * 		names.putIfAbsent("key", "value");
+ * 	</pre>
+ * </p>
+ *
+ * <p>
+ * A null value is stored without calling the serializer, and reads as null.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ * @see Serializer
+ * @author Tassos Souris
+ *
+ */
+public class TypedActiveKeyValueStore<V> {
+	// The store of the serialized values
+	private ActiveKeyValueStore store = null;
+
+	// Converts the values to and from bytes
+	private Serializer<V> serializer = null;
+
+	/**
+	 * Construct a new {@link TypedActiveKeyValueStore} over the given store.
+	 *
+	 * @param store
+	 * 			The store of the serialized values (must not be null).
+	 * @param serializer
+	 * 			The serializer of the values (must not be null).
+	 * @throws NullPointerException
+	 * 			If store or serializer is null.
+	 */
+	public TypedActiveKeyValueStore(ActiveKeyValueStore store, Serializer<V> serializer) throws NullPointerException{
+		if (store == null || serializer == null){
+			throw new NullPointerException();
+		}
+
+		this.store = store;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Return the store of the serialized values.
+	 *
+	 * @return The store.
+	 */
+	public ActiveKeyValueStore store(){
+		return store;
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#putIfAbsent(String, byte[])}.
+	 *
+	 * @param key
+	 * 			The key of the entry (must not be null).
+	 * @param value
+	 * 			The value associated with the key (may be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there exists an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void putIfAbsent(String key, V value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		store.putIfAbsent(key, serialize(value));
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#putAll(Map)}.
+	 *
+	 * @param entries
+	 * 			The entries to be stored in the active key-value store (must not be null).
+	 * @return A report of the outcome for each key.
+	 * @throws KeeperException
+	 * 			If the session expired or the authentication failed, in which case none of the remaining pairs can be inserted.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public PutAllReport putAll(Map<String, ? extends V> entries) throws KeeperException, InterruptedException{
+		assert entries != null;
+
+		Map<String, byte []> serialized = new HashMap<String, byte []>();
+
+		for (Map.Entry<String, ? extends V> entry : entries.entrySet()){
+			serialized.put(entry.getKey(), serialize(entry.getValue()));
+		}
+
+		return store.putAll(serialized);
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#replace(String, byte[])}.
+	 *
+	 * @param key
+	 * 			The key for which we want to replace the associated value (must not be null).
+	 * @param value
+	 * 			The new value for the key.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the given key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void replace(String key, V value) throws KeeperException, IllegalArgumentException, InterruptedException{
+		store.replace(key, serialize(value));
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#get(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to retrieve the associated value (must not be null).
+	 * @return The value associated with the given key if there is a mapping for the given key; otherwise null is returned.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If the stored bytes cannot be deserialized.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public V get(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
+		ByteBuffer buffer = store.getBuffer(key);
+
+		return buffer == null ? null : serializer.deserialize(buffer);
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#getAll(Collection)}.
+	 *
+	 * @param keys
+	 * 			The keys for which we want to retrieve the associated values (must not be null and must not contain null).
+	 * @return A {@link Map} object with an entry for each of the given keys that has a mapping in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If the stored bytes of some value cannot be deserialized.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public Map<String, V> getAll(Collection<String> keys) throws KeeperException, IllegalArgumentException, InterruptedException{
+		Map<String, V> values = new HashMap<String, V>();
+
+		for (Map.Entry<String, byte []> entry : store.getAll(keys).entrySet()){
+			values.put(entry.getKey(), deserialize(entry.getValue()));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Typed version of {@link ActiveKeyValueStore#entrySet()}.
+	 *
+	 * @return A {@link Set} object with all the entries in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If the stored bytes of some value cannot be deserialized.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public Set<Map.Entry<String, V>> entrySet() throws KeeperException, IllegalArgumentException, InterruptedException{
+		Set<Map.Entry<String, V>> entries = new HashSet<Map.Entry<String, V>>();
+
+		for (Map.Entry<String, byte []> entry : store.entrySet()){
+			entries.add(new AbstractMap.SimpleEntry<String, V>(entry.getKey(), deserialize(entry.getValue())));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#containsKey(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to test if there is currently a mapping stored in the active key-value store (must not be null).
+	 * @return True if there is a mapping for the given key and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean containsKey(String key) throws KeeperException, InterruptedException{
+		return store.containsKey(key);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#remove(String)}.
+	 *
+	 * @param key
+	 * 			The key for which we want to remove the (key,value) pair (must not be null).
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't a mapping for the given key in the active key-value store.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public void remove(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
+		store.remove(key);
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#size()}.
+	 *
+	 * @return The number of <em>(key,value)</em> entries stored in the active key-value store.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public int size() throws KeeperException, InterruptedException{
+		return store.size();
+	}
+
+	/**
+	 * Same as {@link ActiveKeyValueStore#isEmpty()}.
+	 *
+	 * @return True if the active key-value store is empty and false otherwise.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	public boolean isEmpty() throws KeeperException, InterruptedException{
+		return store.isEmpty();
+	}
+
+	/**
+	 * Serialize the value, or return null for a null value.
+	 */
+	private byte [] serialize(V value){
+		return value == null ? null : serializer.serialize(value);
+	}
+
+	/**
+	 * Deserialize the value, or return null for a null value.
+	 */
+	private V deserialize(byte [] value) throws IllegalArgumentException{
+		return value == null ? null : serializer.deserialize(ByteBuffer.wrap(value).asReadOnlyBuffer());
+	}
+}
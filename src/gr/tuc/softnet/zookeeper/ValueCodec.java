@@ -0,0 +1,49 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link ValueCodec} transforms the values of the active key-value store before they are stored in ZooKeeper and back after they are read.
+ *
+ * <p>
+ * The encoded value is stored prefixed with a header holding the identifier of the codec (see {@link #id()}), so that a store can read
+ * values written with any known codec, as well as values written before a codec was configured (see {@link ValueCodecs}). Built-in codecs are available from {@link ValueCodecs}.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe.
+ * </p>
+ *
+ * @see ValueCodecs
+ * @see ActiveKeyValueStore.Builder#setValueCodec(ValueCodec)
+ * @author Tassos Souris
+ *
+ */
+public interface ValueCodec {
+
+	/**
+	 * The identifier of the codec, stored in the header of each encoded value. It must be unique among the codecs
+	 * used over a store. The built-in codecs use the identifiers 0xF5 to 0xF7.
+	 *
+	 * @return The identifier of the codec.
+	 */
+	public byte id();
+
+	/**
+	 * Encode the value.
+	 *
+	 * @param value
+	 * 			The value to encode (must not be null).
+	 * @return The encoded value (without the header).
+	 */
+	public byte [] encode(byte [] value);
+
+	/**
+	 * Decode the value.
+	 *
+	 * @param encoded
+	 * 			The encoded value (without the header; must not be null).
+	 * @return The value.
+	 * @throws IllegalArgumentException
+	 * 			If the encoded value is malformed.
+	 */
+	public byte [] decode(byte [] encoded) throws IllegalArgumentException;
+}
@@ -0,0 +1,444 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ValueCodecs} contains the built-in {@link ValueCodec} objects and static methods to encode and decode values with a header.
+ *
+ * <p>
+ * An encoded value is stored as a header of {@link #HEADER_LENGTH} bytes followed by the encoded bytes. The header is a 4 byte magic
+ * number, the identifier of the codec and the CRC-32 checksum of the encoded bytes. A value is decoded only if it carries the magic number,
+ * the identifier of a known codec and the right checksum, so a value written without a codec (whatever its bytes) is read back as is.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ValueCodec
+ * @author Tassos Souris
+ *
+ */
+public final class ValueCodecs {
+
+	/**
+	 * A {@link ValueCodec} that leaves the value as is. Used for the values that do not get smaller with the configured codec.
+	 */
+	public static final ValueCodec IDENTITY = new ValueCodec(){
+		@Override
+		public byte id() {
+			return (byte)0xF5;
+		}
+
+		@Override
+		public byte[] encode(byte[] value) {
+			return value;
+		}
+
+		@Override
+		public byte[] decode(byte[] encoded) {
+			return encoded;
+		}
+	};
+
+	/**
+	 * A {@link ValueCodec} compressing with the DEFLATE algorithm (see {@link Deflater}). Good compression ratio at a moderate cost.
+	 */
+	public static final ValueCodec DEFLATE = new ValueCodec(){
+		@Override
+		public byte id() {
+			return (byte)0xF6;
+		}
+
+		@Override
+		public byte[] encode(byte[] value) {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+			byte [] buffer = new byte[4096];
+
+			try{
+				deflater.setInput(value);
+				deflater.finish();
+
+				while (!deflater.finished()){
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+				}
+			}
+			finally{
+				deflater.end();
+			}
+
+			return out.toByteArray();
+		}
+
+		@Override
+		public byte[] decode(byte[] encoded) throws IllegalArgumentException {
+			Inflater inflater = new Inflater(true);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 3 + 16);
+			byte [] buffer = new byte[4096];
+
+			try{
+				// in nowrap mode the inflater needs an extra dummy byte at the end of the input
+				inflater.setInput(Arrays.copyOf(encoded, encoded.length + 1));
+
+				while (!inflater.finished()){
+					int n = inflater.inflate(buffer);
+
+					if (n == 0 && !inflater.finished()){
+						// truncated input
+						throw new IllegalArgumentException();
+					}
+					out.write(buffer, 0, n);
+				}
+			}
+			catch(DataFormatException e){
+				throw new IllegalArgumentException(e);
+			}
+			finally{
+				inflater.end();
+			}
+
+			return out.toByteArray();
+		}
+	};
+
+	/**
+	 * A {@link ValueCodec} compressing with a fast LZ77 algorithm in the style of the LZ4 block format. Compresses less than
+	 * {@link #DEFLATE} but is several times faster, both when encoding and decoding.
+	 */
+	public static final ValueCodec LZ = new ValueCodec(){
+		@Override
+		public byte id() {
+			return (byte)0xF7;
+		}
+
+		@Override
+		public byte[] encode(byte[] value) {
+			return LZCodec.compress(value);
+		}
+
+		@Override
+		public byte[] decode(byte[] encoded) throws IllegalArgumentException {
+			return LZCodec.decompress(encoded);
+		}
+	};
+
+	/**
+	 * The number of bytes of the header of an encoded value.
+	 */
+	public static final int HEADER_LENGTH = 9;
+
+	// the magic number starting the header of an encoded value. 0xFF never occurs in UTF-8 text
+	private static final byte [] MAGIC = { (byte)0xFF, 'A', 'K', 'E' };
+
+	// the built-in codecs
+	private static final ValueCodec [] builtInCodecs = { IDENTITY, DEFLATE, LZ };
+
+	private ValueCodecs(){
+	}
+
+	/**
+	 * Encode the value with the given codec and prefix it with the header identifying the codec. If the encoded value is not
+	 * smaller than the value, the value is stored as is with the {@link #IDENTITY} codec.
+	 *
+	 * @param codec
+	 * 			The codec (must not be null).
+	 * @param value
+	 * 			The value (may be null).
+	 * @return The header followed by the encoded value, or null if the value is null.
+	 */
+	public static byte [] encode(ValueCodec codec, byte [] value){
+		assert codec != null;
+
+		if (value == null){
+			return null;
+		}
+
+		byte [] encoded = codec.encode(value);
+
+		if (encoded.length >= value.length){
+			codec = IDENTITY;
+			encoded = value;
+		}
+
+		byte [] stored = new byte[HEADER_LENGTH + encoded.length];
+		ByteBuffer.wrap(stored).put(MAGIC).put(codec.id()).putInt(checksum(encoded, 0, encoded.length)).put(encoded);
+
+		return stored;
+	}
+
+	/**
+	 * Decode the value according to its header. The built-in codecs and the given codec are recognized. If the value does not start
+	 * with a header identifying one of them and matching the checksum of the rest of the value, or the value cannot be decoded with the codec
+	 * the header identifies, the value is taken to be written without a codec and is returned as is.
+	 *
+	 * @param codec
+	 * 			A codec other than the built-in codecs that may have been used to encode the value (may be null).
+	 * @param stored
+	 * 			The stored value (may be null).
+	 * @return The decoded value, or null if the stored value is null.
+	 */
+	public static byte [] decode(ValueCodec codec, byte [] stored){
+		if (stored == null || stored.length < HEADER_LENGTH){
+			return stored;
+		}
+
+		for (int i = 0; i < MAGIC.length; ++i){
+			if (stored[i] != MAGIC[i]){
+				// written without a codec
+				return stored;
+			}
+		}
+
+		byte id = stored[MAGIC.length];
+		ValueCodec used = null;
+
+		for (ValueCodec builtIn : builtInCodecs){
+			if (builtIn.id() == id){
+				used = builtIn;
+			}
+		}
+		if (used == null && codec != null && codec.id() == id){
+			used = codec;
+		}
+		if (used == null || ByteBuffer.wrap(stored).getInt(MAGIC.length + 1) != checksum(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH)){
+			// written without a codec, and happens to start with the magic number
+			return stored;
+		}
+
+		try{
+			return used.decode(Arrays.copyOfRange(stored, HEADER_LENGTH, stored.length));
+		}
+		catch(IllegalArgumentException malformed){
+			return stored;
+		}
+	}
+
+	/**
+	 * Return the CRC-32 checksum of the given bytes.
+	 */
+	private static int checksum(byte [] bytes, int offset, int length){
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * The LZ77 compressor behind the {@link ValueCodecs#LZ} codec.
+	 *
+	 * <p>
+	 * The output is the length of the value (as a variable length integer) followed by a number of sequences. Each sequence is a token byte
+	 * holding the number of literals (high 4 bits) and the length of the match minus 4 (low 4 bits), where 15 means that more length
+	 * bytes follow (each adding up to 255), then the literals, then the offset of the match (2 bytes, little endian). The last sequence
+	 * only has literals.
+	 * </p>
+	 */
+	private static final class LZCodec{
+		// the minimum length of a match
+		private static final int MIN_MATCH = 4;
+		// the maximum distance of a match
+		private static final int MAX_OFFSET = 0xFFFF;
+		// the number of bits of the hash table index
+		private static final int HASH_LOG = 12;
+		// the number of bytes at the end of the input that are always literals
+		private static final int LAST_LITERALS = 5;
+
+		static byte [] compress(byte [] src){
+			int n = src.length;
+			// worst case: all literals plus the length bytes
+			byte [] dst = new byte[5 + n + n / 255 + 16];
+			int d = writeVarInt(dst, 0, n);
+
+			int [] table = new int[1 << HASH_LOG];
+			Arrays.fill(table, -1);
+
+			int anchor = 0;
+			int i = 0;
+			int matchLimit = n - LAST_LITERALS - MIN_MATCH;
+
+			while (i <= matchLimit){
+				int sequence = readInt(src, i);
+				int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+				int ref = table[h];
+				table[h] = i;
+
+				if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence){
+					++i;
+					continue;
+				}
+
+				// extend the match
+				int matchLength = MIN_MATCH;
+				while (i + matchLength < n - LAST_LITERALS && src[ref + matchLength] == src[i + matchLength]){
+					++matchLength;
+				}
+
+				d = writeSequence(src, anchor, i - anchor, dst, d, i - ref, matchLength);
+
+				i += matchLength;
+				anchor = i;
+			}
+
+			// the last literals
+			d = writeSequence(src, anchor, n - anchor, dst, d, 0, 0);
+
+			return Arrays.copyOf(dst, d);
+		}
+
+		static byte [] decompress(byte [] src) throws IllegalArgumentException{
+			try{
+				int [] position = new int[1];
+				int n = readVarInt(src, position);
+				int s = position[0];
+
+				if (n < 0){
+					throw new IllegalArgumentException();
+				}
+
+				byte [] dst = new byte[n];
+				int d = 0;
+
+				while (s < src.length){
+					int token = src[s++] & 0xFF;
+
+					// the literals
+					int literals = token >>> 4;
+					if (literals == 15){
+						int b = 0;
+						do{
+							b = src[s++] & 0xFF;
+							literals += b;
+						} while (b == 255);
+					}
+					System.arraycopy(src, s, dst, d, literals);
+					s += literals;
+					d += literals;
+
+					if (s == src.length){
+						// the last sequence
+						break;
+					}
+
+					// the match
+					int offset = (src[s] & 0xFF) | ((src[s + 1] & 0xFF) << 8);
+					s += 2;
+
+					int matchLength = token & 0x0F;
+					if (matchLength == 15){
+						int b = 0;
+						do{
+							b = src[s++] & 0xFF;
+							matchLength += b;
+						} while (b == 255);
+					}
+					matchLength += MIN_MATCH;
+
+					int ref = d - offset;
+					if (offset == 0 || ref < 0 || d + matchLength > n){
+						throw new IllegalArgumentException();
+					}
+
+					// byte by byte since the match may overlap with the bytes it produces
+					for (int k = 0; k < matchLength; ++k){
+						dst[d++] = dst[ref++];
+					}
+				}
+
+				if (d != n){
+					throw new IllegalArgumentException();
+				}
+
+				return dst;
+			}
+			catch(IndexOutOfBoundsException e){
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		private static int writeSequence(byte [] src, int literalsStart, int literals, byte [] dst, int d, int offset, int matchLength){
+			int tokenPosition = d++;
+			int token = 0;
+
+			// the literals length
+			if (literals >= 15){
+				token = 15 << 4;
+				d = writeLength(dst, d, literals - 15);
+			}
+			else{
+				token = literals << 4;
+			}
+
+			System.arraycopy(src, literalsStart, dst, d, literals);
+			d += literals;
+
+			if (matchLength > 0){
+				dst[d++] = (byte)offset;
+				dst[d++] = (byte)(offset >>> 8);
+
+				int length = matchLength - MIN_MATCH;
+				if (length >= 15){
+					token |= 15;
+					d = writeLength(dst, d, length - 15);
+				}
+				else{
+					token |= length;
+				}
+			}
+
+			dst[tokenPosition] = (byte)token;
+
+			return d;
+		}
+
+		private static int writeLength(byte [] dst, int d, int length){
+			while (length >= 255){
+				dst[d++] = (byte)255;
+				length -= 255;
+			}
+			dst[d++] = (byte)length;
+			return d;
+		}
+
+		private static int readInt(byte [] src, int i){
+			return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 3] & 0xFF) << 24);
+		}
+
+		private static int writeVarInt(byte [] dst, int d, int value){
+			while ((value & ~0x7F) != 0){
+				dst[d++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			dst[d++] = (byte)value;
+			return d;
+		}
+
+		private static int readVarInt(byte [] src, int [] position){
+			int value = 0;
+			int shift = 0;
+			int s = position[0];
+
+			while (true){
+				if (shift > 28){
+					throw new IllegalArgumentException();
+				}
+				int b = src[s++] & 0xFF;
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0){
+					break;
+				}
+				shift += 7;
+			}
+
+			position[0] = s;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package gr.tuc.softnet.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link ValueCodecs} class.
+ * 
+ * @see ValueCodecs
+ * @author Tassos Souris
+ *
+ */
+public class ValueCodecsTest {
+
+	@Test
+	public void testRoundTrip(){
+		Random random = new Random(42);
+		ValueCodec [] codecs = { ValueCodecs.LZ, ValueCodecs.DEFLATE, ValueCodecs.IDENTITY };
+
+		for (int i = 0; i < 200; ++i){
+			byte [] value = new byte[random.nextInt(i % 10 == 0 ? 100000 : 500)];
+
+			for (int j = 0; j < value.length; ++j){
+				// half the values are compressible
+				value[j] = i % 2 == 0 ? (byte)random.nextInt(256) : (byte)("{\"key\":" + (j % 13) + "}").charAt(j % 8);
+			}
+
+			for (ValueCodec codec : codecs){
+				byte [] stored = ValueCodecs.encode(codec, value);
+
+				// never larger than the value plus the header
+				assertTrue(stored.length <= value.length + ValueCodecs.HEADER_LENGTH);
+				assertArrayEquals(value, ValueCodecs.decode(null, stored));
+			}
+		}
+	}
+
+	@Test
+	public void testCompresses(){
+		byte [] value = new byte[10000];
+
+		for (int i = 0; i < value.length; ++i){
+			value[i] = (byte)('a' + i % 7);
+		}
+
+		assertTrue(ValueCodecs.encode(ValueCodecs.LZ, value).length < value.length / 10);
+		assertTrue(ValueCodecs.encode(ValueCodecs.DEFLATE, value).length < value.length / 10);
+	}
+
+	@Test
+	public void testLegacyValues(){
+		// values written without a codec are returned as is
+		byte [] text = "{\"value\":1}".getBytes();
+		assertArrayEquals(text, ValueCodecs.decode(ValueCodecs.LZ, text));
+
+		// even if they start with the identifier of a codec
+		byte [] malformed = { ValueCodecs.LZ.id(), 5, 1, 2 };
+		assertArrayEquals(malformed, ValueCodecs.decode(null, malformed));
+		malformed[0] = ValueCodecs.DEFLATE.id();
+		assertArrayEquals(malformed, ValueCodecs.decode(null, malformed));
+		byte [] identity = { ValueCodecs.IDENTITY.id(), 1, 2, 3 };
+		assertArrayEquals(identity, ValueCodecs.decode(ValueCodecs.LZ, identity));
+
+		// or with the header of an encoded value that does not match the rest of the value
+		byte [] header = ValueCodecs.encode(ValueCodecs.IDENTITY, new byte[]{ 1, 2, 3 });
+		header[header.length - 1] = 4;
+		assertArrayEquals(header, ValueCodecs.decode(null, header));
+
+		assertNull(ValueCodecs.decode(null, null));
+		assertArrayEquals(new byte[0], ValueCodecs.decode(null, new byte[0]));
+	}
+}
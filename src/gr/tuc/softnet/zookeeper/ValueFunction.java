@@ -0,0 +1,27 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link ValueFunction} computes the new value of a key from its current value, as used by {@link ActiveKeyValueStore#compute(String, ValueFunction)}.
+ *
+ * <p>
+ * The function may be applied more than once for the same update, if another client changes the key in the meantime, so it must
+ * not have side effects.
+ * </p>
+ *
+ * @see ActiveKeyValueStore#compute(String, ValueFunction)
+ * @author Tassos Souris
+ *
+ */
+public interface ValueFunction {
+
+	/**
+	 * Compute the new value of the key.
+	 *
+	 * @param key
+	 * 			The key.
+	 * @param value
+	 * 			The current value of the key, or null if there isn't an entry for the key.
+	 * @return The new value of the key, or null to remove the entry for the key.
+	 */
+	public byte [] apply(String key, byte [] value);
+}
@@ -0,0 +1,100 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.nio.ByteBuffer;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * {@link VersionedValue} is a value of the active key-value store together with the version information of the znode it was read from.
+ *
+ * <p>
+ * The version is the data version of the znode (as in {@link Stat#getVersion()}) and is incremented by ZooKeeper on each change of the value.
+ * The modified zxid is the ZooKeeper transaction id of the last change of the value (as in {@link Stat#getMzxid()}).
+ * </p>
+ *
+ * <p>
+ * This class is immutable.
+ * </p>
+ *
+ * @author Tassos Souris
+ *
+ */
+public final class VersionedValue {
+	// the value
+	private final byte [] value;
+	// the data version of the znode
+	private final int version;
+	// the zxid of the last change of the znode
+	private final long modifiedZxid;
+
+	/**
+	 * Construct a new {@link VersionedValue}. Note that the value is not copied.
+	 *
+	 * @param value
+	 * 			The value (may be null).
+	 * @param version
+	 * 			The data version of the znode.
+	 * @param modifiedZxid
+	 * 			The zxid of the last change of the znode.
+	 */
+	public VersionedValue(byte [] value, int version, long modifiedZxid){
+		this.value = value;
+		this.version = version;
+		this.modifiedZxid = modifiedZxid;
+	}
+
+	/**
+	 * Construct a new {@link VersionedValue} from the data of a znode and its {@link Stat}. Note that the value is not copied.
+	 *
+	 * @param value
+	 * 			The data of the znode (may be null).
+	 * @param stat
+	 * 			The stat of the znode (must not be null).
+	 */
+	public VersionedValue(byte [] value, Stat stat){
+		this(value, stat.getVersion(), stat.getMzxid());
+	}
+
+	/**
+	 * Return a copy of the value.
+	 *
+	 * @return The value or null if the value is null.
+	 */
+	public byte [] value(){
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * Return a read-only view of the value. Unlike {@link #value()} the value is not copied.
+	 *
+	 * @return The view or null if the value is null.
+	 */
+	public ByteBuffer valueBuffer(){
+		return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Return the value itself, which the caller must not change.
+	 */
+	byte [] sharedValue(){
+		return value;
+	}
+
+	/**
+	 * Return the data version of the znode the value was read from.
+	 *
+	 * @return The version.
+	 */
+	public int version(){
+		return version;
+	}
+
+	/**
+	 * Return the zxid of the last change of the znode the value was read from.
+	 *
+	 * @return The modified zxid.
+	 */
+	public long modifiedZxid(){
+		return modifiedZxid;
+	}
+}
@@ -0,0 +1,331 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * {@link WriteBehindBuffer} collects the latest value written to each key and writes the collected values periodically.
+ *
+ * <p>
+ * Writing a key that already has a buffered value replaces the buffered value, so a key written many times between two flushes is written
+ * once. The values are written by {@link #write(Map)} from a background thread every flush interval, and on {@link #flush()}. The flushes
+ * are serialized, so the values of a key reach the ZooKeeper server in the order they were buffered.
+ * </p>
+ *
+ * <p>
+ * A value that could not be written is buffered again, unless a newer value of its key was buffered in the meantime, and is written
+ * with the next flush. Only the values that cannot be written by trying again (such as the value of a key that does not exist) are dropped;
+ * the errors of the background flushes that dropped values are kept and thrown by the next {@link #flush()}.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ActiveKeyValueStore.Builder#setWriteBehind(long)
+ * @author Tassos Souris
+ *
+ */
+abstract class WriteBehindBuffer {
+	// The values not flushed yet, by key
+	private Map<String, byte []> pending = new LinkedHashMap<String, byte []>();
+
+	// The values being flushed, by key
+	private Map<String, byte []> flushing = Collections.emptyMap();
+
+	// The first error of the background flushes that dropped a value since the last flush(), null if none
+	private Exception failure = null;
+
+	// Serializes the flushes
+	private final Object flushLock = new Object();
+
+	// Runs the background flushes
+	private ScheduledExecutorService flusher = null;
+
+	/**
+	 * Construct a new {@link WriteBehindBuffer} and start the background flushes.
+	 *
+	 * @param flushIntervalMillis
+	 * 			The time between two background flushes in milliseconds (must be positive).
+	 */
+	WriteBehindBuffer(long flushIntervalMillis){
+		assert flushIntervalMillis > 0;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ActiveKeyValueStore-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try{
+					flushPending(true);
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				catch(Exception e){
+					// kept for the next flush(). we must not let it escape or no more flushes are run
+					synchronized (WriteBehindBuffer.this) {
+						if (failure == null){
+							failure = e;
+						}
+					}
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the given values.
+	 *
+	 * @param values
+	 * 			The values by key.
+	 * @return The error of each key whose value was not written: a {@link KeeperException} if the ZooKeeper server signaled an error,
+	 * 			an {@link IllegalArgumentException} if there isn't an entry for the key, or any other {@link RuntimeException} the write threw.
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error after the values were written.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	abstract Map<String, Exception> write(Map<String, byte []> values) throws KeeperException, InterruptedException;
+
+	/**
+	 * Buffer the value of the key, replacing the value buffered earlier (if any).
+	 */
+	synchronized void put(String key, byte [] value){
+		// the later put of the key is the one that matters, so it goes last
+		pending.remove(key);
+		pending.put(key, value == null ? null : value.clone());
+	}
+
+	/**
+	 * Return the value of the key that is buffered or being flushed.
+	 *
+	 * @return An entry with a copy of the value or null if no value is buffered for the key.
+	 */
+	synchronized Map.Entry<String, byte []> get(String key){
+		Map<String, byte []> values = pending.containsKey(key) ? pending : flushing.containsKey(key) ? flushing : null;
+
+		if (values == null){
+			return null;
+		}
+
+		byte [] value = values.get(key);
+
+		return new AbstractMap.SimpleEntry<String, byte []>(key, value == null ? null : value.clone());
+	}
+
+	/**
+	 * Drop the buffered value of the key, waiting for a flush in progress to complete.
+	 */
+	void discard(String key){
+		synchronized (flushLock) {
+			synchronized (this) {
+				pending.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Drop all the buffered values, waiting for a flush in progress to complete.
+	 */
+	void discardAll(){
+		synchronized (flushLock) {
+			synchronized (this) {
+				pending.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write the buffered value of the key (if any) now, waiting for a flush in progress to complete. If the value cannot be written it is
+	 * kept buffered, unless the key does not exist.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for the key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void flush(String key) throws KeeperException, IllegalArgumentException, InterruptedException{
+		synchronized (flushLock) {
+			Map<String, byte []> values = null;
+
+			synchronized (this) {
+				if (!pending.containsKey(key)){
+					return ;
+				}
+				values = Collections.singletonMap(key, pending.remove(key));
+				flushing = values;
+			}
+
+			// the error is thrown to the caller, so it is not kept for the next flush()
+			throwFailure(writeBuffered(values, false));
+		}
+	}
+
+	/**
+	 * Write all the buffered values now and throw the first error of the background flushes that dropped a value since the last call (if any).
+	 * If some values cannot be written now, they are kept buffered (unless their key does not exist) and the first error is thrown.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error for some key.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for some key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void flush() throws KeeperException, IllegalArgumentException, InterruptedException{
+		Exception flushFailure = flushPending(false);
+
+		Exception backgroundFailure = null;
+
+		synchronized (this) {
+			backgroundFailure = failure;
+			failure = null;
+		}
+
+		throwFailure(flushFailure != null ? flushFailure : backgroundFailure);
+	}
+
+	/**
+	 * Stop the background flushes and write all the buffered values. The values that cannot be written are lost.
+	 *
+	 * @throws KeeperException
+	 * 			If the ZooKeeper server signaled an error for some key.
+	 * @throws IllegalArgumentException
+	 * 			If there isn't an entry for some key.
+	 * @throws InterruptedException
+	 * 			If the transaction with ZooKeeper was interrupted.
+	 */
+	void close() throws KeeperException, IllegalArgumentException, InterruptedException{
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * Write all the buffered values.
+	 *
+	 * @param keepDropped
+	 * 			Whether the error of a dropped value is kept for the next {@link #flush()}.
+	 * @return The first error of the values not written, or null if all were written.
+	 */
+	private Exception flushPending(boolean keepDropped) throws KeeperException, InterruptedException{
+		synchronized (flushLock) {
+			Map<String, byte []> values = null;
+
+			synchronized (this) {
+				if (pending.isEmpty()){
+					return null;
+				}
+				values = pending;
+				flushing = values;
+				pending = new LinkedHashMap<String, byte []>();
+			}
+
+			return writeBuffered(values, keepDropped);
+		}
+	}
+
+	/**
+	 * Write the values taken out of the buffer (and set as flushing) and buffer again those that were not written but may be
+	 * written by trying again. Must be called with the flush lock held.
+	 *
+	 * <p>
+	 * The values stop being flushing and are buffered again at once, so that a value not written is never missed by {@link #get(String)}.
+	 * </p>
+	 *
+	 * @param keepDropped
+	 * 			Whether the error of a dropped value is kept for the next {@link #flush()}.
+	 * @return The first error of the values not written, or null if all were written.
+	 */
+	private Exception writeBuffered(Map<String, byte []> values, boolean keepDropped) throws KeeperException, InterruptedException{
+		Map<String, Exception> failures = null;
+
+		try{
+			failures = write(values);
+		}
+		catch(InterruptedException e){
+			// we do not know which values were written. writing a value twice does no harm
+			rebuffer(values, values.keySet());
+			throw e;
+		}
+		catch(RuntimeException e){
+			rebuffer(values, values.keySet());
+			throw e;
+		}
+		catch(KeeperException e){
+			// the values were written
+			rebuffer(values, Collections.<String>emptyList());
+			throw e;
+		}
+
+		Exception first = null;
+		List<String> retried = new ArrayList<String>();
+
+		for (Map.Entry<String, Exception> entry : failures.entrySet()){
+			Exception error = entry.getValue();
+
+			first = first == null ? error : first;
+
+			if (!(error instanceof IllegalArgumentException)){
+				retried.add(entry.getKey());
+			}
+			else if (keepDropped){
+				synchronized (this) {
+					// the key does not exist, so there is no point in trying again; the value is dropped
+					if (failure == null){
+						failure = error;
+					}
+				}
+			}
+		}
+
+		rebuffer(values, retried);
+
+		return first;
+	}
+
+	/**
+	 * End the flush of the values, buffering again those of the given keys unless a newer value of the key was buffered in the meantime.
+	 */
+	private synchronized void rebuffer(Map<String, byte []> values, Collection<String> keys){
+		for (String key : keys){
+			if (!pending.containsKey(key)){
+				pending.put(key, values.get(key));
+			}
+		}
+
+		flushing = Collections.emptyMap();
+	}
+
+	/**
+	 * Throw the given error of a flush, if any.
+	 */
+	private static void throwFailure(Exception error) throws KeeperException{
+		if (error instanceof KeeperException){
+			throw (KeeperException)error;
+		}
+		else if (error != null){
+			throw (RuntimeException)error;
+		}
+	}
+}
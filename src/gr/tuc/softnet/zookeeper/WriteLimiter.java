@@ -0,0 +1,48 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link WriteLimiter} admits the write requests of an {@link ActiveKeyValueStore} to the ZooKeeper ensemble.
+ *
+ * <p>
+ * Every create, setData and delete request for a key (including each request of the bulk operations such as {@link ActiveKeyValueStore#putAll(java.util.Map)})
+ * is admitted with {@link #acquire()} before it is sent and reported with {@link #release(long)} when it completes, whatever the outcome.
+ * An implementation may queue the excess requests, by blocking the caller in {@link #acquire()}, or reject them with a {@link WriteRejectedException}.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe, since {@link #release(long)} is called from the event thread of the session for the pipelined requests,
+ * so they should not block there. Built-in limiters are available from {@link WriteLimiters}.
+ * </p>
+ *
+ * @see WriteLimiters
+ * @see ActiveKeyValueStore.Builder#setWriteLimiter(WriteLimiter)
+ * @author Tassos Souris
+ *
+ */
+public interface WriteLimiter {
+
+	/**
+	 * Admit a write request, waiting if it has to be queued.
+	 *
+	 * @throws WriteRejectedException
+	 * 			If the request is rejected.
+	 * @throws InterruptedException
+	 * 			If the current thread was interrupted while queued.
+	 */
+	public void acquire() throws WriteRejectedException, InterruptedException;
+
+	/**
+	 * Report the completion of a write request admitted with {@link #acquire()}.
+	 *
+	 * @param latencyNanos
+	 * 			The time from the admission of the request to its completion in nanoseconds.
+	 */
+	public void release(long latencyNanos);
+
+	/**
+	 * Return the number of write requests currently queued in {@link #acquire()}.
+	 *
+	 * @return The number of queued requests.
+	 */
+	public int queueDepth();
+}
@@ -0,0 +1,275 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link WriteLimiters} contains static methods creating the built-in {@link WriteLimiter} objects.
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see WriteLimiter
+ * @author Tassos Souris
+ *
+ */
+public final class WriteLimiters {
+
+	private WriteLimiters(){
+	}
+
+	/**
+	 * Return a {@link WriteLimiter} admitting at most the given number of write requests per second on average.
+	 *
+	 * <p>
+	 * The limiter is a token bucket: it holds up to burst tokens, refilled at the given rate, and every write request takes one. A request
+	 * finding the bucket empty reserves the next token and waits for it, unless maxQueued requests are already waiting, in which case it is
+	 * rejected. Thus a burst of writes after a quiet period goes out at once, and a longer one is paced at the given rate.
+	 * </p>
+	 *
+	 * @param writesPerSecond
+	 * 			The rate of the write requests (must be positive).
+	 * @param burst
+	 * 			The number of write requests that may be admitted at once (must be positive).
+	 * @param maxQueued
+	 * 			The maximum number of write requests waiting for a token, zero to reject a request right away when the bucket is empty (must not be negative).
+	 * @return The limiter.
+	 * @throws IllegalArgumentException
+	 * 			If writesPerSecond or burst is not positive or maxQueued is negative.
+	 */
+	public static WriteLimiter tokenBucket(double writesPerSecond, int burst, int maxQueued) throws IllegalArgumentException{
+		if (!(writesPerSecond > 0) || burst <= 0 || maxQueued < 0){
+			throw new IllegalArgumentException();
+		}
+
+		return new TokenBucket(writesPerSecond, burst, maxQueued);
+	}
+
+	/**
+	 * Return a {@link WriteLimiter} bounding the number of write requests in flight by a limit that adapts to the observed latency.
+	 *
+	 * <p>
+	 * The limiter keeps the lowest latency of the recent write requests as the latency of the ensemble when not loaded. While the writes
+	 * complete within twice that latency the limit grows by one per limit worth of writes (additive increase). A slower write shows that
+	 * requests are queuing up in the ensemble, and the limit is cut in proportion to how much slower it was, by half at most (multiplicative
+	 * decrease), once per limit worth of writes. A write request beyond the limit waits for a slot, unless maxQueued requests are already
+	 * waiting, in which case it is rejected.
+	 * </p>
+	 *
+	 * @param initialLimit
+	 * 			The limit to start with (must be positive and not greater than maxLimit).
+	 * @param maxLimit
+	 * 			The highest the limit may grow to.
+	 * @param maxQueued
+	 * 			The maximum number of write requests waiting for a slot, zero to reject a request right away when the limit is reached (must not be negative).
+	 * @return The limiter.
+	 * @throws IllegalArgumentException
+	 * 			If initialLimit is not positive or greater than maxLimit, or maxQueued is negative.
+	 */
+	public static WriteLimiter adaptiveConcurrency(int initialLimit, int maxLimit, int maxQueued) throws IllegalArgumentException{
+		if (initialLimit <= 0 || initialLimit > maxLimit || maxQueued < 0){
+			throw new IllegalArgumentException();
+		}
+
+		return new AdaptiveConcurrency(initialLimit, maxLimit, maxQueued);
+	}
+
+	/**
+	 * The limiter of {@link WriteLimiters#tokenBucket(double, int, int)}.
+	 */
+	private static final class TokenBucket implements WriteLimiter{
+		// The tokens added per nanosecond
+		private final double tokensPerNano;
+
+		// The maximum number of tokens
+		private final int burst;
+
+		// The maximum number of requests waiting for a token
+		private final int maxQueued;
+
+		// The tokens in the bucket. Negative while there are requests waiting, by the tokens they reserved
+		private double tokens = 0;
+
+		// When the tokens were last refilled
+		private long refilledAt = 0;
+
+		// The number of requests waiting for a token
+		private int queued = 0;
+
+		TokenBucket(double writesPerSecond, int burst, int maxQueued){
+			this.tokensPerNano = writesPerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.burst = burst;
+			this.maxQueued = maxQueued;
+			this.tokens = burst;
+			this.refilledAt = System.nanoTime();
+		}
+
+		@Override
+		public void acquire() throws WriteRejectedException, InterruptedException {
+			long waitNanos = 0;
+
+			synchronized (this) {
+				refill();
+
+				if (tokens >= 1){
+					tokens -= 1;
+					return ;
+				}
+
+				if (queued >= maxQueued){
+					throw new WriteRejectedException();
+				}
+
+				// reserve the token, so that the requests get the tokens in the order they came
+				tokens -= 1;
+				waitNanos = (long)Math.ceil(-tokens / tokensPerNano);
+				++queued;
+			}
+
+			try{
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			catch(InterruptedException e){
+				synchronized (this) {
+					// give back the reserved token
+					tokens += 1;
+				}
+				throw e;
+			}
+			finally{
+				synchronized (this) {
+					--queued;
+				}
+			}
+		}
+
+		@Override
+		public void release(long latencyNanos) {
+			// the rate does not depend on the latency
+		}
+
+		@Override
+		public synchronized int queueDepth() {
+			return queued;
+		}
+
+		/**
+		 * Add the tokens for the time since the last refill.
+		 */
+		private void refill(){
+			long now = System.nanoTime();
+
+			tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+			refilledAt = now;
+		}
+	}
+
+	/**
+	 * The limiter of {@link WriteLimiters#adaptiveConcurrency(int, int, int)}.
+	 */
+	private static final class AdaptiveConcurrency implements WriteLimiter{
+		// A write slower than this many times the unloaded latency cuts the limit
+		private static final double LATENCY_TOLERANCE = 2.0;
+
+		// The limit is cut by half at most
+		private static final double MIN_DECREASE = 0.5;
+
+		// The number of writes over which the lowest latency is taken
+		private static final int BASELINE_WINDOW = 1000;
+
+		// The highest the limit may grow to
+		private final int maxLimit;
+
+		// The maximum number of requests waiting for a slot
+		private final int maxQueued;
+
+		// The current limit, fractional so that it can grow by less than one per write
+		private double limit = 0;
+
+		// The number of requests in flight
+		private int inFlight = 0;
+
+		// The number of requests waiting for a slot
+		private int queued = 0;
+
+		// The lowest latency of the previous window, Long.MAX_VALUE if none yet
+		private long previousWindowMinNanos = Long.MAX_VALUE;
+
+		// The lowest latency of the current window
+		private long windowMinNanos = Long.MAX_VALUE;
+
+		// The number of writes in the current window
+		private int windowWrites = 0;
+
+		// The number of writes completed since the limit was last cut
+		private int writesSinceDecrease = 0;
+
+		AdaptiveConcurrency(int initialLimit, int maxLimit, int maxQueued){
+			this.limit = initialLimit;
+			this.maxLimit = maxLimit;
+			this.maxQueued = maxQueued;
+		}
+
+		@Override
+		public synchronized void acquire() throws WriteRejectedException, InterruptedException {
+			if (queued == 0 && inFlight < (int)limit){
+				++inFlight;
+				return ;
+			}
+
+			if (queued >= maxQueued){
+				throw new WriteRejectedException();
+			}
+
+			++queued;
+
+			try{
+				while (inFlight >= (int)limit){
+					wait();
+				}
+				++inFlight;
+			}
+			finally{
+				--queued;
+			}
+		}
+
+		@Override
+		public synchronized void release(long latencyNanos) {
+			--inFlight;
+			++writesSinceDecrease;
+
+			windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+
+			// the lowest latency of a window ago is dropped, so that the baseline follows a lasting change of the ensemble
+			long baselineNanos = Math.min(previousWindowMinNanos, windowMinNanos);
+
+			if (++windowWrites == BASELINE_WINDOW){
+				previousWindowMinNanos = windowMinNanos;
+				windowMinNanos = Long.MAX_VALUE;
+				windowWrites = 0;
+			}
+
+			if (latencyNanos > LATENCY_TOLERANCE * baselineNanos){
+				if (writesSinceDecrease >= limit){
+					// cut in proportion to how much slower the write was than tolerated
+					double decrease = Math.max(MIN_DECREASE, LATENCY_TOLERANCE * baselineNanos / latencyNanos);
+
+					limit = Math.max(1, limit * decrease);
+					writesSinceDecrease = 0;
+				}
+			}
+			else if (queued > 0 || inFlight + 1 >= (int)limit){
+				// only grow a limit that is in use
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+
+			notifyAll();
+		}
+
+		@Override
+		public synchronized int queueDepth() {
+			return queued;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package gr.tuc.softnet.zookeeper;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link WriteLimiters} class.
+ * 
+ * @see WriteLimiters
+ * @author Tassos Souris
+ *
+ */
+public class WriteLimitersTest {
+
+	@Test
+	public void testTokenBucketRejectsBeyondBurst() throws InterruptedException{
+		WriteLimiter limiter = WriteLimiters.tokenBucket(1, 2, 0);
+
+		limiter.acquire();
+		limiter.acquire();
+
+		try{
+			limiter.acquire();
+			fail();
+		}
+		catch(WriteRejectedException e){
+			// expected
+		}
+		assertEquals(0, limiter.queueDepth());
+	}
+
+	@Test
+	public void testTokenBucketQueuesAtRate() throws InterruptedException{
+		WriteLimiter limiter = WriteLimiters.tokenBucket(5, 1, 1);
+
+		limiter.acquire();
+
+		long start = System.nanoTime();
+		limiter.acquire();
+
+		// the second token comes 200ms after the first. Only a lower bound is checked, and a loose one, since the
+		// clock may have moved between the first acquire and start, and the sleep may end early on some platforms
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	public void testAdaptiveConcurrencyBacksOff() throws InterruptedException{
+		WriteLimiter limiter = WriteLimiters.adaptiveConcurrency(4, 4, 0);
+
+		for (int i = 0; i < 4; ++i){
+			limiter.acquire();
+		}
+		for (int i = 0; i < 4; ++i){
+			limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		for (int i = 0; i < 4; ++i){
+			limiter.acquire();
+		}
+		for (int i = 0; i < 4; ++i){
+			// ten times slower than the unloaded latency
+			limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+
+		int admitted = 0;
+
+		try{
+			while (admitted < 4){
+				limiter.acquire();
+				++admitted;
+			}
+		}
+		catch(WriteRejectedException e){
+			// expected
+		}
+		assertTrue(admitted < 4);
+	}
+}
@@ -0,0 +1,58 @@
+package gr.tuc.softnet.zookeeper;
+
+/**
+ * {@link WriteRejectedException} indicates that a write request was not admitted by the {@link WriteLimiter} of the store, because
+ * too many write requests were already queued.
+ *
+ * <p>
+ * The request is not sent to the ZooKeeper server, so it may be retried later.
+ * </p>
+ *
+ * @see WriteLimiter
+ * @author Tassos Souris
+ *
+ */
+public class WriteRejectedException extends IllegalStateException{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 7183920464715342290L;
+
+	/**
+	 * Construct a new {@link WriteRejectedException} with null as its detail message.
+	 */
+	public WriteRejectedException(){
+		super();
+	}
+
+	/**
+	 * Construct a new {@link WriteRejectedException} with the specified detail message.
+	 * @param message
+	 * 			The detail message.
+	 */
+	public WriteRejectedException(String message){
+		super(message);
+	}
+
+	/**
+	 * Construct a new {@link WriteRejectedException} with the specified detail message and cause.
+	 *
+	 * @param message
+	 * 			The detail message.
+	 * @param cause
+	 * 			The cause.
+	 */
+	public WriteRejectedException(String message, Throwable cause){
+		super(message,cause);
+	}
+
+	/**
+	 * Construct a new {@link WriteRejectedException} with null as its detail message and the specified cause.
+	 * @param cause
+	 * 			The cause.
+	 */
+	public WriteRejectedException(Throwable cause){
+		super(cause);
+	}
+}
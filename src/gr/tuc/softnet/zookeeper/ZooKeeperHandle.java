@@ -80,6 +80,16 @@ public class ZooKeeperHandle implements Watcher{
 		return zookeeper;
 	}
 	
+	/**
+	 * Return the {@link ZooKeeper} client object to use for a read that does not leave a watch. This is the client object of the
+	 * session, while a {@link ZooKeeperHandlePool} spreads such reads over its sessions.
+	 * 
+	 * @return The {@link ZooKeeper} client object.
+	 */
+	public ZooKeeper getReadZooKeeper(){
+		return getZooKeeper();
+	}
+	
 	@Override
 	public synchronized void process(WatchedEvent event) {		
 	}
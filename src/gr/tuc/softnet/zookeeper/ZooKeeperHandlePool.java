@@ -0,0 +1,175 @@
+package gr.tuc.softnet.zookeeper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * {@link ZooKeeperHandlePool} is a {@link ZooKeeperHandle} over several sessions with the ZooKeeper service, spreading the reads over them.
+ *
+ * <p>
+ * A single {@link ZooKeeper} client object sends all its requests over one connection to one server, from one send thread, and delivers all
+ * the results and watch events from one event thread. A pool of sessions, each connected to a server of the connect string, takes this bound
+ * off the reads. The first session of the pool is the <em>primary</em> session returned by {@link #getZooKeeper()}: the writes and the requests
+ * leaving watches go through it, so they keep the order ZooKeeper guarantees within a session. The reads that do not leave a watch go through
+ * {@link #getReadZooKeeper()}, which picks the connected sessions round-robin.
+ * </p>
+ *
+ * <p>
+ * ZooKeeper orders the requests within a session only, so a read through another session of the pool may not see a write of the primary session
+ * yet, as for a read by another client. {@link ActiveKeyValueStore} syncs the other sessions after its own writes (see {@link #syncReadSessions()}),
+ * so its reads see them. {@link ActiveKeyValueStore}, {@link AsyncActiveKeyValueStore} and {@link SynchronousSession} run over
+ * a pool as over any handle. A pool is created with {@link ZooKeeperHandles.HandleFactory#newHandlePool(String, int, int)}:
+ * 	<pre>
+ * 		ZooKeeperHandlePool pool = ZooKeeperHandles.getHandleFactory().newHandlePool("127.0.0.1:3000,127.0.0.1:3001,127.0.0.1:3002", 3000, 3);
+ * 		ActiveKeyValueStore store = new ActiveKeyValueStore(pool, "/store");
+ * 	</pre>
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @see ZooKeeperHandles.HandleFactory
+ * @author Tassos Souris
+ *
+ */
+public class ZooKeeperHandlePool extends ZooKeeperHandle{
+	// The ZooKeeper client objects of the sessions; the first is the primary session
+	private final ZooKeeper [] sessions;
+
+	// The position of the next read in the round-robin
+	private final AtomicInteger nextRead = new AtomicInteger();
+
+	/**
+	 * Construct a new {@link ZooKeeperHandlePool} object for the given number of sessions, without the {@link ZooKeeper} client objects attached to it.
+	 *
+	 * @param size
+	 * 			The number of sessions (must be positive).
+	 */
+	ZooKeeperHandlePool(int size){
+		assert size > 0;
+
+		sessions = new ZooKeeper[size];
+	}
+
+	/**
+	 * Set the {@link ZooKeeper} client object of a session. The session with index zero is the primary session.
+	 *
+	 * @param index
+	 * 			The index of the session.
+	 * @param zookeeper
+	 * 			The {@link ZooKeeper} client object of the session.
+	 */
+	synchronized void setSession(int index, ZooKeeper zookeeper){
+		sessions[index] = zookeeper;
+
+		if (index == 0){
+			setZooKeeper(zookeeper);
+		}
+	}
+
+	/**
+	 * Return the number of sessions of the pool.
+	 *
+	 * @return The number of sessions.
+	 */
+	public int size(){
+		return sessions.length;
+	}
+
+	/**
+	 * Return the {@link ZooKeeper} client object of a session.
+	 *
+	 * @param index
+	 * 			The index of the session, zero for the primary session.
+	 * @return The {@link ZooKeeper} client object.
+	 * @throws IllegalArgumentException
+	 * 			If index is not between zero and {@link #size()} (exclusive).
+	 */
+	public synchronized ZooKeeper getZooKeeper(int index) throws IllegalArgumentException{
+		if (index < 0 || index >= sessions.length){
+			throw new IllegalArgumentException();
+		}
+		return sessions[index];
+	}
+
+	/**
+	 * Return the {@link ZooKeeper} client object of the next connected session of the pool, round-robin. If no session is connected
+	 * the primary session is returned, so the read fails (or waits) as it would on a single session.
+	 *
+	 * @return The {@link ZooKeeper} client object.
+	 */
+	@Override
+	public ZooKeeper getReadZooKeeper(){
+		int start = nextRead.getAndIncrement() & Integer.MAX_VALUE;
+
+		for (int i = 0; i < sessions.length; ++i){
+			ZooKeeper session = getZooKeeper((start + i) % sessions.length);
+
+			if (session != null && session.getState() == ZooKeeper.States.CONNECTED){
+				return session;
+			}
+		}
+
+		return getZooKeeper();
+	}
+
+	/**
+	 * Sync each session of the pool other than the primary session, so that its reads from now on see the writes the primary session
+	 * made so far, and wait for the syncs to be answered. The syncs are sent concurrently.
+	 *
+	 * @return True if all the sessions were synced, false if a session is not connected or its sync failed.
+	 * @throws InterruptedException
+	 * 			If the thread was interrupted while waiting for the syncs.
+	 */
+	boolean syncReadSessions() throws InterruptedException{
+		final AtomicBoolean synced = new AtomicBoolean(true);
+		final CountDownLatch answered = new CountDownLatch(sessions.length - 1);
+
+		for (int i = 1; i < sessions.length; ++i){
+			ZooKeeper session = getZooKeeper(i);
+
+			if (session == null || session.getState() != ZooKeeper.States.CONNECTED){
+				// it may serve a read as soon as it connects again
+				synced.set(false);
+				answered.countDown();
+				continue;
+			}
+
+			session.sync("/", new AsyncCallback.VoidCallback() {
+				@Override
+				public void processResult(int rc, String path, Object ctx) {
+					if (KeeperException.Code.get(rc) != KeeperException.Code.OK){
+						synced.set(false);
+					}
+					answered.countDown();
+				}
+			}, null);
+		}
+
+		answered.await();
+
+		return synced.get();
+	}
+
+	/**
+	 * Close all the sessions of the pool. The ephemeral znodes of the sessions are removed.
+	 *
+	 * @throws InterruptedException
+	 * 			If the thread was interrupted while closing a session.
+	 */
+	public void close() throws InterruptedException{
+		for (int i = 0; i < sessions.length; ++i){
+			ZooKeeper session = getZooKeeper(i);
+
+			if (session != null){
+				session.close();
+			}
+		}
+	}
+}
@@ -137,6 +137,77 @@ public class ZooKeeperHandles {
 			
 			return handle;
 		}
+		
+		/**
+		 * Establish a pool of sessions with the ZooKeeper service and return a {@link ZooKeeperHandlePool} handle object around them.
+		 * 
+		 * <p>
+		 * Each session gets the servers of the connect string starting from a different one, so that the sessions are spread over the servers.
+		 * Note that the ZooKeeper client shuffles the servers before connecting, so the spread is random rather than one session per server.
+		 * </p>
+		 * 
+		 * @param connectString
+		 * 				comma separated host:port pairs, each corresponding to a zk server, with the optional chroot suffix (see {@link #newHandle(String, int)}).
+		 * @param sessionTimeout
+		 * 				session timeout in milliseconds
+		 * @param size
+		 * 				the number of sessions
+		 * @return The {@link ZooKeeperHandlePool} object.
+		 * @throws IOException
+		 * 				 in cases of network failure
+		 * @throws IllegalArgumentException
+		 * 				 if an invalid chroot path is specified or size is not positive
+		 */
+		public synchronized ZooKeeperHandlePool newHandlePool(String connectString, int sessionTimeout, int size) throws IOException, IllegalArgumentException{
+			if (size <= 0){
+				throw new IllegalArgumentException();
+			}
+			
+			ZooKeeperHandlePool pool = new ZooKeeperHandlePool(size);
+			
+			// the chroot suffix (if any) applies to all the servers
+			int chroot = connectString.indexOf('/');
+			String [] servers = (chroot < 0 ? connectString : connectString.substring(0, chroot)).split(",");
+			String suffix = chroot < 0 ? "" : connectString.substring(chroot);
+			
+			try{
+				for (int i = 0; i < size; ++i){
+					// rotate the servers so that each session starts from a different one
+					StringBuilder rotated = new StringBuilder();
+					
+					for (int j = 0; j < servers.length; ++j){
+						if (j > 0){
+							rotated.append(',');
+						}
+						rotated.append(servers[(i + j) % servers.length]);
+					}
+					
+					pool.setSession(i, new ZooKeeper(rotated.append(suffix).toString(), sessionTimeout, pool));
+				}
+			}
+			catch(IOException e){
+				closeQuietly(pool);
+				throw e;
+			}
+			catch(IllegalArgumentException e){
+				closeQuietly(pool);
+				throw e;
+			}
+			
+			return pool;
+		}
+		
+		/**
+		 * Close the sessions of a pool that could not be established completely.
+		 */
+		private void closeQuietly(ZooKeeperHandlePool pool){
+			try{
+				pool.close();
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 	
 	/**
@@ -1,5 +1,15 @@
 package gr.tuc.softnet.zookeeper.znode;
 
+/**
+ * {@link WatchEvent} is an event for a znode that is watched.
+ * 
+ * <p>
+ * This class is immutable.
+ * </p>
+ * 
+ * @author Tassos Souris
+ *
+ */
 public final class WatchEvent {
 	
 	/**
@@ -13,7 +23,13 @@ public final class WatchEvent {
 		 * Be notified for the watch once and then not again. This is the default behavior
 		 * of ZooKeeper watches.
 		 */
-		ONE_SHOT
+		ONE_SHOT,
+		
+		/**
+		 * Be notified for the watch until it is cancelled. The one-shot ZooKeeper watch is left again
+		 * each time it fires, and the znode is read again so that no change is missed in between.
+		 */
+		PERSISTENT
 	}
 	
 	/**
@@ -23,17 +39,76 @@ public final class WatchEvent {
 	 *
 	 */
 	public static enum Kind implements Comparable<Kind>{
+		/**
+		 * The znode was created.
+		 */
 		NODE_CREATED,
+		
+		/**
+		 * The znode was deleted.
+		 */
 		NODE_DELETED,
+		
+		/**
+		 * The data of the znode was changed.
+		 */
 		NODE_DATA_CHANGED,
+		
+		/**
+		 * The children of the znode were changed.
+		 */
 		NODE_CHILDREN_CHANGED
 	}
 	
+	// the kind of the event
+	private final WatchEvent.Kind kind;
+	// the modifier of the watch
+	private final WatchEvent.Modifier modifier;
+	// the path of the znode
+	private final String path;
+	
+	/**
+	 * Construct a new {@link WatchEvent}.
+	 * 
+	 * @param kind
+	 * 			The kind of the event (must not be null).
+	 * @param modifier
+	 * 			The modifier of the watch that produced the event (must not be null).
+	 * @param path
+	 * 			The path of the znode (must not be null).
+	 * @throws NullPointerException
+	 * 			If any of the parameters is null.
+	 */
+	public WatchEvent(WatchEvent.Kind kind, WatchEvent.Modifier modifier, String path) throws NullPointerException{
+		if (kind == null || modifier == null || path == null){
+			throw new NullPointerException();
+		}
+		this.kind = kind;
+		this.modifier = modifier;
+		this.path = path;
+	}
+	
+	/**
+	 * 
+	 * @return The kind of the event.
+	 */
 	public WatchEvent.Kind kind(){
-		return null;
+		return kind;
 	}
 	
+	/**
+	 * 
+	 * @return The modifier of the watch that produced the event.
+	 */
 	public WatchEvent.Modifier modifier(){
-		return null;
+		return modifier;
+	}
+	
+	/**
+	 * 
+	 * @return The path of the znode.
+	 */
+	public String path(){
+		return path;
 	}
 }